@@ -0,0 +1,36 @@
+package com.chatapp.server;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * The JMH command line, with two defaults of our own: allocations are profiled (-prof gc) and the
+ * results are written to jmh-result.json (-rf json), so runs on different commits can be compared.
+ * Passing -prof or -rf on the command line replaces them.
+ */
+public class BenchmarkMain {
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions cli = new CommandLineOptions(args);
+    if (cli.shouldHelp()) {
+      cli.showHelp();
+      return;
+    }
+    if (cli.shouldList() || cli.shouldListWithParams() || cli.shouldListProfilers() || cli.shouldListResultFormats()) {
+      // Listing is all the stock launcher does
+      org.openjdk.jmh.Main.main(args);
+      return;
+    }
+    ChainedOptionsBuilder options = new OptionsBuilder().parent(cli);
+    if (cli.getProfilers().isEmpty()) {
+      options.addProfiler(GCProfiler.class);
+    }
+    if (!cli.getResultFormat().hasValue()) {
+      options.resultFormat(ResultFormatType.JSON);
+    }
+    new Runner(options.build()).run();
+  }
+}
@@ -0,0 +1,86 @@
+package com.chatapp.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Encoding and decoding one ChatMessage in both wire formats: the binary frames of FrameCodec, and
+ * the Java serialization legacy clients speak. `payload` is a line of chat, or a file of fileSize
+ * bytes sent whole.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatMessageBenchmark {
+  @Param({ "text", "file" })
+  String payload;
+
+  @Param({ "65536" })
+  int fileSize;
+
+  private ChatMessage message;
+  private byte[] binary;
+  private byte[] legacy;
+
+  @Setup
+  public void setUp() {
+    if (payload.equals("text")) {
+      message = new ChatMessage(ChatMessage.MessageType.TEXT, "alice", "Has anyone seen the build break on the release branch this morning?");
+    } else {
+      byte[] data = new byte[fileSize];
+      new Random(42).nextBytes(data);
+      message = new ChatMessage(ChatMessage.MessageType.FILE, "alice", "File");
+      message.setFileName("screenshot.png");
+      message.setFileData(data);
+    }
+    message.setRoom("general");
+    message.setTimestamp(1_700_000_000_000L);
+    binary = FrameCodec.encode(message);
+    legacy = encodeLegacy();
+  }
+
+  @Benchmark
+  public byte[] encodeBinary() {
+    return FrameCodec.encode(message);
+  }
+
+  @Benchmark
+  public ChatMessage decodeBinary() throws IOException {
+    return FrameCodec.decodeFrame(ByteBuffer.wrap(binary));
+  }
+
+  // A fresh EncodedMessage each time: encodings are otherwise cached per message
+  @Benchmark
+  public byte[] encodeLegacy() {
+    return new EncodedMessage(message).bytes(EncodedMessage.Format.LEGACY);
+  }
+
+  // As a legacy client reads it: a new stream header, then the reset and the object
+  @Benchmark
+  public Object decodeLegacy() throws IOException, ClassNotFoundException {
+    InputStream in = new SequenceInputStream(new ByteArrayInputStream(EncodedMessage.LEGACY_STREAM_HEADER), new ByteArrayInputStream(legacy));
+    try (ObjectInputStream objects = new ObjectInputStream(in)) {
+      return objects.readObject();
+    }
+  }
+}
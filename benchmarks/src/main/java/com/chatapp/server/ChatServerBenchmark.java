@@ -0,0 +1,83 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Routing on a server with `clients` users logged in over MemorySinks: a broadcast to everyone,
+ * a private message to a user who is there and to one who is not, and the full user list sent to
+ * everyone. Every delivery goes through the recipient's session and outbound queue, as it would on a
+ * real connection, so the cost per operation grows with the audience.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatServerBenchmark {
+  @Param({ "10", "1000", "10000" })
+  int clients;
+
+  private ServerFixture fixture;
+  private ClientConnection sender;
+  private String[] names;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    fixture = new ServerFixture(clients);
+    sender = fixture.users[0];
+    names = new String[clients];
+    for (int i = 0; i < clients; i++) {
+      names[i] = fixture.users[i].getUsername();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    fixture.close();
+  }
+
+  // A new message each time, as one arriving from a client would be; the server stamps it
+  @Benchmark
+  public void broadcast() {
+    fixture.server.broadcast(new ChatMessage(ChatMessage.MessageType.TEXT, sender.getUsername(), "Hello everyone"), sender);
+  }
+
+  // Recipients taken in turn, so the lookups do not all hit the same entry
+  @Benchmark
+  public void privateMessage() {
+    String target = names[next];
+    next = next + 1 == names.length ? 0 : next + 1;
+    ChatMessage msg = new ChatMessage(ChatMessage.MessageType.TEXT, sender.getUsername(), "Hello you");
+    msg.setTargetUser(target);
+    fixture.server.privateMessage(target, msg, sender);
+  }
+
+  // The sender is told the user is not there
+  @Benchmark
+  public void privateMessageUnknownUser() {
+    ChatMessage msg = new ChatMessage(ChatMessage.MessageType.TEXT, sender.getUsername(), "Hello you");
+    msg.setTargetUser("nobody");
+    fixture.server.privateMessage("nobody", msg, sender);
+  }
+
+  @Benchmark
+  public void updateUsersList() {
+    fixture.server.updateUsersList();
+  }
+}
@@ -0,0 +1,78 @@
+package com.chatapp.server;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * One message to `recipients` clients, ready to write: encoded once per recipient, as every client
+ * serializing the message again for itself, against one shared EncodedMessage that each recipient
+ * retains, takes its view of and releases, as a broadcast does now. With the default -prof gc the
+ * gc.alloc.rate.norm columns compare the allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutEncodingBenchmark {
+  @Param({ "10", "500" })
+  int recipients;
+
+  @Param({ "text", "file" })
+  String payload;
+
+  @Param({ "BINARY", "LEGACY" })
+  EncodedMessage.Format format;
+
+  @Param({ "65536" })
+  int fileSize;
+
+  private ChatMessage message;
+
+  @Setup
+  public void setUp() {
+    if (payload.equals("text")) {
+      message = new ChatMessage(ChatMessage.MessageType.TEXT, "alice", "Has anyone seen the build break on the release branch this morning?");
+    } else {
+      byte[] data = new byte[fileSize];
+      new Random(42).nextBytes(data);
+      message = new ChatMessage(ChatMessage.MessageType.FILE, "alice", "File");
+      message.setFileName("screenshot.png");
+      message.setFileData(data);
+    }
+    message.setTimestamp(1_700_000_000_000L);
+  }
+
+  @Benchmark
+  public void perRecipient(Blackhole bh) {
+    for (int i = 0; i < recipients; i++) {
+      EncodedMessage encoded = new EncodedMessage(message);
+      bh.consume(encoded.buffer(format));
+      encoded.release();
+    }
+  }
+
+  @Benchmark
+  public void encodeOnce(Blackhole bh) {
+    EncodedMessage encoded = new EncodedMessage(message);
+    for (int i = 0; i < recipients; i++) {
+      encoded.retain();
+      bh.consume(encoded.buffer(format));
+      encoded.release();
+    }
+    encoded.release();
+  }
+}
@@ -0,0 +1,47 @@
+package com.chatapp.server;
+
+/*
+ * A binary client with no socket behind it. Messages go through a real outbound queue and are taken
+ * off again at once, as by a writer that always keeps up: encoded, numbered by the session, measured
+ * by the server's metrics, then dropped instead of written.
+ */
+final class MemorySink implements ClientConnection {
+  private final String username;
+  private final ServerMetrics metrics;
+  private final OutboundQueue queue;
+
+  MemorySink(String username, ChatServer server) {
+    this.username = username;
+    this.metrics = server.getMetrics();
+    this.queue = new OutboundQueue(server.getConfig(), metrics, this);
+  }
+
+  @Override
+  public String getUsername() {
+    return username;
+  }
+
+  @Override
+  public void send(EncodedMessage msg) {
+    queue.offer(msg);
+    EncodedMessage next;
+    while ((next = queue.poll()) != null) {
+      next.bytes(EncodedMessage.Format.BINARY, metrics);
+      next.release();
+    }
+  }
+
+  @Override
+  public void disconnect() {
+  }
+
+  @Override
+  public EncodedMessage.Format getFormat() {
+    return EncodedMessage.Format.BINARY;
+  }
+
+  @Override
+  public OutboundQueue getOutboundQueue() {
+    return queue;
+  }
+}
@@ -0,0 +1,137 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The history log with `messages` chat messages spread over ROOMS rooms, one millisecond apart, in
+ * segments small enough that there are several: appending a broadcast, and replaying a room's latest
+ * messages, everything since a stamp near the end and a page before a stamp in the middle. Replays
+ * go to a client that only counts what it is sent.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageLogBenchmark {
+  private static final int ROOMS = 10;
+  private static final int SEGMENT_BYTES = 8 * 1024 * 1024;
+
+  @Param({ "10000", "1000000" })
+  int messages;
+
+  private Path dir;
+  private MessageLog log;
+  private final CountingClient client = new CountingClient();
+  private long firstStamp;
+  private long nextStamp;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("chat-bench-history");
+    ServerConfig config = new ServerConfig();
+    config.setHistoryDir(dir);
+    config.setHistorySegmentBytes(SEGMENT_BYTES);
+    config.setHistoryRetentionBytes(Long.MAX_VALUE);
+    log = new MessageLog(config);
+    // Recent enough that retention by age keeps all of it
+    firstStamp = System.currentTimeMillis() - messages;
+    nextStamp = firstStamp;
+    for (int i = 0; i < messages; i++) {
+      append("room" + (i % ROOMS));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    log.close();
+    try (Stream<Path> files = Files.walk(dir)) {
+      for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+        Files.deleteIfExists(file);
+      }
+    }
+  }
+
+  private void append(String room) {
+    ChatMessage msg = new ChatMessage(ChatMessage.MessageType.TEXT, "alice", "Has anyone seen the build break on the release branch this morning?");
+    msg.setRoom(room);
+    msg.setTimestamp(nextStamp++);
+    EncodedMessage encoded = new EncodedMessage(msg);
+    log.append(encoded);
+    encoded.release();
+  }
+
+  // Encoding included, as for a broadcast the server has just stamped
+  @Benchmark
+  public void append() {
+    append("room0");
+  }
+
+  // What a client joining the room is sent
+  @Benchmark
+  public long replayLatest() {
+    log.replay("room1", 0, client);
+    return client.received;
+  }
+
+  // A client back after missing the last tenth of the log
+  @Benchmark
+  public long replaySince() {
+    log.replay("room1", firstStamp + messages * 9L / 10, client);
+    return client.received;
+  }
+
+  // Scrolling back to the middle of the log
+  @Benchmark
+  public long replayBefore() {
+    log.replayBefore("room1", firstStamp + messages / 2, 0, client);
+    return client.received;
+  }
+
+  private static final class CountingClient implements ClientConnection {
+    long received;
+
+    @Override
+    public String getUsername() {
+      return "reader";
+    }
+
+    @Override
+    public void send(EncodedMessage msg) {
+      received++;
+    }
+
+    @Override
+    public void disconnect() {
+    }
+
+    @Override
+    public EncodedMessage.Format getFormat() {
+      return EncodedMessage.Format.BINARY;
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/*
+ * A server with `clients` users logged in over MemorySinks, named user0, user1 and so on. Nothing
+ * listens on a port, and history is off so that broadcasts measure routing rather than the disk.
+ * The file store goes to a temporary directory that close() removes.
+ */
+final class ServerFixture implements AutoCloseable {
+  final ChatServer server;
+  // What the server routes to for each user: their sessions
+  final ClientConnection[] users;
+  private final Path filesDir;
+
+  ServerFixture(int clients) throws IOException {
+    filesDir = Files.createTempDirectory("chat-bench-files");
+    ServerConfig config = new ServerConfig();
+    config.setMode(ServerConfig.Mode.NIO);
+    config.setHistoryEnabled(false);
+    config.setFilesDir(filesDir);
+    server = new ChatServer(config);
+    users = new ClientConnection[clients];
+    for (int i = 0; i < clients; i++) {
+      MemorySink sink = new MemorySink("user" + i, server);
+      users[i] = server.login(sink, new ChatMessage(ChatMessage.MessageType.TEXT, sink.getUsername(), null));
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try (Stream<Path> files = Files.walk(filesDir)) {
+      for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+        Files.deleteIfExists(file);
+      }
+    }
+  }
+}
@@ -0,0 +1,409 @@
+package com.chatapp.client;
+
+import com.chatapp.server.ChatMessage;
+import com.chatapp.server.FrameCodec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * One user's connection to the server, without any UI; the desktop client and the load generator
+ * both run on it. Connects and keeps reconnecting, with exponential backoff, until closed. After a
+ * drop the client resumes its session: the server sends what was missed and nobody else sees a
+ * leave or join. A login the server refuses is not retried. A quiet server is pinged, and a
+ * connection it no longer answers on is dropped so the reconnect loop takes over.
+ *
+ * Everything received goes to the listener on the reader thread, except what the client handles
+ * itself: session replies, pings and upload acknowledgements. Everything sent goes through an Outbox.
+ */
+public final class ChatClient {
+  // What the server made of our login or resume request
+  public enum Start {
+    // A first login
+    NEW,
+    // The server resends exactly what we missed
+    RESUMED,
+    // More was missed than the server kept: user lists are on their way, chat has to be asked for
+    GAP,
+    // The server forgot us, e.g. it restarted, and started a new session: rooms have to be rejoined
+    EXPIRED
+  }
+
+  // Called on the reader thread
+  public interface Listener {
+    void received(ChatMessage msg);
+
+    // Connected and logged in, or asked to resume; the session starts once the server answers
+    default void connected() {
+    }
+
+    /*
+     * Called before held chat goes out, so whatever has to go ahead of it, such as rejoining rooms
+     * or asking for missed history, is sent from here. reconnected is false for the first session.
+     */
+    default void sessionStarted(Start start, boolean reconnected) throws IOException {
+    }
+
+    // The connection failed or dropped; called once per outage
+    default void connectionLost() {
+    }
+
+    default void reconnecting(long waitMillis) {
+    }
+
+    // The server refused the login; the client has stopped
+    default void refused() {
+    }
+
+    // Where lobby history starts should the session be gone, 0 for just the latest messages
+    default long historySince() {
+      return 0;
+    }
+  }
+
+  private static final int ACK_INTERVAL = 64;
+  private static final long MIN_RECONNECT_DELAY_MILLIS = 250;
+  private static final long MAX_RECONNECT_DELAY_MILLIS = 15_000;
+  // A quiet server is pinged after HEARTBEAT_MILLIS and given up on after SERVER_TIMEOUT_MILLIS
+  private static final long HEARTBEAT_MILLIS = 5000;
+  private static final long SERVER_TIMEOUT_MILLIS = 15_000;
+  // How long an interrupted upload waits for the connection to come back
+  private static final long UPLOAD_RESUME_TIMEOUT_MILLIS = 60_000;
+  // How long chat posted while disconnected waits for the connection before it fails
+  private static final long SEND_HOLD_MILLIS = 60_000;
+
+  private final String host;
+  private final int port;
+  private final String username;
+  private final Listener listener;
+  private final ThreadFactory threads;
+  private final ScheduledExecutorService timer;
+  // The timer if we started it ourselves, to stop on close
+  private final ScheduledExecutorService ownTimer;
+  // Writes everything we send on its own thread; chat goes ahead of upload chunks
+  private final Outbox outbox;
+  // Signalled whenever a session starts, for uploads waiting to resume
+  private final ReentrantLock sessionLock = new ReentrantLock();
+  private final Condition sessionStarted = sessionLock.newCondition();
+  private int sessions;
+  // Issued by the server at login and used to resume after a dropped connection
+  private volatile String sessionToken;
+  // Sequenced messages received on this session, and how many of them the server knows about;
+  // only touched by the reader thread
+  private long received;
+  private long acknowledged;
+  // What the last resume request said we had received; the server echoes it if nothing was lost
+  private long resumeFrom;
+  // The connection the reader is on, null between attempts, and when it last heard from the server
+  private volatile Socket socket;
+  private volatile long lastRead;
+  private final Map<String, FileUpload> uploads = new ConcurrentHashMap<>();
+  private volatile boolean closed;
+  private Thread reader;
+  private ScheduledFuture<?> heartbeat;
+
+  public ChatClient(String host, int port, String username, Listener listener) {
+    this(host, port, username, listener, Thread.ofPlatform().name("chat-io-", 0).daemon().factory(), null);
+  }
+
+  /*
+   * threads makes the reader and the writer, which spend their time blocked on the socket, so many
+   * clients in one process are best given virtual threads. The heartbeat runs on timer, which can be
+   * shared by many clients; with none, the client starts its own.
+   */
+  public ChatClient(String host, int port, String username, Listener listener, ThreadFactory threads, ScheduledExecutorService timer) {
+    this.host = host;
+    this.port = port;
+    this.username = username;
+    this.listener = listener;
+    this.threads = threads;
+    this.ownTimer = timer == null ? Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("chat-heartbeat").daemon().factory()) : null;
+    this.timer = timer == null ? ownTimer : timer;
+    this.outbox = new Outbox(SEND_HOLD_MILLIS, threads);
+  }
+
+  public String getUsername() {
+    return username;
+  }
+
+  public void start() {
+    heartbeat = timer.scheduleWithFixedDelay(this::checkServer, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+    reader = threads.newThread(this::run);
+    reader.start();
+  }
+
+  // Stops reconnecting and drops the connection; whatever is still queued is not sent
+  public void close() {
+    closed = true;
+    Socket current = socket;
+    if (current != null) {
+      try { current.close(); } catch (IOException e) {}
+    }
+    if (reader != null) {
+      reader.interrupt();
+    }
+    if (heartbeat != null) {
+      heartbeat.cancel(false);
+    }
+    if (ownTimer != null) {
+      ownTimer.shutdown();
+    }
+    outbox.close();
+  }
+
+  /*
+   * Logs out, so the server does not keep the session waiting for a reconnect, and waits up to
+   * timeoutMillis for the server to close the connection; the client does not reconnect after. The
+   * socket is only half closed until then: closing it with input still unread resets the connection,
+   * which can discard the logout on the server before it has been read.
+   */
+  public void logout(long timeoutMillis) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    try {
+      send(new ChatMessage(ChatMessage.MessageType.LEAVE_ROOM, username, null));
+      outbox.awaitDrained(timeoutMillis);
+      closed = true;
+      Socket current = socket;
+      if (current != null) {
+        current.shutdownOutput();
+      }
+    } catch (IOException e) {
+      // Not connected
+      return;
+    }
+    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    if (remaining > 0) {
+      reader.join(remaining);
+    }
+  }
+
+  // Queues a control message for the writer thread; throws if not connected
+  public void send(ChatMessage msg) throws IOException {
+    outbox.send(msg);
+  }
+
+  // Queues chat the user typed, held while disconnected; the listener hears SENT or FAILED on the writer thread
+  public void post(ChatMessage msg, Outbox.Listener listener) {
+    outbox.post(msg, listener);
+  }
+
+  /*
+   * Uploads a file on the calling thread, returning once the server has all of it. After a dropped
+   * connection the server acknowledges what it has and the upload carries on from there; throws if
+   * the session does not come back within UPLOAD_RESUME_TIMEOUT_MILLIS.
+   */
+  public void upload(FileUpload upload) throws IOException, InterruptedException {
+    uploads.put(upload.getTransferId(), upload);
+    try {
+      int session = currentSession();
+      while (true) {
+        try {
+          upload.upload(outbox::sendBulk);
+          return;
+        } catch (IOException e) {
+          session = awaitSession(session, UPLOAD_RESUME_TIMEOUT_MILLIS);
+          if (session < 0) {
+            throw e;
+          }
+        }
+      }
+    } finally {
+      uploads.remove(upload.getTransferId());
+    }
+  }
+
+  private void run() {
+    long delay = MIN_RECONNECT_DELAY_MILLIS;
+    boolean lost = false;
+    while (!closed) {
+      boolean refused = false;
+      boolean first = true;
+      try (Socket socket = new Socket(host, port)) {
+        this.socket = socket;
+        if (closed) {
+          // close() ran before it could see this socket
+          return;
+        }
+        lastRead = System.nanoTime();
+        OutputStream socketOut = new BufferedOutputStream(socket.getOutputStream());
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+
+        FrameCodec.writeHello(socketOut, FrameCodec.VERSION);
+        FrameCodec.write(loginMessage(), socketOut);
+        socketOut.flush();
+        FrameCodec.readHello(in);
+        // Counted from the start of each connection; a resumed session says where to continue from
+        received = 0;
+        acknowledged = 0;
+        outbox.connected(socketOut);
+        delay = MIN_RECONNECT_DELAY_MILLIS;
+        listener.connected();
+
+        while (true) {
+          ChatMessage msg = FrameCodec.read(in);
+          lastRead = System.nanoTime();
+          if (closed) {
+            // Logged out: nothing more can be sent, so read on until the server closes the connection
+            continue;
+          }
+          // A refused login gets a notice where an accepted one gets the user list first
+          refused = first && msg.getType() == ChatMessage.MessageType.TEXT && "Server".equals(msg.getSender());
+          first = false;
+          if (msg.getType() == ChatMessage.MessageType.SESSION) {
+            sessionStarted(msg, lost);
+            lost = false;
+            continue;
+          }
+          if (msg.getType() == ChatMessage.MessageType.PING) {
+            send(new ChatMessage(ChatMessage.MessageType.PONG, username, null));
+            continue;
+          }
+          if (msg.getType() == ChatMessage.MessageType.PONG) {
+            continue;
+          }
+          if (FrameCodec.isSequenced(msg)) {
+            received++;
+          }
+          if (msg.getType() == ChatMessage.MessageType.FILE_ACK) {
+            FileUpload upload = uploads.get(msg.getTransferId());
+            if (upload != null) {
+              upload.acknowledged(msg.getOffset());
+            }
+          } else {
+            listener.received(msg);
+          }
+          if (received - acknowledged >= ACK_INTERVAL) {
+            acknowledge();
+          }
+        }
+      } catch (Exception e) {
+        socket = null;
+        outbox.disconnected();
+        if (closed) {
+          return;
+        }
+        if (!lost) {
+          listener.connectionLost();
+          lost = true;
+        }
+      }
+      if (refused && sessionToken == null) {
+        close();
+        listener.refused();
+        return;
+      }
+      long wait = delay + (long) (Math.random() * delay / 2);
+      listener.reconnecting(wait);
+      try {
+        Thread.sleep(wait);
+      } catch (InterruptedException e) {
+        return;
+      }
+      delay = Math.min(delay * 2, MAX_RECONNECT_DELAY_MILLIS);
+    }
+  }
+
+  // Pings a quiet server, and drops a connection it no longer answers on so the reconnect loop takes over
+  private void checkServer() {
+    Socket current = socket;
+    if (current == null) {
+      return;
+    }
+    long quiet = System.nanoTime() - lastRead;
+    if (quiet >= TimeUnit.MILLISECONDS.toNanos(SERVER_TIMEOUT_MILLIS)) {
+      try { current.close(); } catch (IOException e) {}
+    } else if (quiet >= TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MILLIS)) {
+      try {
+        send(new ChatMessage(ChatMessage.MessageType.PING, username, null));
+      } catch (IOException e) {
+        // Not connected
+      }
+    }
+  }
+
+  // A resume request if there is a session to go back to, a plain login otherwise
+  private ChatMessage loginMessage() {
+    ChatMessage login;
+    if (sessionToken != null) {
+      login = new ChatMessage(ChatMessage.MessageType.SESSION, username, sessionToken);
+      resumeFrom = received;
+      login.setOffset(resumeFrom);
+    } else {
+      login = new ChatMessage(ChatMessage.MessageType.TEXT, username, "Login");
+    }
+    // Should the session be gone, lobby history resumes from where the listener says
+    login.setTimestamp(listener.historySince());
+    return login;
+  }
+
+  /*
+   * Reader thread. The server's answer to a login or resume request: our old token with the count
+   * to carry on from, or a new token if it had no session for us.
+   */
+  private void sessionStarted(ChatMessage msg, boolean reconnected) throws IOException {
+    Start start;
+    if (sessionToken == null) {
+      start = Start.NEW;
+    } else if (!msg.getContent().equals(sessionToken)) {
+      start = Start.EXPIRED;
+    } else {
+      // received was reset for the new connection, so the reply is checked against the request
+      start = msg.getOffset() == resumeFrom ? Start.RESUMED : Start.GAP;
+      received = msg.getOffset();
+      acknowledged = received;
+    }
+    sessionToken = msg.getContent();
+    listener.sessionStarted(start, reconnected);
+    // What the listener sent is control messages, so it goes out before held chat
+    outbox.sessionStarted();
+    sessionLock.lock();
+    try {
+      sessions++;
+      sessionStarted.signalAll();
+    } finally {
+      sessionLock.unlock();
+    }
+  }
+
+  private void acknowledge() throws IOException {
+    ChatMessage ack = new ChatMessage(ChatMessage.MessageType.SESSION, username, null);
+    ack.setOffset(received);
+    send(ack);
+    acknowledged = received;
+  }
+
+  // Waits up to timeoutMillis for a session newer than the given count; returns its count, or -1
+  private int awaitSession(int after, long timeoutMillis) throws InterruptedException {
+    sessionLock.lock();
+    try {
+      long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      while (sessions <= after && nanos > 0) {
+        nanos = sessionStarted.awaitNanos(nanos);
+      }
+      return sessions > after ? sessions : -1;
+    } finally {
+      sessionLock.unlock();
+    }
+  }
+
+  private int currentSession() {
+    sessionLock.lock();
+    try {
+      return sessions;
+    } finally {
+      sessionLock.unlock();
+    }
+  }
+}
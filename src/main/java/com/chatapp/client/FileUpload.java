@@ -0,0 +1,185 @@
+package com.chatapp.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import com.chatapp.server.ChatMessage;
+
+/*
+ * Streams a file to the server in CHUNK_SIZE pieces, reading one chunk at a time instead of the whole
+ * file. The announce carries the file's SHA-256, so the server can skip an upload it already has by
+ * acknowledging the whole file at once. At most WINDOW chunks are unacknowledged at once. The server's first FILE_ACK says where to
+ * start (0, or further for a resumed upload); an ack that does not advance means a chunk was rejected
+ * and the upload rewinds to it.
+ */
+public class FileUpload {
+  static final int CHUNK_SIZE = 64 * 1024;
+  private static final int WINDOW = 16;
+  private static final long ACK_TIMEOUT_SECONDS = 30;
+
+  interface Sender {
+    void send(ChatMessage msg) throws IOException;
+  }
+
+  public interface Progress {
+    // Called on the reader thread each time the server has another percent of the file
+    void uploaded(int percent);
+  }
+
+  private final String transferId = UUID.randomUUID().toString();
+  private final Path path;
+  private final long size;
+  private final String username;
+  private final String targetUser;
+  private final String room;
+  private byte[] thumbnail;
+  private String contentHash;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition progress = lock.newCondition();
+  private long acked = -1;
+  private long next;
+  private volatile Progress listener;
+  private int reported = -1;
+
+  public FileUpload(Path path, long size, String username, String targetUser, String room) {
+    this.path = path;
+    this.size = size;
+    this.username = username;
+    this.targetUser = targetUser;
+    this.room = room;
+  }
+
+  public String getTransferId() {
+    return transferId;
+  }
+
+  public void setProgress(Progress listener) {
+    this.listener = listener;
+  }
+
+  public void setThumbnail(byte[] thumbnail) {
+    this.thumbnail = thumbnail;
+  }
+
+  // Hex SHA-256 of the file, computed on first use by reading it once
+  public String getContentHash() throws IOException {
+    if (contentHash == null) {
+      MessageDigest digest;
+      try {
+        digest = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+      try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+        ByteBuffer buf = ByteBuffer.allocate(CHUNK_SIZE);
+        while (file.read(buf) >= 0) {
+          digest.update(buf.flip());
+          buf.clear();
+        }
+      }
+      contentHash = HexFormat.of().formatHex(digest.digest());
+    }
+    return contentHash;
+  }
+
+  // Called from the reader thread for every FILE_ACK of this transfer
+  void acknowledged(long offset) {
+    lock.lock();
+    try {
+      if (acked < 0 || offset > acked) {
+        if (acked < 0) {
+          next = offset;
+        }
+        acked = offset;
+      } else {
+        next = offset;
+      }
+      progress.signalAll();
+      int percent = size == 0 ? 100 : (int) (acked * 100 / size);
+      Progress listener = this.listener;
+      if (percent != reported && listener != null) {
+        reported = percent;
+        listener.uploaded(percent);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+   * Sends the announce and streams the file; throws if the connection fails or the server stops
+   * acking. Calling it again with a new connection resumes from the server's acknowledged offset.
+   */
+  void upload(Sender sender) throws IOException, InterruptedException {
+    lock.lock();
+    try {
+      acked = -1;
+    } finally {
+      lock.unlock();
+    }
+    try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+      ChatMessage announce = new ChatMessage(ChatMessage.MessageType.FILE, username, "File");
+      announce.setTransferId(transferId);
+      announce.setFileName(path.getFileName().toString());
+      announce.setFileSize(size);
+      announce.setTargetUser(targetUser);
+      announce.setRoom(room);
+      announce.setContentHash(getContentHash());
+      announce.setFileData(thumbnail);
+      sender.send(announce);
+
+      ByteBuffer buf = ByteBuffer.allocate(CHUNK_SIZE);
+      long offset;
+      while ((offset = nextOffset()) >= 0) {
+        buf.clear().limit((int) Math.min(CHUNK_SIZE, size - offset));
+        while (buf.hasRemaining()) {
+          if (file.read(buf, offset + buf.position()) < 0) {
+            throw new IOException(path + " shrank during upload");
+          }
+        }
+        byte[] data = new byte[buf.position()];
+        buf.flip().get(data);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        ChatMessage chunk = new ChatMessage(ChatMessage.MessageType.FILE_CHUNK, username, null);
+        chunk.setTransferId(transferId);
+        chunk.setOffset(offset);
+        chunk.setChecksum(crc.getValue());
+        chunk.setFileData(data);
+        sender.send(chunk);
+      }
+    }
+  }
+
+  // Offset of the next chunk to send once the window allows, or -1 when the server has everything
+  private long nextOffset() throws IOException, InterruptedException {
+    lock.lock();
+    try {
+      while (acked < size) {
+        if (acked >= 0 && next < size && next - acked < (long) WINDOW * CHUNK_SIZE) {
+          long offset = next;
+          next = Math.min(size, next + CHUNK_SIZE);
+          return offset;
+        }
+        if (!progress.await(ACK_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+          throw new IOException("No acknowledgement from server");
+        }
+      }
+      return -1;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
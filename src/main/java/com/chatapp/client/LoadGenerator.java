@@ -0,0 +1,365 @@
+package com.chatapp.client;
+
+import com.chatapp.server.ChatMessage;
+import com.chatapp.server.LatencyHistogram;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Load test for a running server: connects `users` simulated users at once, sends them a mix of room
+ * or lobby broadcasts, private messages and file uploads at `rate` messages per second for
+ * `duration` seconds, then has them all log out at once. Reports how long the connect and disconnect
+ * storms took, the throughput, and end-to-end delivery latency percentiles per kind of message.
+ *
+ * Every message carries the time it was handed to the sender's client, and latency is measured to
+ * when a recipient's reader has decoded it; both ends are in this process, so they share a clock.
+ * Only messages sent after the warmup count. Users are ChatClients on virtual threads sharing one
+ * heartbeat timer, so a few thousand fit in one process; mind the open file limit on both sides.
+ */
+public class LoadGenerator {
+  private enum Kind {
+    BROADCAST, PRIVATE, FILE
+  }
+
+  private static final long LOGOUT_DRAIN_MILLIS = 5000;
+
+  private String host = "localhost";
+  private int port = 5000;
+  private int users = 1000;
+  // 0 broadcasts to the lobby, otherwise users are spread over this many rooms and broadcast to theirs
+  private int rooms;
+  // Messages per second, all users together
+  private int rate = 1000;
+  private long warmupSeconds = 5;
+  private long durationSeconds = 30;
+  // Relative weights of broadcasts, private messages and file uploads
+  private final int[] mix = { 90, 9, 1 };
+  private int textBytes = 100;
+  private int fileBytes = 64 * 1024;
+  private long connectTimeoutSeconds = 60;
+
+  // Tags this run's users and messages, so a previous run's sessions or history do not get in the way
+  private final String run = HexFormat.of().toHexDigits((short) new Random().nextInt());
+  private final List<User> all = new ArrayList<>();
+  private long connectStart;
+  private Path uploadDir;
+  // Messages sent in [measureFrom, measureUntil) are measured
+  private volatile long measureFrom = Long.MAX_VALUE;
+  private volatile long measureUntil = Long.MAX_VALUE;
+  private final LatencyHistogram[] latency = new LatencyHistogram[Kind.values().length];
+  private final LatencyHistogram overall = new LatencyHistogram();
+  private final LatencyHistogram connectLatency = new LatencyHistogram();
+  private final LatencyHistogram logoutLatency = new LatencyHistogram();
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder expected = new LongAdder();
+  private final LongAdder delivered = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private CountDownLatch sessions;
+  private volatile CountDownLatch departures;
+
+  public LoadGenerator() {
+    for (int i = 0; i < latency.length; i++) {
+      latency[i] = new LatencyHistogram();
+    }
+  }
+
+  // Reads settings such as -Dload.users=5000 from the command line
+  public static LoadGenerator fromSystemProperties() {
+    LoadGenerator load = new LoadGenerator();
+    load.host = System.getProperty("load.host", load.host);
+    load.port = Integer.getInteger("load.port", load.port);
+    load.users = Math.max(2, Integer.getInteger("load.users", load.users));
+    load.rooms = Math.max(0, Integer.getInteger("load.rooms", load.rooms));
+    load.rate = Math.max(0, Integer.getInteger("load.rate", load.rate));
+    load.warmupSeconds = Math.max(0, Long.getLong("load.warmupSec", load.warmupSeconds));
+    load.durationSeconds = Math.max(1, Long.getLong("load.durationSec", load.durationSeconds));
+    load.textBytes = Math.max(32, Integer.getInteger("load.textBytes", load.textBytes));
+    load.fileBytes = Math.max(1, Integer.getInteger("load.fileBytes", load.fileBytes));
+    load.connectTimeoutSeconds = Math.max(1, Long.getLong("load.connectTimeoutSec", load.connectTimeoutSeconds));
+    // e.g. broadcast:90,private:9,file:1; kinds left out are not sent
+    String mix = System.getProperty("load.mix");
+    if (mix != null) {
+      Arrays.fill(load.mix, 0);
+      for (String part : mix.split(",")) {
+        String[] weight = part.trim().split(":");
+        load.mix[Kind.valueOf(weight[0].trim().toUpperCase()).ordinal()] = Math.max(0, Integer.parseInt(weight[1].trim()));
+      }
+    }
+    return load;
+  }
+
+  public void run() throws IOException, InterruptedException {
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("load-timer").daemon().factory());
+    ThreadFactory threads = Thread.ofVirtual().name("load-", 0).factory();
+    System.out.printf("Run %s: %d users against %s:%d%n", run, users, host, port);
+
+    // Connect storm: everyone at once
+    sessions = new CountDownLatch(users);
+    connectStart = System.nanoTime();
+    for (int i = 0; i < users; i++) {
+      User user = new User(i);
+      user.client = new ChatClient(host, port, user.name, user, threads, timer);
+      all.add(user);
+    }
+    for (User user : all) {
+      user.client.start();
+    }
+    boolean connected = sessions.await(connectTimeoutSeconds, TimeUnit.SECONDS);
+    long connectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart);
+    System.out.printf("Connect storm: %d of %d users logged in after %d ms; per user p50 %s, p99 %s, max %s%n",
+        connectLatency.count(), users, connectMillis, millis(connectLatency.percentile(0.5)), millis(connectLatency.percentile(0.99)),
+        millis(connectLatency.max()));
+    if (!connected) {
+      System.out.println("Not everyone logged in within " + connectTimeoutSeconds + " s; is the server running?");
+      closeAll();
+      return;
+    }
+
+    traffic();
+    disconnectStorm();
+  }
+
+  // Sends at the target rate, counting only what is sent after the warmup
+  private void traffic() throws IOException, InterruptedException {
+    int totalWeight = mix[0] + mix[1] + mix[2];
+    if (rate == 0 || totalWeight == 0) {
+      return;
+    }
+    uploadDir = Files.createTempDirectory("chat-load-");
+    ExecutorService uploads = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("load-upload-", 0).factory());
+    long begin = System.nanoTime();
+    measureFrom = begin + TimeUnit.SECONDS.toNanos(warmupSeconds);
+    measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+    System.out.printf("Traffic: %d msg/s for %d s after %d s of warmup%n", rate, durationSeconds, warmupSeconds);
+    long count = 0;
+    long now;
+    while ((now = System.nanoTime()) < measureUntil) {
+      long due = (now - begin) * rate / TimeUnit.SECONDS.toNanos(1);
+      for (; count < due; count++) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        User from = all.get(random.nextInt(users));
+        int pick = random.nextInt(totalWeight);
+        Kind kind = pick < mix[0] ? Kind.BROADCAST : pick < mix[0] + mix[1] ? Kind.PRIVATE : Kind.FILE;
+        if (kind == Kind.FILE) {
+          uploads.execute(from::upload);
+        } else {
+          from.post(kind, random);
+        }
+      }
+      Thread.sleep(1);
+    }
+    uploads.shutdown();
+    // Deliveries still on their way when sending stopped are waited for, up to a point
+    long settle = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    long last = -1;
+    while (System.nanoTime() < settle && delivered.sum() < expected.sum() && delivered.sum() != last) {
+      last = delivered.sum();
+      Thread.sleep(500);
+    }
+    uploads.awaitTermination(10, TimeUnit.SECONDS);
+    Files.deleteIfExists(uploadDir);
+
+    double seconds = durationSeconds;
+    System.out.printf("Throughput: %d messages sent (%.1f/s), %d deliveries (%.1f/s) of %d expected, %d failed to send%n",
+        sent.sum(), sent.sum() / seconds, delivered.sum(), delivered.sum() / seconds, expected.sum(), failed.sum());
+    for (Kind kind : Kind.values()) {
+      report(kind.name().toLowerCase(), latency[kind.ordinal()]);
+    }
+    report("all", overall);
+  }
+
+  private static void report(String label, LatencyHistogram histogram) {
+    if (histogram.count() == 0) {
+      return;
+    }
+    System.out.printf("  %-9s n=%-9d p50 %-10s p99 %-10s p999 %-10s max %s%n", label, histogram.count(), millis(histogram.percentile(0.5)),
+        millis(histogram.percentile(0.99)), millis(histogram.percentile(0.999)), millis(histogram.max()));
+  }
+
+  private static String millis(long micros) {
+    return String.format("%.2f ms", micros / 1000.0);
+  }
+
+  // Disconnect storm: everyone but the first user logs out at once; over when the first has seen them all leave
+  private void disconnectStorm() throws InterruptedException {
+    departures = new CountDownLatch(users - 1);
+    long start = System.nanoTime();
+    try (ExecutorService logouts = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("load-logout-", 0).factory())) {
+      for (User user : all.subList(1, users)) {
+        logouts.execute(() -> {
+          long begin = System.nanoTime();
+          try {
+            user.client.logout(LOGOUT_DRAIN_MILLIS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          logoutLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin));
+          user.client.close();
+        });
+      }
+      boolean all = departures.await(connectTimeoutSeconds, TimeUnit.SECONDS);
+      long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      System.out.printf("Disconnect storm: %d of %d users seen leaving after %d ms%s; logout sent p50 %s, p99 %s%n",
+          users - 1 - departures.getCount(), users - 1, millis, all ? "" : " (gave up)", millis(logoutLatency.percentile(0.5)),
+          millis(logoutLatency.percentile(0.99)));
+    }
+    closeAll();
+  }
+
+  private void closeAll() {
+    for (User user : all) {
+      user.client.close();
+    }
+  }
+
+  // One simulated user; its listener methods run on its client's reader thread
+  private class User implements ChatClient.Listener {
+    final int index;
+    final String name;
+    // The room it broadcasts to, null for the lobby
+    final String room;
+    ChatClient client;
+    boolean loggedIn;
+
+    User(int index) {
+      this.index = index;
+      this.name = "load" + run + "-" + index;
+      this.room = rooms == 0 ? null : "load" + run + "-room" + index % rooms;
+    }
+
+    // Users in the same room, this one included
+    int audience() {
+      return rooms == 0 ? users : users / rooms + (index % rooms < users % rooms ? 1 : 0);
+    }
+
+    @Override
+    public void sessionStarted(ChatClient.Start start, boolean reconnected) throws IOException {
+      if (room != null && start != ChatClient.Start.RESUMED && start != ChatClient.Start.GAP) {
+        ChatMessage join = new ChatMessage(ChatMessage.MessageType.JOIN_ROOM, name, null);
+        join.setRoom(room);
+        client.send(join);
+      }
+      if (!loggedIn) {
+        loggedIn = true;
+        connectLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - connectStart));
+        sessions.countDown();
+      }
+    }
+
+    @Override
+    public void received(ChatMessage msg) {
+      String stamp = msg.getType() == ChatMessage.MessageType.FILE ? msg.getFileName() : msg.getContent();
+      if ("Server".equals(msg.getSender())) {
+        CountDownLatch leaving = departures;
+        if (leaving != null && index == 0 && stamp != null && stamp.startsWith("User load" + run + "-") && stamp.endsWith(" left.")) {
+          leaving.countDown();
+        }
+        return;
+      }
+      long sentAt = sentAt(stamp);
+      if (sentAt < measureFrom || sentAt >= measureUntil) {
+        return;
+      }
+      Kind kind = msg.getType() == ChatMessage.MessageType.FILE ? Kind.FILE : msg.getTargetUser() != null ? Kind.PRIVATE : Kind.BROADCAST;
+      long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentAt);
+      latency[kind.ordinal()].record(micros);
+      overall.record(micros);
+      delivered.increment();
+    }
+
+    // Time a message of this run was sent, from the "<run>-<nanos>" it starts with; Long.MIN_VALUE if it is not one
+    private long sentAt(String stamp) {
+      String prefix = run + "-";
+      if (stamp == null || !stamp.startsWith(prefix)) {
+        return Long.MIN_VALUE;
+      }
+      // nanoTime can be negative
+      int end = stamp.startsWith("-", prefix.length()) ? prefix.length() + 1 : prefix.length();
+      while (end < stamp.length() && Character.isDigit(stamp.charAt(end))) {
+        end++;
+      }
+      try {
+        return Long.parseLong(stamp, prefix.length(), end, 10);
+      } catch (NumberFormatException e) {
+        return Long.MIN_VALUE;
+      }
+    }
+
+    private String stamp() {
+      return run + "-" + System.nanoTime();
+    }
+
+    void post(Kind kind, Random random) {
+      StringBuilder content = new StringBuilder(stamp()).append(' ');
+      while (content.length() < textBytes) {
+        content.append((char) ('a' + random.nextInt(26)));
+      }
+      ChatMessage msg = new ChatMessage(ChatMessage.MessageType.TEXT, name, content.toString());
+      if (kind == Kind.PRIVATE) {
+        int to = (index + 1 + random.nextInt(users - 1)) % users;
+        msg.setTargetUser(all.get(to).name);
+      } else {
+        msg.setRoom(room);
+      }
+      boolean measured = counted(msg.getContent());
+      client.post(msg, state -> {
+        if (state == Outbox.State.FAILED) {
+          failed.increment();
+        }
+      });
+      if (measured) {
+        sent.increment();
+        expected.add(kind == Kind.PRIVATE ? 1 : audience() - 1);
+      }
+    }
+
+    // A file of random bytes, so the server cannot skip it as one it already has
+    void upload() {
+      Path file = null;
+      try {
+        byte[] data = new byte[fileBytes];
+        ThreadLocalRandom.current().nextBytes(data);
+        String stamp = stamp();
+        file = Files.write(uploadDir.resolve(stamp + ".bin"), data);
+        if (counted(stamp)) {
+          sent.increment();
+          expected.add(audience() - 1);
+        }
+        client.upload(new FileUpload(file, fileBytes, name, null, room));
+      } catch (IOException | InterruptedException e) {
+        failed.increment();
+      } finally {
+        if (file != null) {
+          try {
+            Files.deleteIfExists(file);
+          } catch (IOException e) {
+            // Left in the temp directory
+          }
+        }
+      }
+    }
+
+    private boolean counted(String stamp) {
+      long at = sentAt(stamp);
+      return at >= measureFrom && at < measureUntil;
+    }
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    LoadGenerator.fromSystemProperties().run();
+  }
+}
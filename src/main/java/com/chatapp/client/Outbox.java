@@ -0,0 +1,321 @@
+package com.chatapp.client;
+
+import com.chatapp.server.ChatMessage;
+import com.chatapp.server.FrameCodec;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Everything the client sends, written to the connection by one writer thread so that neither the
+ * EDT nor the reader thread ever waits on the network. There are three lanes, served in this order:
+ *
+ * - control messages (acks, pings, history requests, room changes): refused while disconnected and
+ *   dropped if the connection is lost before they are written, like a write on a dead socket;
+ * - chat the user typed: held while disconnected and sent once the session is back, reporting
+ *   SENT when it has been flushed to the socket, or FAILED if that did not happen within holdMillis
+ *   or the connection broke while it was being written;
+ * - upload chunks: only written when nothing else is waiting, so a chat message queues behind at
+ *   most the chunk being written. The uploading thread waits until its chunk is written.
+ *
+ * Frames go into the connection's buffered stream and it is flushed once the lanes run dry, so a
+ * burst of messages costs one flush instead of one each.
+ */
+public final class Outbox {
+  public enum State {
+    PENDING, SENT, FAILED
+  }
+
+  // Called on the writer thread
+  public interface Listener {
+    void delivery(State state);
+  }
+
+  private static final class Item {
+    final ChatMessage msg;
+    // Chat only
+    final Listener listener;
+    final long deadline;
+    final boolean upload;
+    // Uploads only: set once written, or why it was not
+    boolean written;
+    IOException failure;
+
+    Item(ChatMessage msg, Listener listener, long deadline, boolean upload) {
+      this.msg = msg;
+      this.listener = listener;
+      this.deadline = deadline;
+      this.upload = upload;
+    }
+  }
+
+  private final long holdNanos;
+  private final Thread writer;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition work = lock.newCondition();
+  private final Condition bulkWritten = lock.newCondition();
+  private final Condition drained = lock.newCondition();
+  // Nothing queued that can go out, and everything written is flushed
+  private boolean idle = true;
+  // Null while disconnected
+  private OutputStream out;
+  // Whether chat may go out: the session has started on this connection
+  private boolean open;
+  private final ArrayDeque<Item> control = new ArrayDeque<>();
+  private final ArrayDeque<Item> chat = new ArrayDeque<>();
+  private final ArrayDeque<Item> bulk = new ArrayDeque<>();
+
+  Outbox(long holdMillis, ThreadFactory threads) {
+    this.holdNanos = TimeUnit.MILLISECONDS.toNanos(holdMillis);
+    this.writer = threads.newThread(this::run);
+    writer.start();
+  }
+
+  // Stops the writer; whatever is still queued is not sent
+  void close() {
+    writer.interrupt();
+  }
+
+  // The connection is up: control messages and uploads may go out
+  void connected(OutputStream out) {
+    lock.lock();
+    try {
+      this.out = out;
+      open = false;
+      idle = idle && bulk.isEmpty();
+      work.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // The session is back, so the server knows our rooms again: held chat may go out
+  void sessionStarted() {
+    lock.lock();
+    try {
+      open = out != null;
+      idle = idle && chat.isEmpty();
+      work.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void disconnected() {
+    lock.lock();
+    try {
+      lost(out);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Under the lock: control messages are dropped, uploads fail and chat waits for the next connection
+  private void lost(OutputStream stream) {
+    if (stream != out || out == null) {
+      return;
+    }
+    out = null;
+    open = false;
+    control.clear();
+    drained.signalAll();
+    for (Item item : bulk) {
+      item.failure = new IOException("Connection lost");
+    }
+    bulk.clear();
+    bulkWritten.signalAll();
+  }
+
+  // Waits up to timeoutMillis for what can be sent to be written and flushed, e.g. before exiting
+  void awaitDrained(long timeoutMillis) throws InterruptedException {
+    lock.lock();
+    try {
+      long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      while (!idle && out != null && nanos > 0) {
+        nanos = drained.awaitNanos(nanos);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void send(ChatMessage msg) throws IOException {
+    lock.lock();
+    try {
+      if (out == null) {
+        throw new IOException("Not connected");
+      }
+      control.add(new Item(msg, null, 0, false));
+      idle = false;
+      work.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Queues a message the user typed; its listener hears SENT or FAILED later
+  void post(ChatMessage msg, Listener listener) {
+    lock.lock();
+    try {
+      chat.add(new Item(msg, listener, System.nanoTime() + holdNanos, false));
+      idle = false;
+      work.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // For upload chunks: returns once the chunk is written, throws if the connection is or goes down
+  void sendBulk(ChatMessage msg) throws IOException {
+    Item item = new Item(msg, null, 0, true);
+    lock.lock();
+    try {
+      if (out == null) {
+        throw new IOException("Not connected");
+      }
+      bulk.add(item);
+      idle = false;
+      work.signalAll();
+      while (!item.written && item.failure == null) {
+        bulkWritten.await();
+      }
+    } catch (InterruptedException e) {
+      bulk.remove(item);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Upload interrupted");
+    } finally {
+      lock.unlock();
+    }
+    if (item.failure != null) {
+      throw item.failure;
+    }
+  }
+
+  private void run() {
+    // The stream written to since the last flush, and the chat in it, SENT once the flush succeeds
+    OutputStream unflushedStream = null;
+    List<Item> unflushed = new ArrayList<>();
+    while (true) {
+      Item item;
+      OutputStream stream;
+      List<Item> expired = new ArrayList<>();
+      lock.lock();
+      try {
+        while (true) {
+          expire(expired);
+          item = next();
+          if (item != null || unflushedStream != null || !expired.isEmpty()) {
+            break;
+          }
+          idle = true;
+          drained.signalAll();
+          work.awaitNanos(chat.isEmpty() ? Long.MAX_VALUE : Math.max(1, chat.peekFirst().deadline - System.nanoTime()));
+        }
+        stream = out;
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        lock.unlock();
+      }
+      for (Item failed : expired) {
+        failed.listener.delivery(State.FAILED);
+      }
+
+      if (unflushedStream != null && unflushedStream != stream) {
+        // Disconnected before the flush
+        broken(unflushedStream, unflushed);
+        unflushedStream = null;
+      }
+      try {
+        if (item == null) {
+          // The lanes ran dry: one flush for everything written since the last
+          if (unflushedStream != null) {
+            unflushedStream.flush();
+            for (Item sent : unflushed) {
+              sent.listener.delivery(State.SENT);
+            }
+            unflushed.clear();
+            unflushedStream = null;
+          }
+          continue;
+        }
+        if (item.listener != null) {
+          unflushed.add(item);
+        }
+        unflushedStream = stream;
+        FrameCodec.write(item.msg, stream);
+        if (item.upload) {
+          finishUpload(item, null);
+        }
+      } catch (IOException e) {
+        if (item != null && item.upload) {
+          finishUpload(item, e);
+        }
+        broken(stream, unflushed);
+        unflushedStream = null;
+      }
+    }
+  }
+
+  // A write or flush failed: the server may or may not have the chat since the last flush
+  private void broken(OutputStream stream, List<Item> unflushed) {
+    lock.lock();
+    try {
+      lost(stream);
+    } finally {
+      lock.unlock();
+    }
+    for (Item failed : unflushed) {
+      failed.listener.delivery(State.FAILED);
+    }
+    unflushed.clear();
+  }
+
+  // Under the lock: the next message to write, taken off its lane (uploads stay queued until written)
+  private Item next() {
+    if (out == null) {
+      return null;
+    }
+    if (!control.isEmpty()) {
+      return control.pollFirst();
+    }
+    if (open && !chat.isEmpty()) {
+      return chat.pollFirst();
+    }
+    return bulk.peekFirst();
+  }
+
+  // Under the lock: chat that waited too long for a connection
+  private void expire(List<Item> expired) {
+    long now = System.nanoTime();
+    for (Iterator<Item> it = chat.iterator(); it.hasNext(); ) {
+      Item item = it.next();
+      if (item.deadline - now > 0) {
+        break;
+      }
+      it.remove();
+      expired.add(item);
+    }
+  }
+
+  private void finishUpload(Item item, IOException failure) {
+    lock.lock();
+    try {
+      if (bulk.remove(item)) {
+        item.written = failure == null;
+        item.failure = failure;
+        bulkWritten.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,228 @@
+package com.chatapp.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * A stored file, named by the SHA-256 of its contents. It keeps the chunk boundaries and CRC32s it was
+ * uploaded with (in a ".idx" file next to it), so fetches stream it chunk by chunk straight from disk
+ * (FileChannel.transferTo) without reading it back to checksum it.
+ *
+ * Reference counted like EncodedMessage: BlobStore holds one reference until the blob is evicted and
+ * every fetch in flight holds another. The files are deleted once the last reference is released.
+ * An evicted blob that is still being fetched first moves its files aside, since the same content
+ * uploaded again meanwhile is stored under the same name.
+ */
+final class Blob {
+  private static final String INDEX_SUFFIX = ".idx";
+  // Evicted blobs' files end in .tmp, which BlobStore clears out on startup
+  private static final String EVICTED_SUFFIX = ".evicted";
+  private static final AtomicLong evictions = new AtomicLong();
+
+  private final String hash;
+  // Moved by evict(); whatever they are when the last reference goes is deleted
+  private volatile Path path;
+  private volatile Path index;
+  private final FileChannel channel;
+  private final long[] chunkEnds;
+  private final long[] chunkChecksums;
+  private final byte[][] chunkHeaders;
+  private final AtomicInteger refCount = new AtomicInteger(1);
+
+  private Blob(String hash, Path path, long[] chunkEnds, long[] chunkChecksums) throws IOException {
+    this.hash = hash;
+    this.path = path;
+    this.index = indexPath(path);
+    this.channel = FileChannel.open(path, StandardOpenOption.READ);
+    this.chunkEnds = chunkEnds;
+    this.chunkChecksums = chunkChecksums;
+    this.chunkHeaders = new byte[chunkEnds.length][];
+  }
+
+  // Moves a finished upload into dir under its hash and writes its chunk index
+  static Blob create(Path dir, String hash, Path upload, long[] chunkEnds, long[] chunkChecksums) throws IOException {
+    Path path = dir.resolve(hash);
+    Path index = indexPath(path);
+    Path tmp = dir.resolve(hash + INDEX_SUFFIX + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp))) {
+      out.writeInt(chunkEnds.length);
+      for (int i = 0; i < chunkEnds.length; i++) {
+        out.writeLong(chunkEnds[i]);
+        out.writeLong(chunkChecksums[i]);
+      }
+    }
+    Files.move(upload, path, StandardCopyOption.REPLACE_EXISTING);
+    // The index goes last: a blob without one is incomplete and gets discarded on startup
+    Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return new Blob(hash, path, chunkEnds, chunkChecksums);
+  }
+
+  // Reopens a blob stored by an earlier run; returns null (and removes it) if it is incomplete
+  static Blob load(Path path) {
+    Path index = indexPath(path);
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(index))) {
+      int count = in.readInt();
+      long[] chunkEnds = new long[count];
+      long[] chunkChecksums = new long[count];
+      for (int i = 0; i < count; i++) {
+        chunkEnds[i] = in.readLong();
+        chunkChecksums[i] = in.readLong();
+      }
+      if (Files.size(path) == (count == 0 ? 0 : chunkEnds[count - 1])) {
+        return new Blob(path.getFileName().toString(), path, chunkEnds, chunkChecksums);
+      }
+    } catch (IOException e) {
+      // Treated as incomplete
+    }
+    try {
+      Files.deleteIfExists(path);
+      Files.deleteIfExists(index);
+    } catch (IOException e) {
+      System.err.println("Error deleting incomplete blob " + path + ": " + e.getMessage());
+    }
+    return null;
+  }
+
+  static boolean isIndex(Path path) {
+    return path.getFileName().toString().contains(INDEX_SUFFIX);
+  }
+
+  private static Path indexPath(Path path) {
+    return path.resolveSibling(path.getFileName() + INDEX_SUFFIX);
+  }
+
+  String getHash() { return hash; }
+
+  long getSize() { return chunkEnds.length == 0 ? 0 : chunkEnds[chunkEnds.length - 1]; }
+
+  Path getPath() { return path; }
+
+  int getChunkCount() { return chunkEnds.length; }
+
+  long chunkStart(int i) { return i == 0 ? 0 : chunkEnds[i - 1]; }
+
+  long chunkEnd(int i) { return chunkEnds[i]; }
+
+  // Index of the chunk containing offset, or getChunkCount() if offset is at or past the end
+  int chunkAt(long offset) {
+    int i = Arrays.binarySearch(chunkEnds, offset);
+    return i >= 0 ? i + 1 : -i - 1;
+  }
+
+  // FILE_CHUNK frame prefix for chunk i, encoded once and shared by every fetch
+  byte[] chunkHeader(int i) {
+    synchronized (chunkHeaders) {
+      byte[] header = chunkHeaders[i];
+      if (header == null) {
+        ChatMessage chunk = new ChatMessage(ChatMessage.MessageType.FILE_CHUNK, null, null);
+        chunk.setTransferId(hash);
+        chunk.setOffset(chunkStart(i));
+        chunk.setChecksum(chunkChecksums[i]);
+        header = FrameCodec.encodeHeader(chunk, (int) (chunkEnd(i) - chunkStart(i)));
+        chunkHeaders[i] = header;
+      }
+      return header;
+    }
+  }
+
+  // Zero-copy write of up to count bytes starting at position; returns the number of bytes written
+  long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+    return channel.transferTo(position, count, target);
+  }
+
+  // Copying write for stream-based writers
+  void writeTo(long position, long count, OutputStream out, byte[] buffer) throws IOException {
+    ByteBuffer buf = ByteBuffer.wrap(buffer);
+    while (count > 0) {
+      buf.clear().limit((int) Math.min(buffer.length, count));
+      int n = channel.read(buf, position);
+      if (n < 0) {
+        throw new IOException("Blob truncated: " + path);
+      }
+      out.write(buffer, 0, n);
+      position += n;
+      count -= n;
+    }
+  }
+
+  // Whole file in memory, for legacy clients that can only take a file as one message
+  byte[] readAll() throws IOException {
+    byte[] data = new byte[(int) getSize()];
+    ByteBuffer buf = ByteBuffer.wrap(data);
+    while (buf.hasRemaining()) {
+      if (channel.read(buf, buf.position()) < 0) {
+        throw new IOException("Blob truncated: " + path);
+      }
+    }
+    return data;
+  }
+
+  Blob retain() {
+    int previous = refCount.getAndIncrement();
+    if (previous <= 0) {
+      throw new IllegalStateException("Blob already released");
+    }
+    return this;
+  }
+
+  // retain() for callers that may race with eviction
+  boolean tryRetain() {
+    int count;
+    do {
+      count = refCount.get();
+      if (count <= 0) {
+        return false;
+      }
+    } while (!refCount.compareAndSet(count, count + 1));
+    return true;
+  }
+
+  /*
+   * Called by BlobStore, under its lock, as it drops the blob, in place of release(). Fetches still
+   * holding it keep reading through the open channel while its files move to names of their own;
+   * the index goes first, as a blob without one is discarded on startup.
+   */
+  void evict() {
+    if (refCount.get() > 1) {
+      String tombstone = hash + EVICTED_SUFFIX + evictions.incrementAndGet();
+      try {
+        Path movedIndex = path.resolveSibling(tombstone + INDEX_SUFFIX + ".tmp");
+        Files.move(index, movedIndex, StandardCopyOption.ATOMIC_MOVE);
+        index = movedIndex;
+        Path movedPath = path.resolveSibling(tombstone + ".tmp");
+        Files.move(path, movedPath, StandardCopyOption.ATOMIC_MOVE);
+        path = movedPath;
+      } catch (IOException e) {
+        System.err.println("Error moving evicted blob " + path + " aside: " + e.getMessage());
+      }
+    }
+    release();
+  }
+
+  void release() {
+    int remaining = refCount.decrementAndGet();
+    if (remaining == 0) {
+      try {
+        channel.close();
+        Files.deleteIfExists(index);
+        Files.deleteIfExists(path);
+      } catch (IOException e) {
+        System.err.println("Error deleting blob " + path + ": " + e.getMessage());
+      }
+    } else if (remaining < 0) {
+      throw new IllegalStateException("Blob released too often");
+    }
+  }
+}
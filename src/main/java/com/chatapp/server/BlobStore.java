@@ -0,0 +1,114 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Content-addressed file store: every distinct upload is kept once, under its SHA-256, however often
+ * it is sent. When the total size exceeds the quota the least recently used blobs are evicted;
+ * a blob being fetched stays readable until that fetch releases it.
+ */
+class BlobStore {
+  private final Path dir;
+  private final long quota;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  // Access order: the eldest entry is the least recently used
+  private final LinkedHashMap<String, Blob> blobs = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalBytes;
+
+  BlobStore(Path dir, long quota) throws IOException {
+    this.dir = Files.createDirectories(dir);
+    this.quota = quota;
+    load();
+  }
+
+  // Blobs from earlier runs, oldest first so the LRU order roughly survives a restart
+  private void load() throws IOException {
+    List<Path> paths = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+      for (Path path : stream) {
+        if (path.getFileName().toString().endsWith(".tmp")) {
+          Files.deleteIfExists(path);
+        } else if (!Blob.isIndex(path)) {
+          paths.add(path);
+        }
+      }
+    }
+    paths.sort(Comparator.comparing(BlobStore::lastModified));
+    for (Path path : paths) {
+      Blob blob = Blob.load(path);
+      if (blob != null) {
+        blobs.put(blob.getHash(), blob);
+        totalBytes += blob.getSize();
+      }
+    }
+    evict(null);
+    System.out.println("Blob store: " + blobs.size() + " files, " + totalBytes + " bytes");
+  }
+
+  private static FileTime lastModified(Path path) {
+    try {
+      return Files.getLastModifiedTime(path);
+    } catch (IOException e) {
+      return FileTime.fromMillis(0);
+    }
+  }
+
+  // Returns the blob retained for the caller, or null; counts as a use for eviction
+  Blob get(String hash) {
+    lock.lock();
+    try {
+      Blob blob = blobs.get(hash);
+      return blob != null && blob.tryRetain() ? blob : null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+   * Stores a finished upload under its hash and returns the blob retained for the caller. If the same
+   * content is already stored the upload is discarded and the existing blob returned.
+   */
+  Blob add(SpooledFile upload, String hash) throws IOException {
+    lock.lock();
+    try {
+      Blob blob = blobs.get(hash);
+      if (blob != null) {
+        upload.discard();
+        return blob.retain();
+      }
+      blob = upload.toBlob(dir, hash);
+      blobs.put(hash, blob);
+      totalBytes += blob.getSize();
+      evict(blob);
+      return blob.retain();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Drops least recently used blobs until the store fits its quota again, never the one just added
+  private void evict(Blob keep) {
+    Iterator<Map.Entry<String, Blob>> it = blobs.entrySet().iterator();
+    while (totalBytes > quota && it.hasNext()) {
+      Blob blob = it.next().getValue();
+      if (blob == keep) {
+        continue;
+      }
+      it.remove();
+      totalBytes -= blob.getSize();
+      blob.evict();
+    }
+  }
+}
@@ -6,7 +6,9 @@ public class ChatMessage implements Serializable {
   private static final long serialVersionUID = 1L;
 
   public enum MessageType {
-    TEXT, FILE, USER_LIST
+    // Append only: the binary protocol sends the ordinal
+    TEXT, FILE, USER_LIST, PRESENCE, FILE_CHUNK, FILE_ACK, FILE_FETCH, JOIN_ROOM, LEAVE_ROOM, ROOM_LIST,
+    HISTORY, SESSION, PING, PONG
   }
 
   private MessageType type;
@@ -15,6 +17,18 @@ public class ChatMessage implements Serializable {
   private byte[] fileData;
   private String fileName;
   private String targetUser;
+  private long version;
+  // Chunked file transfers: FILE announces the upload, FILE_CHUNK carries one piece, FILE_ACK confirms an offset
+  private String transferId;
+  private long offset;
+  private long fileSize;
+  private long checksum;
+  // SHA-256 of a stored file; FILE_FETCH asks for the file with this hash
+  private String contentHash;
+  // Room the message belongs to; null means everyone on the server
+  private String room;
+  // When the server received it, in epoch millis; 0 if never stamped
+  private long timestamp;
 
   public ChatMessage(MessageType type, String sender, String content) {
     this.type = type;
@@ -70,4 +84,68 @@ public class ChatMessage implements Serializable {
   public void setTargetUser(String targetUser) {
     this.targetUser = targetUser;
   }
-}
\ No newline at end of file
+
+  public long getVersion() {
+    return version;
+  }
+
+  public void setVersion(long version) {
+    this.version = version;
+  }
+
+  public String getTransferId() {
+    return transferId;
+  }
+
+  public void setTransferId(String transferId) {
+    this.transferId = transferId;
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  public void setOffset(long offset) {
+    this.offset = offset;
+  }
+
+  public long getFileSize() {
+    return fileSize;
+  }
+
+  public void setFileSize(long fileSize) {
+    this.fileSize = fileSize;
+  }
+
+  public long getChecksum() {
+    return checksum;
+  }
+
+  public void setChecksum(long checksum) {
+    this.checksum = checksum;
+  }
+
+  public String getContentHash() {
+    return contentHash;
+  }
+
+  public void setContentHash(String contentHash) {
+    this.contentHash = contentHash;
+  }
+
+  public String getRoom() {
+    return room;
+  }
+
+  public void setRoom(String room) {
+    this.room = room;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public void setTimestamp(long timestamp) {
+    this.timestamp = timestamp;
+  }
+}
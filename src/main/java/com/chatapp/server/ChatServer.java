@@ -3,95 +3,488 @@ package com.chatapp.server;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class ChatServer {
+public final class ChatServer {
+  // Heartbeat deadlines are checked to within this; one turn of the wheel covers the usual timeouts
+  private static final long TIMER_TICK_MILLIS = 100;
+  private static final int TIMER_SLOTS = 512;
+
+  private final ServerConfig config;
   private ServerSocket serverSocket;
-  private final Set<ClientHandler> clients = new HashSet<>();
+  private ExecutorService clientExecutor;
+  // No monitor is held while sending: a virtual thread blocked in socket I/O under synchronized pins its carrier
+  private final Set<ClientConnection> clients = ConcurrentHashMap.newKeySet();
+  // Logged-in users by name (registered by PresenceTracker.join): direct routing and one login per name.
+  // Binary clients are represented by their Session, legacy ones by their connection.
+  private final Members usersByName = new Members();
+  private final ScheduledExecutorService scheduler;
+  private final TimerWheel timers;
+  private final PresenceTracker presence;
+  private final Rooms rooms;
+  private final FileRelay files;
+  private final Sessions sessions;
+  private final FanOut fanOut;
+  private final RateLimiter limits;
+  private final ServerMetrics metrics;
+  // null when history is disabled
+  private final MessageLog history;
+  // null unless the server is one node of a cluster
+  private final Cluster cluster;
+  // Held from stamping a broadcast to appending it, so stamps only grow along the history log
+  private final ReentrantLock stamping = new ReentrantLock();
+  private long lastStamp;
 
   public ChatServer(int port) throws IOException {
-    serverSocket = new ServerSocket(port);
-    System.out.println("Server started on port " + port);
+    this(withPort(port));
+  }
+
+  public ChatServer(ServerConfig config) throws IOException {
+    this.config = config;
+    this.metrics = new ServerMetrics(config);
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("chat-timer").daemon().factory());
+    this.timers = new TimerWheel(scheduler, TIMER_TICK_MILLIS, TIMER_SLOTS);
+    this.presence = new PresenceTracker(null, usersByName, scheduler, config.getPresenceCoalesceMillis());
+    this.fanOut = new FanOut(config);
+    this.rooms = new Rooms(scheduler, config.getPresenceCoalesceMillis(), fanOut);
+    this.files = new FileRelay(this, config, scheduler);
+    this.sessions = new Sessions(this, config, scheduler);
+    this.limits = new RateLimiter(config, scheduler);
+    this.history = config.isHistoryEnabled() ? new MessageLog(config) : null;
+    this.cluster = config.getClusterPort() > 0 ? new Cluster(this, config, usersByName, presence, files) : null;
+    addGauges();
+    if (config.getMode() == ServerConfig.Mode.BLOCKING) {
+      serverSocket = new ServerSocket(config.getPort());
+      clientExecutor = config.newClientExecutor();
+      System.out.println("Server started on port " + config.getPort() + " (" + config.getThreads().name().toLowerCase() + " threads)");
+    }
   }
 
-  public void start() {
+  private static ServerConfig withPort(int port) {
+    ServerConfig config = new ServerConfig();
+    config.setPort(port);
+    return config;
+  }
+
+  public void start() throws IOException {
+    metrics.register(config.getPort());
+    if (config.getMetricsPort() > 0) {
+      try {
+        new MetricsEndpoint(metrics, config.getMetricsPort()).start();
+      } catch (IOException e) {
+        System.err.println("Error serving metrics on port " + config.getMetricsPort() + ": " + e.getMessage());
+      }
+    }
+    if (cluster != null) {
+      cluster.start();
+    }
+    if (config.getMode() == ServerConfig.Mode.NIO) {
+      new NioChatServer(this, config).start();
+      return;
+    }
     while (true) {
       try {
         Socket socket = serverSocket.accept();
         System.out.println("New client connected: " + socket.getInetAddress());
         ClientHandler handler = new ClientHandler(socket, this);
-        clients.add(handler);
-        new Thread(handler).start();
+        addClient(handler);
+        clientExecutor.execute(handler);
       } catch (IOException e) {
         System.err.println("Error accepting client connection: " + e.getMessage());
       }
     }
   }
 
-  public synchronized void broadcast(ChatMessage message, ClientHandler sender) {
-    for (ClientHandler client : clients) {
-      if (client != sender) {
-        client.sendMessage(message);
+  public ServerConfig getConfig() {
+    return config;
+  }
+
+  ServerMetrics getMetrics() {
+    return metrics;
+  }
+
+  // Everything the metrics read from the server's own state rather than count as it happens
+  private void addGauges() {
+    metrics.gauge("chat_clients_connected", null, null, clients::size);
+    metrics.gauge("chat_users_logged_in", null, null, usersByName::size);
+    metrics.gauge("chat_outbound_queued", null, null, () -> {
+      long total = 0;
+      for (ClientConnection client : clients) {
+        total += client.getOutboundQueue().size();
+      }
+      return total;
+    });
+    metrics.gauge("chat_outbound_queued_max", null, null, () -> {
+      long max = 0;
+      for (ClientConnection client : clients) {
+        max = Math.max(max, client.getOutboundQueue().size());
       }
+      return max;
+    });
+    if (cluster != null) {
+      metrics.gauge("chat_cluster_nodes", null, null, cluster::getNodeCount);
+      metrics.gauge("chat_cluster_remote_users", null, null, cluster::getRemoteUserCount);
+    }
+    for (RateLimiter.Budget budget : RateLimiter.Budget.values()) {
+      String name = budget.name().toLowerCase();
+      metrics.gauge("chat_rate_limit_pauses_total", "budget", name, () -> limits.getPauseCount(budget));
+      metrics.gauge("chat_rate_limit_paused_millis_total", "budget", name, () -> limits.getPausedMillis(budget));
+    }
+  }
+
+  ExecutorService getClientExecutor() {
+    return clientExecutor;
+  }
+
+  TimerWheel getTimers() {
+    return timers;
+  }
+
+  // Starts watching a new connection for a silent client or a stuck write
+  Heartbeat newHeartbeat(Heartbeat.Connection connection) {
+    Heartbeat heartbeat = new Heartbeat(timers, config, connection);
+    heartbeat.start();
+    return heartbeat;
+  }
+
+  public Collection<ClientConnection> getClients() {
+    return Collections.unmodifiableSet(clients);
+  }
+
+  public void addClient(ClientConnection client) {
+    clients.add(client);
+  }
+
+  RateLimiter getRateLimiter() {
+    return limits;
+  }
+
+  /*
+   * Called by either engine for every message from a logged-in client: charges it to the
+   * connection's budget and, if it was dispatched, to the sender's. Returns how many nanoseconds to
+   * stop reading from the client, 0 for none.
+   */
+  long throttle(TokenBucket connection, ClientConnection sender, ChatMessage msg) {
+    return limits.charge(connection, sender, msg, sender == null ? 0 : audience(msg));
+  }
+
+  // Recipients a message from a client fans out to
+  private int audience(ChatMessage msg) {
+    if (msg.getType() != ChatMessage.MessageType.TEXT && msg.getType() != ChatMessage.MessageType.FILE) {
+      return 0;
+    }
+    if (msg.getTargetUser() != null) {
+      return 1;
+    }
+    return msg.getRoom() != null ? rooms.size(msg.getRoom()) : usersByName.size();
+  }
+
+  public ClientConnection getUser(String username) {
+    return usersByName.get(username);
+  }
+
+  /*
+   * Called by either engine with the first message from a connection, once it has set the username:
+   * a login, or a SESSION request from a binary client that is reconnecting. Returns who the
+   * connection speaks for from now on, its Session or (legacy clients) the connection itself, or null
+   * if the login was refused; the client has then been told why and should be disconnected.
+   */
+  public ClientConnection login(ClientConnection connection, ChatMessage msg) {
+    if (connection.getFormat() == EncodedMessage.Format.LEGACY) {
+      return clientJoined(connection, 0) ? connection : null;
+    }
+    if (msg.getType() == ChatMessage.MessageType.SESSION) {
+      Session resumed = sessions.resume(connection, msg);
+      if (resumed != null) {
+        return resumed;
+      }
+    }
+    // A client that lost its session should not have to wait for the old one to expire
+    if (connection.getUsername() != null && usersByName.get(connection.getUsername()) instanceof Session previous) {
+      sessions.endDetached(previous);
+    }
+    Session session = sessions.create(connection);
+    // The lobby history from where the client left off, if it was here before
+    if (!clientJoined(session, msg.getTimestamp())) {
+      sessions.end(session);
+      return null;
+    }
+    session.sendMessage(new ChatMessage(ChatMessage.MessageType.SESSION, "Server", session.getToken()));
+    return session;
+  }
+
+  // Names travel in comma-separated PRESENCE deltas marked with a leading + or -, and in cluster
+  // messages that use ':' as a separator, so none of those may appear where they would be misread
+  private static boolean isValidName(String username) {
+    return username != null && !username.isBlank() && !username.equals("Server")
+        && !username.contains(",") && !username.contains(":")
+        && !username.startsWith("+") && !username.startsWith("-");
+  }
+
+  // Returns false if the name is invalid or already taken, after telling the client so
+  private boolean clientJoined(ClientConnection client, long historySince) {
+    String username = client.getUsername();
+    String problem = null;
+    if (!isValidName(username)) {
+      problem = "Invalid username.";
+    } else if ((cluster != null && cluster.isRemote(username)) || !presence.join(client)) {
+      problem = "Username " + username + " is already taken.";
+    }
+    if (problem != null) {
+      client.sendMessage(new ChatMessage(ChatMessage.MessageType.TEXT, "Server", problem));
+      return false;
     }
+
+    if (cluster != null) {
+      cluster.joined(username);
+    }
+    replayHistory(null, historySince, 0, 0, client);
+    broadcast(new ChatMessage(ChatMessage.MessageType.TEXT, "Server", "User " + client.getUsername() + " joined!"), client);
+    return true;
+  }
+
+  // Fresh snapshots for a resumed session that missed more than its replay buffer held
+  void resync(Session session) {
+    presence.sendSnapshot(session);
+    rooms.sendSnapshots(session);
   }
 
-  public synchronized void updateUsersList() {
-    StringBuilder sb = new StringBuilder();
-    for (ClientHandler client : clients) {
-      if (client.getUsername() != null) {
-        sb.append(client.getUsername()).append(",");
+  public void dispatch(ChatMessage msg, ClientConnection sender) {
+    if (msg.getType() == ChatMessage.MessageType.SESSION) {
+      // Acknowledges the messages received so far
+      if (sender instanceof Session session) {
+        session.acknowledged(msg.getOffset());
+      }
+    } else if (msg.getType() == ChatMessage.MessageType.USER_LIST) {
+      // A client asking for a fresh snapshot after missing a presence delta
+      if (msg.getRoom() == null) {
+        presence.sendSnapshot(sender);
+      } else {
+        rooms.sendSnapshot(msg.getRoom(), sender);
+      }
+    } else if (msg.getType() == ChatMessage.MessageType.JOIN_ROOM) {
+      // A rejoin after the session was lost asks for history from where it left off
+      if (rooms.join(msg.getRoom(), sender)) {
+        replayHistory(msg.getRoom(), msg.getTimestamp(), 0, 0, sender);
+      }
+    } else if (msg.getType() == ChatMessage.MessageType.LEAVE_ROOM) {
+      if (msg.getRoom() != null) {
+        rooms.leave(msg.getRoom(), sender);
+      } else if (sender instanceof Session session) {
+        // Leaving the server: a logout, so the grace period for reconnecting does not apply
+        sessions.end(session);
       }
+    } else if (msg.getType() == ChatMessage.MessageType.ROOM_LIST) {
+      rooms.sendList(sender);
+    } else if (msg.getRoom() != null && !rooms.isMember(msg.getRoom(), sender)) {
+      sender.sendMessage(new ChatMessage(ChatMessage.MessageType.TEXT, "Server", "You are not in room " + msg.getRoom() + "."));
+    } else if (msg.getType() == ChatMessage.MessageType.HISTORY) {
+      // Everything since a timestamp, e.g. after the client was disconnected, or with an offset the
+      // page of messages before it, as the client scrolls back
+      replayHistory(msg.getRoom(), msg.getTimestamp(), msg.getOffset(), parseCount(msg.getContent()), sender);
+    } else if (msg.getType() == ChatMessage.MessageType.FILE || msg.getType() == ChatMessage.MessageType.FILE_CHUNK
+        || msg.getType() == ChatMessage.MessageType.FILE_FETCH) {
+      dispatchTransfer(msg, sender);
+    } else if (msg.getType() != ChatMessage.MessageType.TEXT) {
+      // Presence, acks and history markers only ever come from the server; relaying a client's would
+      // let it forge them for everyone else
+      metrics.dropped(msg);
+    } else if (msg.getTargetUser() != null) {
+      // The server's clock, not the client's
+      msg.setTimestamp(System.currentTimeMillis());
+      privateMessage(msg.getTargetUser(), msg, sender);
+    } else {
+      broadcast(msg, sender);
+    }
+  }
+
+  // Files are stored by FileRelay and shared as references rather than routed message by message
+  private void dispatchTransfer(ChatMessage msg, ClientConnection sender) {
+    if (msg.getType() == ChatMessage.MessageType.FILE_FETCH) {
+      files.fetch(msg, sender);
+    } else if (msg.getTransferId() == null) {
+      files.storeWhole(msg, sender);
+    } else if (msg.getType() == ChatMessage.MessageType.FILE) {
+      files.announce(msg, sender);
+    } else {
+      files.chunk(msg, sender);
+    }
+  }
+
+  public void broadcast(ChatMessage message, ClientConnection sender) {
+    // Encoded lazily by the first writer and shared by everyone after it
+    EncodedMessage encoded = new EncodedMessage(message);
+    try {
+      broadcast(encoded, sender);
+    } finally {
+      encoded.release();
     }
+  }
 
-    ChatMessage listMsg = new ChatMessage(ChatMessage.MessageType.USER_LIST, "Server", sb.toString());
-    for (ClientHandler client : clients) {
-      client.sendMessage(listMsg);
+  // To the message's room if it has one, otherwise to everyone, on every node of a cluster.
+  // Stamped here whatever the client sent: history is searched by stamp and must be in stamp order.
+  public void broadcast(EncodedMessage encoded, ClientConnection sender) {
+    stampAndLog(encoded);
+    if (cluster != null) {
+      cluster.broadcast(encoded);
     }
+    deliver(encoded, sender);
   }
 
-  public synchronized void privateMessage(String targetUser, ChatMessage message, ClientHandler sender) {
-    boolean found = false;
-    for (ClientHandler client : clients) {
-      if (client.getUsername() != null && client.getUsername().equals(targetUser)) {
-        client.sendMessage(message);
-        found = true;
-        break;
+  // Server time, never behind the last stamp; chat and file references are then logged
+  private void stampAndLog(EncodedMessage encoded) {
+    ChatMessage message = encoded.getMessage();
+    stamping.lock();
+    try {
+      lastStamp = Math.max(lastStamp, System.currentTimeMillis());
+      message.setTimestamp(lastStamp);
+      if (history != null && MessageLog.isLogged(message)) {
+        history.append(encoded);
       }
+    } finally {
+      stamping.unlock();
     }
-    if (!found) {
-      // sender.sendMessage("User not found.");
+  }
+
+  // To this node's users only
+  private void deliver(EncodedMessage encoded, ClientConnection sender) {
+    ChatMessage message = encoded.getMessage();
+    long start = System.nanoTime();
+    String room = message.getRoom();
+    if (room != null) {
+      rooms.broadcast(room, encoded, sender);
+    } else {
+      fanOut.send(usersByName, encoded, sender);
     }
+    metrics.fannedOut(System.nanoTime() - start);
   }
 
-  public synchronized void privateMessage(String targetUser, String message, ClientHandler sender) {
-    boolean found = false;
-    for (ClientHandler client : clients) {
-        if (client.getUsername() != null && client.getUsername().equals(targetUser)) {
-            ChatMessage privateMsg = new ChatMessage(ChatMessage.MessageType.TEXT, "Server", "[Private from " + sender.getUsername() + "]: " + message);
-            client.sendMessage(privateMsg);
-            found = true;
-            break;
-        }
+  // Legacy clients would show replayed messages as new ones, so they get no history
+  private void replayHistory(String room, long since, long before, int have, ClientConnection client) {
+    if (history == null || client.getFormat() != EncodedMessage.Format.BINARY) {
+      return;
     }
-    if (!found) {
-        ChatMessage notFoundMsg = new ChatMessage(ChatMessage.MessageType.TEXT, "Server", "User " + targetUser + " not found.");
-        sender.sendMessage(notFoundMsg);
+    if (before > 0) {
+      history.replayBefore(room, before, have, client);
+    } else {
+      history.replay(room, since, client);
     }
-}
+  }
+
+  // A page request's content counts the messages stamped `before` that the client already has
+  private static int parseCount(String content) {
+    try {
+      return content == null ? 0 : Integer.parseInt(content);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  // Sends the full user list to everyone; joins and leaves normally go out as presence deltas
+  public void updateUsersList() {
+    presence.broadcastSnapshot();
+  }
 
-  public synchronized void removeClient(ClientHandler client) {
-    clients.remove(client);
-    if (client.getUsername() != null) {
+  public void privateMessage(String targetUser, ChatMessage message, ClientConnection sender) {
+    if (!sendTo(targetUser, message)) {
+      sender.sendMessage(new ChatMessage(ChatMessage.MessageType.TEXT, "Server", "User " + targetUser + " not found."));
+    }
+  }
+
+  public void privateMessage(String targetUser, String message, ClientConnection sender) {
+    ChatMessage privateMsg = new ChatMessage(ChatMessage.MessageType.TEXT, "Server", "[Private from " + sender.getUsername() + "]: " + message);
+    privateMsg.setTargetUser(targetUser);
+    if (!sendTo(targetUser, privateMsg)) {
+      ChatMessage notFoundMsg = new ChatMessage(ChatMessage.MessageType.TEXT, "Server", "User " + targetUser + " not found.");
+      sender.sendMessage(notFoundMsg);
+    }
+  }
+
+  private boolean sendTo(String username, ChatMessage msg) {
+    EncodedMessage encoded = new EncodedMessage(msg);
+    try {
+      return sendTo(username, encoded);
+    } finally {
+      encoded.release();
+    }
+  }
+
+  // To the user here or, in a cluster, on the node they are logged in on; false if nobody has the name
+  boolean sendTo(String username, EncodedMessage encoded) {
+    ClientConnection client = usersByName.get(username);
+    if (client != null) {
+      client.send(encoded);
+      return true;
+    }
+    return cluster != null && cluster.sendTo(username, encoded);
+  }
+
+  // A message another node relayed: to its target if they are logged in here, otherwise to everyone here.
+  // A broadcast is stamped again on arrival, as relays can overtake local messages stamped after them.
+  void relayed(EncodedMessage encoded) {
+    String target = encoded.getMessage().getTargetUser();
+    if (target == null) {
+      stampAndLog(encoded);
+      deliver(encoded, null);
+      return;
+    }
+    ClientConnection client = usersByName.get(target);
+    if (client != null) {
+      client.send(encoded);
+    }
+  }
+
+  // Logs out a user whose name another node of the cluster gave out at the same time, and kept
+  void evict(String username) {
+    ClientConnection client = usersByName.get(username);
+    if (client == null) {
+      return;
+    }
+    client.sendMessage(new ChatMessage(ChatMessage.MessageType.TEXT, "Server", "Username " + username + " is already taken."));
+    client.disconnect();
+    if (client instanceof Session session) {
+      sessions.end(session);
+    } else {
+      removeClient(client);
+    }
+  }
+
+  /*
+   * Called by either engine when a connection closes, with whoever it spoke for (null if it never
+   * logged in). A session just waits for its client to come back.
+   */
+  public void disconnected(ClientConnection connection, ClientConnection peer) {
+    clients.remove(connection);
+    if (peer instanceof Session session) {
+      sessions.disconnected(session, connection);
+    } else if (peer != null) {
+      removeClient(peer);
+    }
+  }
+
+  // The user is gone: a legacy client disconnected, or a session ended
+  public void removeClient(ClientConnection client) {
+    rooms.leaveAll(client);
+    // Only the connection that owns the name announces its departure; a rejected duplicate does not
+    if (client.getUsername() != null && usersByName.remove(client.getUsername(), client)) {
+      if (cluster != null) {
+        cluster.left(client.getUsername());
+      }
       broadcast(new ChatMessage(ChatMessage.MessageType.TEXT, "Server", "User " + client.getUsername() + " left."), null);
-      updateUsersList();
+      presence.left(client.getUsername());
     }
   }
 
   public static void main(String[] args) {
     try {
-      ChatServer server = new ChatServer(5000);
+      ChatServer server = new ChatServer(ServerConfig.fromSystemProperties());
       server.start();
     } catch (IOException e) {
       e.printStackTrace();
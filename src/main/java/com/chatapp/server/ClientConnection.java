@@ -0,0 +1,23 @@
+package com.chatapp.server;
+
+// A logged-in (or logging-in) peer as seen by ChatServer, independent of the I/O engine serving it
+public interface ClientConnection {
+  String getUsername();
+
+  // Enqueues without blocking; the connection's own writer delivers it. The caller keeps its reference.
+  void send(EncodedMessage msg);
+
+  default void sendMessage(ChatMessage msg) {
+    EncodedMessage encoded = new EncodedMessage(msg);
+    send(encoded);
+    encoded.release();
+  }
+
+  // Delivers whatever is already queued, then closes the connection
+  void disconnect();
+
+  // Wire format negotiated at connect; BINARY until the client has spoken
+  EncodedMessage.Format getFormat();
+
+  OutboundQueue getOutboundQueue();
+}
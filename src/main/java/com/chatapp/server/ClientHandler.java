@@ -2,56 +2,199 @@ package com.chatapp.server;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.concurrent.TimeUnit;
 
-public class ClientHandler implements Runnable {
+public final class ClientHandler implements Runnable, ClientConnection {
   private Socket socket;
   private ChatServer server;
-  private ObjectOutputStream out;
-  private ObjectInputStream in;
-  private String username;
+  private final ServerMetrics metrics;
+  private BufferedOutputStream out;
+  private BufferedInputStream in;
+  private volatile EncodedMessage.Format format = EncodedMessage.Format.BINARY;
+  // Only set for clients that still speak Java serialization
+  private ObjectInputStream legacyIn;
+  private volatile String username;
+  // Who this connection speaks for once logged in: its session, or itself for a legacy client
+  private ClientConnection peer;
+  private final OutboundQueue queue;
+  // Everything read after login is charged to it; null with no limit
+  private final TokenBucket budget;
+  private byte[] chunkBuffer;
+  private Heartbeat heartbeat;
 
   public ClientHandler(Socket socket, ChatServer server) {
     this.socket = socket;
     this.server = server;
+    this.metrics = server.getMetrics();
+    this.queue = new OutboundQueue(server.getConfig(), metrics, this);
+    this.budget = server.getRateLimiter().newConnectionBucket();
   }
 
   @Override
   public void run() {
+    boolean rejected = false;
+    heartbeat = server.newHeartbeat(new Heartbeat.Connection() {
+      public void ping() {
+        sendMessage(new ChatMessage(ChatMessage.MessageType.PING, "Server", null));
+      }
+
+      // Closing the socket wakes the reader and writer, which clean up as for any disconnect
+      public void timedOut(String reason) {
+        System.out.println("Closing connection to " + username + ": " + reason);
+        try { socket.close(); } catch (IOException e) {}
+      }
+    });
     try {
-      out = new ObjectOutputStream(socket.getOutputStream());
-      in = new ObjectInputStream(socket.getInputStream());
+      out = new BufferedOutputStream(metrics.countOut(socket.getOutputStream()));
+      in = new BufferedInputStream(metrics.countIn(socket.getInputStream()));
+      negotiate();
+      server.getClientExecutor().execute(this::writeLoop);
 
-      // Receive username (first text message)
-      ChatMessage loginMsg = (ChatMessage) in.readObject();
+      // Receive username (first text message, or a session to resume)
+      ChatMessage loginMsg = readMessage();
       this.username= loginMsg.getSender();
 
-      server.updateUsersList();
-      server.broadcast(new ChatMessage(ChatMessage.MessageType.TEXT, "Server", "User " + username + " joined!"), this);
+      peer = server.login(this, loginMsg);
+      if (peer == null) {
+        rejected = true;
+        return;
+      }
+      heartbeat.loggedIn(format);
 
       ChatMessage msg;
-      while ((msg = (ChatMessage) in.readObject()) != null) {
-        if (msg.getTargetUser() != null) {
-                    server.privateMessage(msg.getTargetUser(), msg, this);
-                } else {
-                    server.broadcast(msg, this);
-                }
+      while ((msg = readMessage()) != null) {
+        ClientConnection dispatched = null;
+        if (msg.getType() == ChatMessage.MessageType.PING) {
+          sendMessage(new ChatMessage(ChatMessage.MessageType.PONG, "Server", null));
+        } else if (msg.getType() != ChatMessage.MessageType.PONG) {
+          server.dispatch(msg, peer);
+          dispatched = peer;
+        }
+        // Over budget: stop reading, and TCP stops the client
+        long pause = server.throttle(budget, dispatched, msg);
+        if (pause > 0) {
+          heartbeat.pausing(pause);
+          TimeUnit.NANOSECONDS.sleep(pause);
+        }
       }
     } catch (Exception e) {
       System.out.println("Client disconnected.");
     } finally {
-      server.removeClient(this);
-      try { socket.close(); } catch (IOException e) {}
+      heartbeat.stop();
+      server.disconnected(this, peer);
+      if (rejected) {
+        // The writer delivers the rejection and then closes the socket
+        disconnect();
+      } else {
+        queue.close();
+        try { socket.close(); } catch (IOException e) {}
+      }
     }
   }
 
-  public void sendMessage(ChatMessage msg) {
+  // The client speaks first: a binary hello, or the Java serialization header from an old client
+  private void negotiate() throws IOException {
+    in.mark(2);
+    int first = in.read();
+    int second = in.read();
+    in.reset();
+    if (FrameCodec.isLegacyStream(first, second)) {
+      format = EncodedMessage.Format.LEGACY;
+      out.write(EncodedMessage.LEGACY_STREAM_HEADER);
+      out.flush();
+      legacyIn = new ObjectInputStream(in);
+    } else {
+      int version = Math.min(FrameCodec.readHello(in), FrameCodec.VERSION);
+      FrameCodec.writeHello(out, version);
+      out.flush();
+    }
+  }
+
+  private ChatMessage readMessage() throws IOException, ClassNotFoundException {
+    ChatMessage msg = legacyIn != null ? (ChatMessage) legacyIn.readObject() : FrameCodec.read(in);
+    heartbeat.read();
+    if (msg != null) {
+      metrics.received(msg);
+    }
+    return msg;
+  }
+
+  // Sole owner of the output stream; flushes only once the queue runs dry so bursts share packets
+  private void writeLoop() {
     try {
-      out.writeObject(msg);
+      EncodedMessage msg;
+      while ((msg = queue.take()) != null) {
+        // Any write may block on a client that stopped reading; the heartbeat times it out
+        heartbeat.blocked();
+        try {
+          out.write(msg.bytes(format, metrics));
+          Blob file = msg.getFile(format);
+          if (file != null) {
+            writeChunks(file, msg.getFileOffset());
+          }
+          if (queue.isEmpty()) {
+            out.flush();
+          }
+        } finally {
+          heartbeat.unblocked();
+          msg.release();
+        }
+      }
       out.flush();
-    } catch (IOException e) {
-      e.printStackTrace();
+    } catch (IOException | InterruptedException e) {
+      // Closed below
     }
+    try { socket.close(); } catch (IOException e) {}
   }
 
+  /*
+   * Streams a fetched file chunk by chunk; plain sockets have no channel, so this copies through a
+   * buffer. Chat queued meanwhile is written between chunks rather than after the whole file.
+   */
+  private void writeChunks(Blob file, long offset) throws IOException {
+    if (chunkBuffer == null) {
+      chunkBuffer = new byte[64 * 1024];
+    }
+    for (int i = file.chunkAt(offset); i < file.getChunkCount(); i++) {
+      out.write(file.chunkHeader(i));
+      file.writeTo(file.chunkStart(i), file.chunkEnd(i) - file.chunkStart(i), out, chunkBuffer);
+      // A long file only times out if one chunk stalls
+      heartbeat.unblocked();
+      heartbeat.blocked();
+      queue.bulkWritten();
+      EncodedMessage msg = queue.pollControl();
+      if (msg != null) {
+        do {
+          try {
+            out.write(msg.bytes(format, metrics));
+          } finally {
+            msg.release();
+          }
+        } while ((msg = queue.pollControl()) != null);
+        out.flush();
+      }
+    }
+  }
+
+  @Override
+  public void send(EncodedMessage msg) {
+    if (!queue.offer(msg)) {
+      System.out.println("Disconnecting slow consumer " + username + " (dropped " + queue.getDroppedCount() + ")");
+      try { socket.close(); } catch (IOException e) {}
+    }
+  }
+
+  @Override
+  public void disconnect() {
+    queue.shutdown();
+  }
+
+  @Override
+  public EncodedMessage.Format getFormat() { return format; }
+
+  @Override
+  public OutboundQueue getOutboundQueue() { return queue; }
+
+  @Override
   public String getUsername() { return username; }
 }
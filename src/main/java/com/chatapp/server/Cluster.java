@@ -0,0 +1,505 @@
+package com.chatapp.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Makes the server one node of a cluster: users logged in on any node can chat with each other and
+ * see each other in the user list.
+ *
+ * Every node listens on its cluster port and dials every peer, so between two nodes there is one link
+ * each way, and a node only ever writes to the links it dialed. A link speaks the client protocol:
+ * after the hello, the dialer names itself in a SESSION message and the other node answers with its
+ * own name. Then the dialer sends a USER_LIST of everyone logged in on it and from there on:
+ *
+ *   PRESENCE   - "+alice,-bob," as users log in and out on the dialer
+ *   FILE       - a reference to a stored file, followed by the file itself in FILE_CHUNKs (transfer
+ *                id = content hash), so the other node can serve fetches from its own store
+ *   anything else with a targetUser - a private message for a user on the other node
+ *   anything else - a broadcast, to everyone or to a room there
+ *
+ * Broadcasts go to every node once; the receiving node delivers and logs them like its own, so each
+ * node keeps the whole history. A link that drops loses what was queued for it; the dialer redials
+ * with backoff and resends its user list. When a node's link to us drops, its users are gone here
+ * until it reconnects.
+ *
+ * A name is taken cluster-wide. Two nodes can still give out the same name at the same moment; when
+ * each hears of the other's, the node whose id sorts first keeps its user and the other logs its own
+ * out.
+ *
+ * The cluster port is not authenticated: keep it on a trusted network.
+ */
+final class Cluster {
+  private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+  private static final long MIN_BACKOFF_MILLIS = 250;
+  private static final long MAX_BACKOFF_MILLIS = 5000;
+  // A link carries everything for a whole node, so it may fall further behind than a client
+  private static final int LINK_CAPACITY = 64 * 1024;
+
+  private final ChatServer server;
+  private final Members users;
+  private final PresenceTracker presence;
+  private final FileRelay files;
+  private final ServerConfig linkConfig;
+  private final String nodeId;
+  private final ServerSocket listener;
+  private final List<Peer> peers = new ArrayList<>();
+  // Users logged in on other nodes, and which node; a name claimed twice maps to the lower node id
+  private final ConcurrentHashMap<String, String> directory = new ConcurrentHashMap<>();
+  // The link each node currently sends on; a node that redials replaces its old link
+  private final ConcurrentHashMap<String, Socket> inbound = new ConcurrentHashMap<>();
+  // Held while local presence goes out to the peers, so a link's user list and the updates after it are in order
+  private final ReentrantLock lock = new ReentrantLock();
+
+  Cluster(ChatServer server, ServerConfig config, Members users, PresenceTracker presence, FileRelay files) throws IOException {
+    this.server = server;
+    this.users = users;
+    this.presence = presence;
+    this.files = files;
+    this.nodeId = config.getNodeId() != null ? config.getNodeId() : defaultNodeId(config.getPort());
+    // A link never drops a message: it gives up instead, and the redial resends the user list
+    this.linkConfig = new ServerConfig();
+    linkConfig.setOutboundCapacity(LINK_CAPACITY);
+    linkConfig.setOutboundHighWaterMark(LINK_CAPACITY);
+    linkConfig.setControlLaneWeight(config.getControlLaneWeight());
+    linkConfig.setSlowConsumerPolicy(ServerConfig.SlowConsumerPolicy.DISCONNECT);
+    for (String address : config.getClusterPeers()) {
+      peers.add(new Peer(address));
+    }
+    this.listener = new ServerSocket(config.getClusterPort());
+    System.out.println("Cluster node " + nodeId + " on port " + config.getClusterPort() + " with " + peers.size() + " peer(s)");
+  }
+
+  private static String defaultNodeId(int port) {
+    try {
+      return InetAddress.getLocalHost().getHostName() + ":" + port;
+    } catch (IOException e) {
+      return "localhost:" + port;
+    }
+  }
+
+  void start() {
+    Thread.ofPlatform().name("cluster-accept").daemon().start(this::acceptLoop);
+    for (Peer peer : peers) {
+      Thread.ofPlatform().name("cluster-link-" + peer.address).daemon().start(peer::run);
+    }
+  }
+
+  // Nodes with a link to this one
+  long getNodeCount() {
+    return inbound.size();
+  }
+
+  long getRemoteUserCount() {
+    return directory.size();
+  }
+
+  boolean isRemote(String username) {
+    return directory.containsKey(username);
+  }
+
+  // Local presence, for every other node
+
+  void joined(String username) {
+    presenceChanged("+" + username + ",");
+  }
+
+  void left(String username) {
+    presenceChanged("-" + username + ",");
+  }
+
+  private void presenceChanged(String delta) {
+    lock.lock();
+    try {
+      ChatMessage msg = new ChatMessage(ChatMessage.MessageType.PRESENCE, nodeId, delta);
+      EncodedMessage encoded = new EncodedMessage(msg);
+      try {
+        for (Peer peer : peers) {
+          peer.send(encoded);
+        }
+      } finally {
+        encoded.release();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Local messages, for other nodes
+
+  void broadcast(EncodedMessage encoded) {
+    EncodedMessage linked = withFile(encoded);
+    try {
+      for (Peer peer : peers) {
+        peer.send(linked);
+      }
+    } finally {
+      linked.release();
+    }
+  }
+
+  // Returns false if nobody on another (reachable) node has the name
+  boolean sendTo(String username, EncodedMessage encoded) {
+    String node = directory.get(username);
+    if (node == null) {
+      return false;
+    }
+    for (Peer peer : peers) {
+      if (node.equals(peer.node)) {
+        EncodedMessage linked = withFile(encoded);
+        try {
+          return peer.send(linked);
+        } finally {
+          linked.release();
+        }
+      }
+    }
+    return false;
+  }
+
+  // A file reference goes with the file itself, streamed from the start
+  private static EncodedMessage withFile(EncodedMessage encoded) {
+    Blob file = encoded.getBlob();
+    return file == null ? encoded.retain() : new EncodedMessage(encoded.getMessage(), file, 0);
+  }
+
+  // Links from other nodes
+
+  private void acceptLoop() {
+    while (true) {
+      try {
+        Socket socket = listener.accept();
+        Thread.ofPlatform().name("cluster-in-" + socket.getRemoteSocketAddress()).daemon().start(() -> serve(socket));
+      } catch (IOException e) {
+        System.err.println("Error accepting cluster connection: " + e.getMessage());
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    String node = null;
+    Map<String, SpooledFile> incoming = new HashMap<>();
+    try (socket) {
+      socket.setTcpNoDelay(true);
+      socket.setKeepAlive(true);
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+      int version = Math.min(FrameCodec.readHello(in), FrameCodec.VERSION);
+      ChatMessage hello = FrameCodec.read(in);
+      if (hello.getType() != ChatMessage.MessageType.SESSION || hello.getSender() == null) {
+        throw new IOException("not a cluster node");
+      }
+      FrameCodec.writeHello(out, version);
+      FrameCodec.write(new ChatMessage(ChatMessage.MessageType.SESSION, nodeId, null), out);
+      out.flush();
+      if (hello.getSender().equals(nodeId)) {
+        // This node dialed itself; it hangs up once it sees the answer
+        return;
+      }
+      node = hello.getSender();
+      Socket previous = inbound.put(node, socket);
+      if (previous != null) {
+        previous.close();
+      }
+      System.out.println("Cluster node " + node + " connected");
+      while (true) {
+        receive(node, FrameCodec.read(in), incoming);
+      }
+    } catch (IOException e) {
+      // Closed below
+    } finally {
+      for (SpooledFile upload : incoming.values()) {
+        upload.discard();
+      }
+      if (node != null && inbound.remove(node, socket)) {
+        System.out.println("Cluster node " + node + " disconnected");
+        nodeLeft(node);
+      }
+    }
+  }
+
+  private void receive(String node, ChatMessage msg, Map<String, SpooledFile> incoming) {
+    switch (msg.getType()) {
+      case USER_LIST:
+        synced(node, msg.getContent());
+        break;
+      case PRESENCE:
+        for (String change : names(msg.getContent())) {
+          if (change.startsWith("+")) {
+            remoteJoined(node, change.substring(1));
+          } else if (change.startsWith("-")) {
+            remoteLeft(node, change.substring(1));
+          }
+        }
+        break;
+      case FILE:
+        try {
+          SpooledFile upload = files.receiveRelayed(msg);
+          if (!upload.isComplete()) {
+            incoming.put(msg.getContentHash(), upload);
+          }
+        } catch (IOException e) {
+          System.err.println("Error receiving " + msg.getFileName() + " from " + node + ": " + e.getMessage());
+        }
+        break;
+      case FILE_CHUNK:
+        SpooledFile upload = incoming.get(msg.getTransferId());
+        if (upload == null) {
+          break;
+        }
+        try {
+          if (files.relayedChunk(upload, msg)) {
+            incoming.remove(msg.getTransferId());
+          }
+        } catch (IOException e) {
+          incoming.remove(msg.getTransferId());
+          System.err.println("Error receiving " + upload.getAnnounce().getFileName() + " from " + node + ": " + e.getMessage());
+        }
+        break;
+      default:
+        EncodedMessage encoded = new EncodedMessage(msg);
+        try {
+          server.relayed(encoded);
+        } finally {
+          encoded.release();
+        }
+    }
+  }
+
+  // Everyone logged in on the node, as it (re)connects
+  private void synced(String node, String content) {
+    Set<String> current = new HashSet<>(names(content));
+    for (Map.Entry<String, String> entry : directory.entrySet()) {
+      if (entry.getValue().equals(node) && !current.contains(entry.getKey())) {
+        remoteLeft(node, entry.getKey());
+      }
+    }
+    for (String username : current) {
+      remoteJoined(node, username);
+    }
+  }
+
+  private void remoteJoined(String node, String username) {
+    String holder = directory.merge(username, node, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+    if (!holder.equals(node)) {
+      return;
+    }
+    if (users.get(username) != null) {
+      if (nodeId.compareTo(node) < 0) {
+        // Ours keeps the name; the other node logs its user out when it hears of ours
+        directory.remove(username, node);
+        return;
+      }
+      server.evict(username);
+    }
+    presence.remoteJoined(username);
+  }
+
+  private void remoteLeft(String node, String username) {
+    if (directory.remove(username, node)) {
+      presence.remoteLeft(username);
+    }
+  }
+
+  private void nodeLeft(String node) {
+    for (Map.Entry<String, String> entry : directory.entrySet()) {
+      if (entry.getValue().equals(node)) {
+        remoteLeft(node, entry.getKey());
+      }
+    }
+  }
+
+  private static List<String> names(String content) {
+    List<String> names = new ArrayList<>();
+    if (content != null) {
+      for (String name : content.split(",")) {
+        if (!name.isEmpty()) {
+          names.add(name);
+        }
+      }
+    }
+    return names;
+  }
+
+  // A link to another node, dialed and redialed by its own thread; only ever written to
+  private final class Peer {
+    final String address;
+    // Who answers at the address, once a link has come up
+    volatile String node;
+    // Null while the link is down
+    private volatile OutboundQueue queue;
+    private volatile Socket socket;
+    private byte[] chunkBuffer;
+
+    Peer(String address) {
+      this.address = address;
+    }
+
+    // Returns false if the link is down and the message was dropped
+    boolean send(EncodedMessage msg) {
+      OutboundQueue q = queue;
+      if (q == null) {
+        return false;
+      }
+      if (!q.offer(msg)) {
+        System.out.println("Cluster node " + node + " is not keeping up, reconnecting (dropped " + q.getDroppedCount() + ")");
+        closeSocket();
+      }
+      return true;
+    }
+
+    void run() {
+      long backoff = MIN_BACKOFF_MILLIS;
+      boolean failing = false;
+      while (true) {
+        try {
+          if (!link()) {
+            return;
+          }
+          backoff = MIN_BACKOFF_MILLIS;
+          failing = false;
+        } catch (IOException e) {
+          // Once per outage, not on every retry
+          if (!failing) {
+            System.err.println("Cluster link to " + address + " down: " + e.getMessage());
+            failing = true;
+          }
+        }
+        try {
+          TimeUnit.MILLISECONDS.sleep(backoff);
+        } catch (InterruptedException e) {
+          return;
+        }
+        backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+      }
+    }
+
+    // Connects and writes until the link drops; returns false if the address turns out to be this node
+    private boolean link() throws IOException {
+      int colon = address.lastIndexOf(':');
+      if (colon < 0) {
+        throw new IOException("expected host:port");
+      }
+      Socket s = new Socket();
+      socket = s;
+      try {
+        s.connect(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))), CONNECT_TIMEOUT_MILLIS);
+        s.setTcpNoDelay(true);
+        s.setKeepAlive(true);
+        OutputStream out = new BufferedOutputStream(s.getOutputStream());
+        InputStream in = new BufferedInputStream(s.getInputStream());
+        FrameCodec.writeHello(out, FrameCodec.VERSION);
+        FrameCodec.write(new ChatMessage(ChatMessage.MessageType.SESSION, nodeId, null), out);
+        out.flush();
+        FrameCodec.readHello(in);
+        String answered = FrameCodec.read(in).getSender();
+        if (nodeId.equals(answered)) {
+          return false;
+        }
+        node = answered;
+        OutboundQueue q = new OutboundQueue(linkConfig);
+        lock.lock();
+        try {
+          StringBuilder sb = new StringBuilder();
+          for (String username : users.names()) {
+            sb.append(username).append(",");
+          }
+          EncodedMessage list = new EncodedMessage(new ChatMessage(ChatMessage.MessageType.USER_LIST, nodeId, sb.toString()));
+          q.offer(list);
+          list.release();
+          queue = q;
+        } finally {
+          lock.unlock();
+        }
+        System.out.println("Cluster link to " + node + " at " + address + " up");
+        // The other node never writes after its answer, so a read only returns once the link is gone;
+        // without this an idle link would not notice until the next write
+        Thread.ofPlatform().name("cluster-watch-" + address).daemon().start(() -> {
+          try {
+            while (in.read() >= 0) {
+            }
+          } catch (IOException e) {
+            // Closed below
+          }
+          q.close();
+        });
+        try {
+          writeLoop(q, out);
+        } finally {
+          queue = null;
+          q.close();
+        }
+        throw new IOException("closed");
+      } catch (NumberFormatException e) {
+        throw new IOException("bad port in " + address);
+      } finally {
+        s.close();
+      }
+    }
+
+    private void writeLoop(OutboundQueue q, OutputStream out) throws IOException {
+      try {
+        EncodedMessage msg;
+        while ((msg = q.take()) != null) {
+          try {
+            out.write(msg.bytes(EncodedMessage.Format.BINARY));
+            Blob file = msg.getFile(EncodedMessage.Format.BINARY);
+            if (file != null) {
+              writeChunks(q, file, out);
+            }
+            if (q.isEmpty()) {
+              out.flush();
+            }
+          } finally {
+            msg.release();
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    // As ClientHandler does, with chat written between the chunks of a file
+    private void writeChunks(OutboundQueue q, Blob file, OutputStream out) throws IOException {
+      if (chunkBuffer == null) {
+        chunkBuffer = new byte[64 * 1024];
+      }
+      for (int i = 0; i < file.getChunkCount(); i++) {
+        out.write(file.chunkHeader(i));
+        file.writeTo(file.chunkStart(i), file.chunkEnd(i) - file.chunkStart(i), out, chunkBuffer);
+        q.bulkWritten();
+        EncodedMessage msg;
+        while ((msg = q.pollControl()) != null) {
+          try {
+            out.write(msg.bytes(EncodedMessage.Format.BINARY));
+          } finally {
+            msg.release();
+          }
+        }
+      }
+    }
+
+    private void closeSocket() {
+      Socket s = socket;
+      if (s != null) {
+        try { s.close(); } catch (IOException e) {}
+      }
+    }
+  }
+}
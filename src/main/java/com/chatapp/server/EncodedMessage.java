@@ -0,0 +1,264 @@
+package com.chatapp.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * A ChatMessage encoded at most once per wire format and shared by every recipient. Recipients get
+ * independent read-only views over the same bytes, so fanning a 10 MB file out to 500 users costs
+ * one encoding instead of 500.
+ *
+ * Reference counted: the creator holds one reference, every outbound queue that accepts the message
+ * retains another and releases it once written or dropped. Small direct buffers go back to a pool
+ * when the last reference is released.
+ *
+ * A message about a stored file can carry the Blob itself. Legacy clients always get the whole file
+ * in one message. Binary clients get just the message, or, for a fetch, the message followed by the
+ * blob's chunks from fileOffset on, streamed straight from disk.
+ *
+ * No monitor is held while encoding: the first writer to need a format encodes it, which for a
+ * legacy client can mean reading a whole file from disk, and every other writer waits on its result
+ * without pinning a virtual thread's carrier.
+ */
+public final class EncodedMessage {
+  public enum Format {
+    BINARY, LEGACY
+  }
+
+  // Stream header an ObjectInputStream expects before the first legacy message
+  static final byte[] LEGACY_STREAM_HEADER = { (byte) 0xAC, (byte) 0xED, 0x00, 0x05 };
+
+  static final long NO_STREAM = -1;
+  // Largest file inlined for legacy clients; encoding one takes several copies of it on the heap
+  static final int MAX_LEGACY_FILE_SIZE = 16 * 1024 * 1024;
+
+  private static final int POOLED_BUFFER_SIZE = 8 * 1024;
+  private static final int MAX_POOLED_BUFFERS = 1024;
+  private static final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+  private static final AtomicInteger pooled = new AtomicInteger();
+
+  private final ChatMessage message;
+  private final Blob file;
+  private final long fileOffset;
+  private final AtomicInteger refCount = new AtomicInteger(1);
+  // Per format: the heap encoding, once someone has started it
+  private final AtomicReferenceArray<CompletableFuture<byte[]>> encodings = new AtomicReferenceArray<>(Format.values().length);
+  private final AtomicReferenceArray<ByteBuffer> direct = new AtomicReferenceArray<>(Format.values().length);
+  // Guards making the direct copies and handing pooled buffers back; never held while encoding
+  private final ReentrantLock lock = new ReentrantLock();
+  private final ByteBuffer[] pooledBuffers = new ByteBuffer[Format.values().length];
+
+  public EncodedMessage(ChatMessage message) {
+    this(message, null, 0);
+  }
+
+  // fileOffset is where binary clients start streaming the blob, or NO_STREAM to send only the message
+  EncodedMessage(ChatMessage message, Blob file, long fileOffset) {
+    this.message = message;
+    this.file = file == null ? null : file.retain();
+    this.fileOffset = fileOffset;
+  }
+
+  // A message whose binary encoding is already known, such as one read back from the history log
+  EncodedMessage(ChatMessage message, byte[] binary) {
+    this(message, null, 0);
+    this.encodings.set(Format.BINARY.ordinal(), CompletableFuture.completedFuture(binary));
+  }
+
+  public ChatMessage getMessage() {
+    return message;
+  }
+
+  // Blob to stream after the message; null unless this is a fetch response to a binary client
+  Blob getFile(Format format) {
+    return format == Format.BINARY && fileOffset != NO_STREAM ? file : null;
+  }
+
+  long getFileOffset() {
+    return fileOffset;
+  }
+
+  // The stored file the message is about, if it carries one, streamed or not
+  Blob getBlob() {
+    return file;
+  }
+
+  public EncodedMessage retain() {
+    int previous = refCount.getAndIncrement();
+    if (previous <= 0) {
+      throw new IllegalStateException("EncodedMessage already released");
+    }
+    return this;
+  }
+
+  public void release() {
+    int remaining = refCount.decrementAndGet();
+    if (remaining == 0) {
+      lock.lock();
+      try {
+        for (int i = 0; i < pooledBuffers.length; i++) {
+          if (pooledBuffers[i] != null) {
+            recycle(pooledBuffers[i]);
+            pooledBuffers[i] = null;
+            direct.set(i, null);
+          }
+        }
+      } finally {
+        lock.unlock();
+      }
+      if (file != null) {
+        file.release();
+      }
+    } else if (remaining < 0) {
+      throw new IllegalStateException("EncodedMessage released too often");
+    }
+  }
+
+  // Heap encoding, for stream-based writers
+  public byte[] bytes(Format format) {
+    return bytes(format, null);
+  }
+
+  // As bytes(format), with the time spent encoding, if any, recorded in metrics
+  byte[] bytes(Format format, ServerMetrics metrics) {
+    int i = format.ordinal();
+    while (true) {
+      CompletableFuture<byte[]> encoding = encodings.get(i);
+      if (encoding != null) {
+        return await(encoding);
+      }
+      CompletableFuture<byte[]> mine = new CompletableFuture<>();
+      if (encodings.compareAndSet(i, null, mine)) {
+        try {
+          byte[] encoded = encode(format, metrics);
+          mine.complete(encoded);
+          return encoded;
+        } catch (RuntimeException e) {
+          // Whoever asks next tries again
+          encodings.compareAndSet(i, mine, null);
+          mine.completeExceptionally(e);
+          throw e;
+        }
+      }
+    }
+  }
+
+  private byte[] encode(Format format, ServerMetrics metrics) {
+    long start = System.nanoTime();
+    byte[] encoded = format == Format.BINARY ? FrameCodec.encode(message) : encodeLegacy(file == null ? message : materialize());
+    if (metrics != null) {
+      metrics.encoded(System.nanoTime() - start);
+    }
+    return encoded;
+  }
+
+  private static byte[] await(CompletableFuture<byte[]> encoding) {
+    try {
+      return encoding.join();
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException cause ? cause : e;
+    }
+  }
+
+  // Fresh read-only view over the shared off-heap encoding, for channel writes
+  public ByteBuffer buffer(Format format) {
+    return buffer(format, null);
+  }
+
+  ByteBuffer buffer(Format format, ServerMetrics metrics) {
+    int i = format.ordinal();
+    ByteBuffer shared = direct.get(i);
+    if (shared == null) {
+      // Encoded, or waited for, before taking the lock; the copy under it is only a memory copy
+      byte[] encoded = bytes(format, metrics);
+      lock.lock();
+      try {
+        shared = direct.get(i);
+        if (shared == null) {
+          ByteBuffer target;
+          if (encoded.length <= POOLED_BUFFER_SIZE) {
+            target = acquire();
+            pooledBuffers[i] = target;
+          } else {
+            target = ByteBuffer.allocateDirect(encoded.length);
+          }
+          target.put(encoded).flip();
+          shared = target.asReadOnlyBuffer();
+          direct.set(i, shared);
+          // The direct copy is all channel writers need
+          encodings.set(i, null);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    return shared.duplicate();
+  }
+
+  // Legacy clients only understand a file as one message carrying all of its data
+  private ChatMessage materialize() {
+    if (file.getSize() <= MAX_LEGACY_FILE_SIZE) {
+      try {
+        ChatMessage whole = new ChatMessage(ChatMessage.MessageType.FILE, message.getSender(), "File");
+        whole.setFileName(message.getFileName());
+        whole.setTargetUser(message.getTargetUser());
+        whole.setFileData(file.readAll());
+        return whole;
+      } catch (IOException e) {
+        System.err.println("Error reading stored file " + message.getFileName() + ": " + e.getMessage());
+      }
+    }
+    return new ChatMessage(ChatMessage.MessageType.TEXT, "Server",
+        message.getSender() + " sent " + message.getFileName() + ", which could not be delivered to this client version.");
+  }
+
+  /*
+   * A legacy message is written as TC_RESET followed by the object, exactly as a fresh
+   * ObjectOutputStream would write it. The reset makes the receiver forget earlier handles, so the
+   * same bytes are valid on every legacy stream regardless of what was sent on it before.
+   */
+  private static byte[] encodeLegacy(ChatMessage message) {
+    try {
+      ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(buf);
+      out.writeObject(message);
+      out.flush();
+      byte[] stream = buf.toByteArray();
+      int headerLength = LEGACY_STREAM_HEADER.length;
+      byte[] encoded = new byte[stream.length - headerLength + 1];
+      encoded[0] = ObjectStreamConstants.TC_RESET;
+      System.arraycopy(stream, headerLength, encoded, 1, stream.length - headerLength);
+      return encoded;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static ByteBuffer acquire() {
+    ByteBuffer buf = pool.poll();
+    if (buf == null) {
+      return ByteBuffer.allocateDirect(POOLED_BUFFER_SIZE);
+    }
+    pooled.decrementAndGet();
+    return buf.clear();
+  }
+
+  private static void recycle(ByteBuffer buf) {
+    if (pooled.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+      pool.add(buf);
+    } else {
+      pooled.decrementAndGet();
+    }
+  }
+}
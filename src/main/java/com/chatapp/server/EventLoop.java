@@ -0,0 +1,140 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// One selector thread serving many NioClientConnections; all channel I/O for a connection happens here
+class EventLoop implements Runnable {
+  private final Selector selector;
+  private final Thread thread;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean wakeupPending = new AtomicBoolean();
+  // Delayed tasks, soonest first; only touched on the loop thread. For short delays such as write
+  // batching, which the server's timer wheel is too coarse for.
+  private final PriorityQueue<Delayed> delayed = new PriorityQueue<>();
+  private long delayedCount;
+
+  private record Delayed(long deadline, long order, Runnable task) implements Comparable<Delayed> {
+    public int compareTo(Delayed other) {
+      int byDeadline = Long.compare(deadline - other.deadline, 0);
+      return byDeadline != 0 ? byDeadline : Long.compare(order, other.order);
+    }
+  }
+
+  EventLoop(String name) throws IOException {
+    this.selector = Selector.open();
+    this.thread = new Thread(this, name);
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  boolean inEventLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  Selector selector() {
+    return selector;
+  }
+
+  // Runs the task on this loop's thread; safe to call from any thread
+  void execute(Runnable task) {
+    tasks.add(task);
+    if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+      selector.wakeup();
+    }
+  }
+
+  // Runs the task on this loop's thread once delayNanos have passed; safe to call from any thread
+  void schedule(Runnable task, long delayNanos) {
+    long deadline = System.nanoTime() + delayNanos;
+    execute(() -> delayed.add(new Delayed(deadline, delayedCount++, task)));
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        // Tasks queued from this thread, e.g. by a handler, never woke the selector
+        long wait = tasks.isEmpty() ? untilNextDelayed() : 0;
+        if (wait < 0) {
+          selector.select();
+        } else if (wait == 0) {
+          selector.selectNow();
+        } else {
+          selector.select(wait);
+        }
+        wakeupPending.set(false);
+        runTasks();
+        runDelayed();
+
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          NioClientConnection conn = (NioClientConnection) key.attachment();
+          try {
+            if (key.isReadable()) {
+              conn.handleRead();
+            }
+            if (key.isValid() && key.isWritable()) {
+              conn.handleWrite();
+            }
+          } catch (CancelledKeyException e) {
+            conn.close();
+          } catch (RuntimeException e) {
+            // A bug handling one connection's message costs that connection, not the whole loop
+            System.err.println("Error serving " + conn.getUsername() + ", closing the connection: " + e);
+            e.printStackTrace();
+            conn.close();
+          }
+        }
+      } catch (IOException e) {
+        System.err.println("Event loop error: " + e.getMessage());
+      }
+    }
+  }
+
+  // Milliseconds until the next delayed task is due, rounded up; -1 if there is none
+  private long untilNextDelayed() {
+    Delayed next = delayed.peek();
+    if (next == null) {
+      return -1;
+    }
+    long nanos = next.deadline - System.nanoTime();
+    return nanos <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(nanos + 999_999);
+  }
+
+  private void runDelayed() {
+    long now = System.nanoTime();
+    Delayed next;
+    while ((next = delayed.peek()) != null && next.deadline - now <= 0) {
+      delayed.poll();
+      try {
+        next.task.run();
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
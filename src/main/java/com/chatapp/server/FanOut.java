@@ -0,0 +1,88 @@
+package com.chatapp.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Delivers a message to every member of an audience. Sending only enqueues, but for tens of
+ * thousands of recipients the enqueues alone add up, so a large audience is split by shard: the
+ * broadcasting thread and helpers from a dedicated pool claim shards one at a time until none are
+ * left. The broadcaster returns only once every member has the message queued, so messages still
+ * reach each client in the order they were broadcast.
+ *
+ * A helper that gets to run only after the broadcaster has claimed everything finds nothing to do,
+ * so concurrent broadcasts never wait in line for the pool; at worst each does its own work.
+ */
+final class FanOut {
+  private final ForkJoinPool pool;
+  private final int helpers;
+  private final int threshold;
+
+  FanOut(ServerConfig config) {
+    this.helpers = config.getFanoutThreads() - 1;
+    this.threshold = config.getFanoutParallelThreshold();
+    this.pool = helpers > 0 ? new ForkJoinPool(helpers) : null;
+  }
+
+  // Sends to every member except the sender
+  void send(Members members, EncodedMessage encoded, ClientConnection sender) {
+    if (pool == null || members.size() < threshold) {
+      for (int i = 0; i < Members.SHARDS; i++) {
+        sendShard(members, i, encoded, sender);
+      }
+      return;
+    }
+    Broadcast broadcast = new Broadcast(members, encoded, sender);
+    for (int i = 0; i < helpers; i++) {
+      pool.execute(broadcast::work);
+    }
+    broadcast.work();
+    // Whatever is left is being sent by helpers right now
+    boolean interrupted = false;
+    while (true) {
+      try {
+        broadcast.done.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void sendShard(Members members, int shard, EncodedMessage encoded, ClientConnection sender) {
+    for (ClientConnection client : members.shard(shard)) {
+      if (client != sender) {
+        client.send(encoded);
+      }
+    }
+  }
+
+  private static final class Broadcast {
+    private final Members members;
+    private final EncodedMessage encoded;
+    private final ClientConnection sender;
+    private final AtomicInteger next = new AtomicInteger();
+    private final CountDownLatch done = new CountDownLatch(Members.SHARDS);
+
+    Broadcast(Members members, EncodedMessage encoded, ClientConnection sender) {
+      this.members = members;
+      this.encoded = encoded;
+      this.sender = sender;
+    }
+
+    void work() {
+      int shard;
+      while ((shard = next.getAndIncrement()) < Members.SHARDS) {
+        try {
+          sendShard(members, shard, encoded, sender);
+        } finally {
+          done.countDown();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,301 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Chunked file transfers. An upload is a FILE announce (transfer id, name, size, SHA-256, optional
+ * target and thumbnail) followed by FILE_CHUNK messages (offset, data, CRC32); each accepted chunk is
+ * spooled to disk and acknowledged with a FILE_ACK carrying the new offset. Announcing the same
+ * transfer id again resumes from the last acknowledged offset, e.g. after a reconnect. If the store
+ * already has the announced hash, the first ack covers the whole file and nothing is uploaded.
+ *
+ * Finished uploads go into the BlobStore and recipients get only a reference: name, size, hash and
+ * thumbnail. A client that wants the file sends FILE_FETCH with the hash and the offset it already
+ * has, and gets a FILE announce followed by the chunks, streamed from disk.
+ *
+ * In a cluster, another node pushes a file along with its reference, in the same chunks, and the
+ * reference goes out here once the file is in this node's store.
+ */
+class FileRelay {
+  static final int MAX_THUMBNAIL_SIZE = 256 * 1024;
+  private static final int WHOLE_FILE_CHUNK_SIZE = 64 * 1024;
+
+  private final ChatServer server;
+  private final Path dir;
+  private final long maxFileSize;
+  private final long retentionMillis;
+  private final BlobStore store;
+  // Uploads by transfer id, kept for the retention period after their last activity so they can resume
+  private final ConcurrentHashMap<String, SpooledFile> uploads = new ConcurrentHashMap<>();
+
+  FileRelay(ChatServer server, ServerConfig config, ScheduledExecutorService scheduler) throws IOException {
+    this.server = server;
+    this.dir = Files.createDirectories(config.getFilesDir());
+    this.maxFileSize = config.getMaxFileSize();
+    this.retentionMillis = config.getFileRetentionMillis();
+    // Spool files of a previous run can no longer be resumed: their index lived in memory
+    try (DirectoryStream<Path> orphans = Files.newDirectoryStream(dir, "upload-*.part")) {
+      for (Path orphan : orphans) {
+        Files.deleteIfExists(orphan);
+      }
+    }
+    this.store = new BlobStore(dir.resolve("blobs"), config.getFileStoreQuota());
+    long sweepMillis = Math.max(1000, retentionMillis / 4);
+    scheduler.scheduleWithFixedDelay(this::expire, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+  }
+
+  // New upload, or the uploader resuming one after a reconnect
+  void announce(ChatMessage msg, ClientConnection sender) {
+    if (msg.getFileName() == null || msg.getFileSize() < 0 || msg.getFileSize() > maxFileSize) {
+      reply(sender, "File " + msg.getFileName() + " rejected: files are limited to " + maxFileSize + " bytes.");
+      return;
+    }
+    if (msg.getFileData() != null && msg.getFileData().length > MAX_THUMBNAIL_SIZE) {
+      msg.setFileData(null);
+    }
+    SpooledFile upload = uploads.get(msg.getTransferId());
+    if (upload == null && msg.getContentHash() != null) {
+      Blob blob = store.get(msg.getContentHash());
+      if (blob != null) {
+        // Already stored: acknowledge everything and share the existing copy
+        try {
+          acknowledge(msg.getTransferId(), blob.getSize(), sender);
+          share(msg, sender, blob);
+        } finally {
+          blob.release();
+        }
+        return;
+      }
+    }
+    boolean created = false;
+    if (upload == null) {
+      try {
+        SpooledFile spooled = new SpooledFile(msg, sender.getUsername(), dir);
+        upload = uploads.putIfAbsent(msg.getTransferId(), spooled);
+        if (upload == null) {
+          upload = spooled;
+          created = true;
+        } else {
+          spooled.discard();
+        }
+      } catch (IOException e) {
+        System.err.println("Error creating spool file: " + e.getMessage());
+        reply(sender, "File " + msg.getFileName() + " could not be stored.");
+        return;
+      }
+    }
+    if (!upload.getOwner().equals(sender.getUsername())) {
+      reply(sender, "File " + msg.getFileName() + " rejected: transfer id already in use.");
+      return;
+    }
+    upload.touch();
+    acknowledge(upload.getTransferId(), upload.getReceived(), sender);
+    if (created && upload.isComplete()) {
+      // Empty file, nothing to upload
+      completed(upload, sender);
+    }
+  }
+
+  void chunk(ChatMessage msg, ClientConnection sender) {
+    SpooledFile upload = uploads.get(msg.getTransferId());
+    if (upload == null || !upload.getOwner().equals(sender.getUsername()) || upload.isComplete()) {
+      return;
+    }
+    try {
+      switch (upload.append(msg)) {
+        case ACCEPTED:
+          acknowledge(upload.getTransferId(), upload.getReceived(), sender);
+          if (upload.isComplete()) {
+            completed(upload, sender);
+          }
+          break;
+        case REJECTED:
+          // Tell the uploader where to rewind to
+          acknowledge(upload.getTransferId(), upload.getReceived(), sender);
+          break;
+        case DROPPED:
+          break;
+      }
+    } catch (IOException e) {
+      System.err.println("Error spooling " + upload.getAnnounce().getFileName() + ": " + e.getMessage());
+      uploads.remove(upload.getTransferId(), upload);
+      upload.discard();
+      reply(sender, "File " + upload.getAnnounce().getFileName() + " could not be stored.");
+    }
+  }
+
+  /*
+   * Old clients send a file as one message carrying all of its data. It is stored like an upload, so
+   * everyone else still gets a reference instead of the bytes.
+   */
+  void storeWhole(ChatMessage msg, ClientConnection sender) {
+    byte[] data = msg.getFileData() == null ? new byte[0] : msg.getFileData();
+    ChatMessage announce = new ChatMessage(ChatMessage.MessageType.FILE, sender.getUsername(), "File");
+    announce.setTransferId(UUID.randomUUID().toString());
+    announce.setFileName(msg.getFileName() == null ? "file" : msg.getFileName());
+    announce.setTargetUser(msg.getTargetUser());
+    announce.setFileSize(data.length);
+    if (data.length > maxFileSize) {
+      reply(sender, "File " + announce.getFileName() + " rejected: files are limited to " + maxFileSize + " bytes.");
+      return;
+    }
+    SpooledFile upload = null;
+    try {
+      upload = new SpooledFile(announce, sender.getUsername(), dir);
+      for (int offset = 0; offset < data.length; offset += WHOLE_FILE_CHUNK_SIZE) {
+        ChatMessage chunk = new ChatMessage(ChatMessage.MessageType.FILE_CHUNK, sender.getUsername(), null);
+        chunk.setOffset(offset);
+        chunk.setFileData(Arrays.copyOfRange(data, offset, Math.min(data.length, offset + WHOLE_FILE_CHUNK_SIZE)));
+        chunk.setChecksum(SpooledFile.checksum(chunk.getFileData()));
+        upload.append(chunk);
+      }
+      completed(upload, sender);
+    } catch (IOException e) {
+      System.err.println("Error storing " + announce.getFileName() + ": " + e.getMessage());
+      if (upload != null) {
+        upload.discard();
+      }
+      reply(sender, "File " + announce.getFileName() + " could not be stored.");
+    }
+  }
+
+  // A client asking for a stored file, from the offset it already has
+  void fetch(ChatMessage msg, ClientConnection client) {
+    Blob blob = msg.getContentHash() == null ? null : store.get(msg.getContentHash());
+    if (blob == null) {
+      reply(client, "File " + msg.getContentHash() + " is no longer available.");
+      return;
+    }
+    ChatMessage announce = new ChatMessage(ChatMessage.MessageType.FILE, "Server", "File");
+    announce.setTransferId(blob.getHash());
+    announce.setContentHash(blob.getHash());
+    announce.setFileSize(blob.getSize());
+    EncodedMessage response = new EncodedMessage(announce, blob, Math.max(0, msg.getOffset()));
+    blob.release();
+    try {
+      client.send(response);
+    } finally {
+      response.release();
+    }
+  }
+
+  private void completed(SpooledFile upload, ClientConnection uploader) {
+    ChatMessage announce = upload.getAnnounce();
+    try {
+      String hash = upload.finish();
+      if (announce.getContentHash() != null && !announce.getContentHash().equals(hash)) {
+        upload.discard();
+        reply(uploader, "File " + announce.getFileName() + " was corrupted in transit, please send it again.");
+        return;
+      }
+      Blob blob = store.add(upload, hash);
+      try {
+        share(announce, uploader, blob);
+      } finally {
+        blob.release();
+      }
+    } catch (IOException e) {
+      System.err.println("Error storing " + announce.getFileName() + ": " + e.getMessage());
+      upload.discard();
+      reply(uploader, "File " + announce.getFileName() + " could not be stored.");
+    }
+  }
+
+  // Sends everyone (or the room, or the target user) a reference to the stored file
+  private void share(ChatMessage announce, ClientConnection uploader, Blob blob) {
+    ChatMessage reference = new ChatMessage(ChatMessage.MessageType.FILE, uploader.getUsername(), "File");
+    reference.setFileName(announce.getFileName());
+    reference.setTargetUser(announce.getTargetUser());
+    reference.setRoom(announce.getRoom());
+    reference.setFileSize(blob.getSize());
+    reference.setContentHash(blob.getHash());
+    // Thumbnail, if the uploader made one
+    reference.setFileData(announce.getFileData());
+
+    // Legacy clients cannot fetch, so they get the whole file in place of the reference
+    EncodedMessage encoded = new EncodedMessage(reference, blob, EncodedMessage.NO_STREAM);
+    try {
+      if (reference.getTargetUser() == null) {
+        server.broadcast(encoded, uploader);
+      } else if (!server.sendTo(reference.getTargetUser(), encoded)) {
+        reply(uploader, "User " + reference.getTargetUser() + " not found.");
+      }
+    } finally {
+      encoded.release();
+    }
+  }
+
+  // A reference another node is pushing its file with; the chunks that follow go to relayedChunk
+  SpooledFile receiveRelayed(ChatMessage reference) throws IOException {
+    if (reference.getFileSize() < 0 || reference.getFileSize() > maxFileSize) {
+      throw new IOException("File " + reference.getFileName() + " exceeds " + maxFileSize + " bytes");
+    }
+    SpooledFile upload = new SpooledFile(reference, reference.getSender(), dir);
+    if (upload.isComplete()) {
+      completedRelayed(upload);
+    }
+    return upload;
+  }
+
+  // Returns true once the file is complete and has gone out; a chunk out of place loses the file
+  boolean relayedChunk(SpooledFile upload, ChatMessage chunk) throws IOException {
+    if (upload.append(chunk) != SpooledFile.AppendResult.ACCEPTED) {
+      upload.discard();
+      throw new IOException("Relayed file " + upload.getAnnounce().getFileName() + " arrived corrupted");
+    }
+    if (!upload.isComplete()) {
+      return false;
+    }
+    completedRelayed(upload);
+    return true;
+  }
+
+  private void completedRelayed(SpooledFile upload) throws IOException {
+    ChatMessage reference = upload.getAnnounce();
+    String hash = upload.finish();
+    if (!hash.equals(reference.getContentHash())) {
+      upload.discard();
+      throw new IOException("Relayed file " + reference.getFileName() + " does not match its hash");
+    }
+    Blob blob = store.add(upload, hash);
+    EncodedMessage encoded = new EncodedMessage(reference, blob, EncodedMessage.NO_STREAM);
+    blob.release();
+    try {
+      server.relayed(encoded);
+    } finally {
+      encoded.release();
+    }
+  }
+
+  private static void acknowledge(String transferId, long offset, ClientConnection uploader) {
+    ChatMessage ack = new ChatMessage(ChatMessage.MessageType.FILE_ACK, "Server", null);
+    ack.setTransferId(transferId);
+    ack.setOffset(offset);
+    uploader.sendMessage(ack);
+  }
+
+  private static void reply(ClientConnection client, String text) {
+    client.sendMessage(new ChatMessage(ChatMessage.MessageType.TEXT, "Server", text));
+  }
+
+  private void expire() {
+    long cutoff = System.currentTimeMillis() - retentionMillis;
+    Iterator<SpooledFile> it = uploads.values().iterator();
+    while (it.hasNext()) {
+      SpooledFile upload = it.next();
+      if (upload.getLastActivity() < cutoff) {
+        it.remove();
+        upload.discard();
+      }
+    }
+  }
+}
@@ -0,0 +1,394 @@
+package com.chatapp.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Binary wire format shared by the server and ChatFrame.
+ *
+ * A client opens with a hello ("CHAT" + version byte) and the server answers with the version it
+ * accepts. Legacy clients open with the Java serialization header (0xACED) instead, which is how
+ * the server tells the two apart. After the hello every message is one frame:
+ *
+ *   frame := varint bodyLength, body
+ *   body  := type byte (MessageType ordinal), field*
+ *   field := tag byte, varint length, bytes (UTF-8 for strings, varint for numbers, raw for file data)
+ *
+ * Absent fields are simply not written; unknown tags are skipped so fields can be added later. File
+ * data always comes last, so a frame can be written as a header followed straight by file contents.
+ */
+public final class FrameCodec {
+  public static final int VERSION = 1;
+  public static final int HELLO_LENGTH = 5;
+  public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+  private static final byte[] MAGIC = { 'C', 'H', 'A', 'T' };
+
+  private static final int FIELD_SENDER = 1;
+  private static final int FIELD_CONTENT = 2;
+  private static final int FIELD_FILE_NAME = 3;
+  private static final int FIELD_TARGET_USER = 4;
+  private static final int FIELD_FILE_DATA = 5;
+  private static final int FIELD_VERSION = 6;
+  private static final int FIELD_TRANSFER_ID = 7;
+  private static final int FIELD_OFFSET = 8;
+  private static final int FIELD_FILE_SIZE = 9;
+  private static final int FIELD_CHECKSUM = 10;
+  private static final int FIELD_CONTENT_HASH = 11;
+  private static final int FIELD_ROOM = 12;
+  private static final int FIELD_TIMESTAMP = 13;
+
+  private static final ChatMessage.MessageType[] TYPES = ChatMessage.MessageType.values();
+
+  private FrameCodec() {
+  }
+
+  // Handshake
+
+  public static boolean isLegacyStream(int firstByte, int secondByte) {
+    return firstByte == 0xAC && secondByte == 0xED;
+  }
+
+  public static void writeHello(OutputStream out, int version) throws IOException {
+    out.write(MAGIC);
+    out.write(version);
+  }
+
+  public static byte[] hello(int version) {
+    byte[] hello = new byte[HELLO_LENGTH];
+    System.arraycopy(MAGIC, 0, hello, 0, MAGIC.length);
+    hello[MAGIC.length] = (byte) version;
+    return hello;
+  }
+
+  // Returns the version announced by the peer
+  public static int readHello(InputStream in) throws IOException {
+    byte[] hello = new byte[HELLO_LENGTH];
+    readFully(in, hello, 0, hello.length);
+    return parseHello(ByteBuffer.wrap(hello));
+  }
+
+  public static int parseHello(ByteBuffer buf) throws StreamCorruptedException {
+    for (byte b : MAGIC) {
+      if (buf.get() != b) {
+        throw new StreamCorruptedException("invalid protocol hello");
+      }
+    }
+    int version = buf.get() & 0xFF;
+    if (version < 1) {
+      throw new StreamCorruptedException("unsupported protocol version " + version);
+    }
+    return version;
+  }
+
+  // Sessions
+
+  /*
+   * Whether a message from the server counts toward the session sequence. Both sides count the same
+   * messages instead of numbering each frame, so one encoding still serves every recipient. Transfer
+   * frames are left out: an interrupted download resumes by offset instead. So are heartbeats, which
+   * belong to one connection rather than the session.
+   */
+  public static boolean isSequenced(ChatMessage msg) {
+    ChatMessage.MessageType type = msg.getType();
+    return type != ChatMessage.MessageType.SESSION && type != ChatMessage.MessageType.FILE_CHUNK
+        && type != ChatMessage.MessageType.PING && type != ChatMessage.MessageType.PONG
+        && !(type == ChatMessage.MessageType.FILE && msg.getTransferId() != null);
+  }
+
+  // Frames
+
+  public static byte[] encode(ChatMessage msg) {
+    byte[] fileData = msg.getFileData();
+    return encode(msg, fileData == null ? -1 : fileData.length, fileData);
+  }
+
+  /*
+   * Frame prefix for a message whose dataLength bytes of file data are written separately right after
+   * it, e.g. straight from a spool file. The message's own fileData is ignored.
+   */
+  public static byte[] encodeHeader(ChatMessage msg, int dataLength) {
+    return encode(msg, dataLength, null);
+  }
+
+  private static byte[] encode(ChatMessage msg, int dataLength, byte[] data) {
+    byte[] sender = utf8(msg.getSender());
+    byte[] content = utf8(msg.getContent());
+    byte[] fileName = utf8(msg.getFileName());
+    byte[] targetUser = utf8(msg.getTargetUser());
+    byte[] version = varLong(msg.getVersion());
+    byte[] transferId = utf8(msg.getTransferId());
+    byte[] offset = varLong(msg.getOffset());
+    byte[] fileSize = varLong(msg.getFileSize());
+    byte[] checksum = varLong(msg.getChecksum());
+    byte[] contentHash = utf8(msg.getContentHash());
+    byte[] room = utf8(msg.getRoom());
+    byte[] timestamp = varLong(msg.getTimestamp());
+
+    int dataFieldSize = dataLength < 0 ? 0 : 1 + varIntSize(dataLength) + dataLength;
+    int bodyLength = 1 + fieldSize(sender) + fieldSize(content) + fieldSize(fileName) + fieldSize(targetUser)
+        + fieldSize(version) + fieldSize(transferId) + fieldSize(offset) + fieldSize(fileSize) + fieldSize(checksum)
+        + fieldSize(contentHash) + fieldSize(room) + fieldSize(timestamp)
+        + dataFieldSize;
+    int headerLength = varIntSize(bodyLength) + bodyLength - (data == null ? Math.max(dataLength, 0) : 0);
+    ByteBuffer buf = ByteBuffer.allocate(headerLength);
+    putVarInt(buf, bodyLength);
+    buf.put((byte) msg.getType().ordinal());
+    putField(buf, FIELD_SENDER, sender);
+    putField(buf, FIELD_CONTENT, content);
+    putField(buf, FIELD_FILE_NAME, fileName);
+    putField(buf, FIELD_TARGET_USER, targetUser);
+    putField(buf, FIELD_VERSION, version);
+    putField(buf, FIELD_TRANSFER_ID, transferId);
+    putField(buf, FIELD_OFFSET, offset);
+    putField(buf, FIELD_FILE_SIZE, fileSize);
+    putField(buf, FIELD_CHECKSUM, checksum);
+    putField(buf, FIELD_CONTENT_HASH, contentHash);
+    putField(buf, FIELD_ROOM, room);
+    putField(buf, FIELD_TIMESTAMP, timestamp);
+    if (dataLength >= 0) {
+      buf.put((byte) FIELD_FILE_DATA);
+      putVarInt(buf, dataLength);
+      if (data != null) {
+        buf.put(data);
+      }
+    }
+    return buf.array();
+  }
+
+  public static void write(ChatMessage msg, OutputStream out) throws IOException {
+    out.write(encode(msg));
+  }
+
+  // Blocking read of one frame; throws EOFException when the peer closed the stream
+  public static ChatMessage read(InputStream in) throws IOException {
+    int first = in.read();
+    if (first < 0) {
+      throw new EOFException();
+    }
+    int length = first & 0x7F;
+    int shift = 7;
+    int b = first;
+    while ((b & 0x80) != 0) {
+      if (shift > 28 || (b = in.read()) < 0) {
+        throw new StreamCorruptedException("invalid frame length");
+      }
+      length |= (b & 0x7F) << shift;
+      shift += 7;
+    }
+    checkLength(length);
+    byte[] body = new byte[length];
+    readFully(in, body, 0, length);
+    return decode(ByteBuffer.wrap(body));
+  }
+
+  /*
+   * Returns the total size (length prefix included) of the frame starting at buf.position(), or -1 if
+   * the length prefix itself has not fully arrived yet. The buffer is not modified.
+   */
+  public static int frameLength(ByteBuffer buf) throws StreamCorruptedException {
+    int pos = buf.position();
+    int length = 0;
+    for (int shift = 0; shift <= 28; shift += 7) {
+      if (pos >= buf.limit()) {
+        return -1;
+      }
+      int b = buf.get(pos++);
+      length |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        checkLength(length);
+        return pos - buf.position() + length;
+      }
+    }
+    throw new StreamCorruptedException("invalid frame length");
+  }
+
+  // Decodes a complete frame, length prefix included, as sized by frameLength
+  public static ChatMessage decodeFrame(ByteBuffer frame) throws StreamCorruptedException {
+    int length = getVarInt(frame);
+    return decode(frame.slice(frame.position(), length));
+  }
+
+  // Decodes a frame whose length prefix has already been consumed
+  public static ChatMessage decode(ByteBuffer body) throws StreamCorruptedException {
+    try {
+      int type = body.get() & 0xFF;
+      if (type >= TYPES.length) {
+        throw new StreamCorruptedException("unknown message type " + type);
+      }
+      ChatMessage msg = new ChatMessage(TYPES[type], null, null);
+      while (body.hasRemaining()) {
+        int tag = body.get() & 0xFF;
+        int length = getVarInt(body);
+        if (length > body.remaining()) {
+          throw new StreamCorruptedException("truncated field " + tag);
+        }
+        switch (tag) {
+          case FIELD_SENDER:
+            msg.setSender(getString(body, length));
+            break;
+          case FIELD_CONTENT:
+            msg.setContent(getString(body, length));
+            break;
+          case FIELD_FILE_NAME:
+            msg.setFileName(getString(body, length));
+            break;
+          case FIELD_TARGET_USER:
+            msg.setTargetUser(getString(body, length));
+            break;
+          case FIELD_FILE_DATA:
+            byte[] data = new byte[length];
+            body.get(data);
+            msg.setFileData(data);
+            break;
+          case FIELD_VERSION:
+            msg.setVersion(getNumber(body, length));
+            break;
+          case FIELD_TRANSFER_ID:
+            msg.setTransferId(getString(body, length));
+            break;
+          case FIELD_OFFSET:
+            msg.setOffset(getNumber(body, length));
+            break;
+          case FIELD_FILE_SIZE:
+            msg.setFileSize(getNumber(body, length));
+            break;
+          case FIELD_CHECKSUM:
+            msg.setChecksum(getNumber(body, length));
+            break;
+          case FIELD_CONTENT_HASH:
+            msg.setContentHash(getString(body, length));
+            break;
+          case FIELD_ROOM:
+            msg.setRoom(getString(body, length));
+            break;
+          case FIELD_TIMESTAMP:
+            msg.setTimestamp(getNumber(body, length));
+            break;
+          default:
+            body.position(body.position() + length);
+        }
+      }
+      return msg;
+    } catch (BufferUnderflowException e) {
+      throw new StreamCorruptedException("truncated frame");
+    }
+  }
+
+  // Encoding helpers
+
+  private static byte[] utf8(String s) {
+    return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  // Numeric fields are varint payloads; zero is the default and is not written
+  private static byte[] varLong(long value) {
+    if (value == 0) {
+      return null;
+    }
+    ByteBuffer buf = ByteBuffer.allocate(10);
+    putVarLong(buf, value);
+    byte[] encoded = new byte[buf.position()];
+    buf.flip().get(encoded);
+    return encoded;
+  }
+
+  private static int fieldSize(byte[] value) {
+    return value == null ? 0 : 1 + varIntSize(value.length) + value.length;
+  }
+
+  private static void putField(ByteBuffer buf, int tag, byte[] value) {
+    if (value != null) {
+      buf.put((byte) tag);
+      putVarInt(buf, value.length);
+      buf.put(value);
+    }
+  }
+
+  static int varIntSize(int value) {
+    int size = 1;
+    while ((value & ~0x7F) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  static void putVarInt(ByteBuffer buf, int value) {
+    while ((value & ~0x7F) != 0) {
+      buf.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buf.put((byte) value);
+  }
+
+  static void putVarLong(ByteBuffer buf, long value) {
+    while ((value & ~0x7FL) != 0) {
+      buf.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buf.put((byte) value);
+  }
+
+  static long getVarLong(ByteBuffer buf) throws StreamCorruptedException {
+    long value = 0;
+    for (int shift = 0; shift <= 63; shift += 7) {
+      int b = buf.get();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new StreamCorruptedException("varint too long");
+  }
+
+  static int getVarInt(ByteBuffer buf) throws StreamCorruptedException {
+    int value = 0;
+    for (int shift = 0; shift <= 28; shift += 7) {
+      int b = buf.get();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        if (value < 0) {
+          throw new StreamCorruptedException("negative varint");
+        }
+        return value;
+      }
+    }
+    throw new StreamCorruptedException("varint too long");
+  }
+
+  private static long getNumber(ByteBuffer buf, int length) throws StreamCorruptedException {
+    long value = getVarLong(buf.slice(buf.position(), length));
+    buf.position(buf.position() + length);
+    return value;
+  }
+
+  private static String getString(ByteBuffer buf, int length) {
+    String s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+    buf.position(buf.position() + length);
+    return s;
+  }
+
+  private static void checkLength(int length) throws StreamCorruptedException {
+    if (length < 1 || length > MAX_FRAME_SIZE) {
+      throw new StreamCorruptedException("invalid frame length " + length);
+    }
+  }
+
+  private static void readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      int n = in.read(b, off, len);
+      if (n < 0) {
+        throw new EOFException();
+      }
+      off += n;
+      len -= n;
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package com.chatapp.server;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Liveness checks for one connection, run on the server's timer wheel. The connection notes every
+ * message it reads and when a write to the client blocks; the heartbeat pings a binary client that
+ * has gone quiet, and closes the connection once the client stays silent past the idle timeout or
+ * a write blocks past the write timeout. A peer that vanished without closing its socket is thereby
+ * dropped within seconds, through the same path as any other disconnect.
+ *
+ * Legacy clients cannot answer a ping, so once logged in they are only held to the write timeout.
+ * Before login every connection is held to the idle timeout.
+ *
+ * The connection never touches the wheel itself: it only updates timestamps, and each check
+ * schedules the next one for the earliest deadline they imply.
+ */
+final class Heartbeat {
+  interface Connection {
+    void ping();
+
+    // Called on the timer thread; must not block
+    void timedOut(String reason);
+  }
+
+  private final TimerWheel wheel;
+  private final Connection connection;
+  private final long heartbeatNanos;
+  private final long idleNanos;
+  private final long writeNanos;
+
+  private volatile long lastRead = System.nanoTime();
+  private volatile long lastPing = lastRead - 1;
+  // When the write in progress blocked, 0 while the writer is not blocked
+  private volatile long blockedSince;
+  private volatile boolean pings;
+  private volatile boolean idleLimit = true;
+  private volatile boolean stopped;
+
+  Heartbeat(TimerWheel wheel, ServerConfig config, Connection connection) {
+    this.wheel = wheel;
+    this.connection = connection;
+    this.heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(config.getHeartbeatMillis());
+    this.idleNanos = TimeUnit.MILLISECONDS.toNanos(config.getIdleTimeoutMillis());
+    this.writeNanos = TimeUnit.MILLISECONDS.toNanos(config.getWriteTimeoutMillis());
+  }
+
+  void start() {
+    schedule(System.nanoTime());
+  }
+
+  void stop() {
+    stopped = true;
+  }
+
+  // The client logged in; binary clients answer pings from now on
+  void loggedIn(EncodedMessage.Format format) {
+    pings = format == EncodedMessage.Format.BINARY && heartbeatNanos > 0;
+    idleLimit = format == EncodedMessage.Format.BINARY;
+  }
+
+  void read() {
+    lastRead = System.nanoTime();
+  }
+
+  // The connection stops reading for a while on purpose; the client is not silent meanwhile
+  void pausing(long nanos) {
+    lastRead = System.nanoTime() + nanos;
+  }
+
+  // The writer is about to wait for the client to take more data
+  void blocked() {
+    if (blockedSince == 0) {
+      blockedSince = System.nanoTime();
+    }
+  }
+
+  void unblocked() {
+    blockedSince = 0;
+  }
+
+  private void check() {
+    if (stopped) {
+      return;
+    }
+    long now = System.nanoTime();
+    long blocked = blockedSince;
+    if (writeNanos > 0 && blocked != 0 && now - blocked >= writeNanos) {
+      connection.timedOut("write blocked for " + TimeUnit.NANOSECONDS.toMillis(now - blocked) + " ms");
+      return;
+    }
+    long read = lastRead;
+    if (idleLimit && idleNanos > 0 && now - read >= idleNanos) {
+      connection.timedOut("silent for " + TimeUnit.NANOSECONDS.toMillis(now - read) + " ms");
+      return;
+    }
+    if (pings && now - read >= heartbeatNanos && lastPing - read < 0) {
+      lastPing = now;
+      connection.ping();
+    }
+    schedule(now);
+  }
+
+  // Next check at the earliest deadline; one a write starting later could hit is checked within twice the timeout
+  private void schedule(long now) {
+    long next = Long.MAX_VALUE;
+    long read = lastRead;
+    if (pings && lastPing - read < 0) {
+      next = Math.min(next, read + heartbeatNanos - now);
+    }
+    if (idleLimit && idleNanos > 0) {
+      next = Math.min(next, read + idleNanos - now);
+    }
+    if (writeNanos > 0) {
+      long blocked = blockedSince;
+      next = Math.min(next, blocked != 0 ? blocked + writeNanos - now : writeNanos);
+    }
+    if (next == Long.MAX_VALUE) {
+      // Nothing to watch until login says otherwise
+      next = TimeUnit.SECONDS.toNanos(1);
+    }
+    wheel.schedule(this::check, TimeUnit.NANOSECONDS.toMillis(Math.max(0, next)));
+  }
+}
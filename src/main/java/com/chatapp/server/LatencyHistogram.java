@@ -0,0 +1,72 @@
+package com.chatapp.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/*
+ * Latencies in microseconds, counted in buckets so that percentiles can be read off at the end
+ * without keeping every value: exact below LINEAR, and within 0.2% above it (each power of two is
+ * split into SUB_BUCKETS). Any number of threads may record at once.
+ */
+public final class LatencyHistogram {
+  private static final int LINEAR = 1024;
+  private static final int SUB_BUCKETS = 512;
+  // Powers of two above LINEAR; values past 2^50 us, about 35 years, go in the last bucket
+  private static final int MAX_SHIFT = 40;
+
+  private final AtomicLongArray counts = new AtomicLongArray(LINEAR + MAX_SHIFT * SUB_BUCKETS);
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  public void record(long micros) {
+    long value = Math.max(0, micros);
+    counts.incrementAndGet(index(value));
+    max.accumulate(value);
+  }
+
+  public long count() {
+    long count = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  // The value at or below which the given fraction of everything recorded falls, 0 if nothing was
+  public long percentile(double fraction) {
+    long target = (long) Math.ceil(fraction * count());
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= target && seen > 0) {
+        return Math.min(highest(i), max());
+      }
+    }
+    return 0;
+  }
+
+  private static int index(long value) {
+    if (value < LINEAR) {
+      return (int) value;
+    }
+    // value >> shift is in [SUB_BUCKETS, 2 * SUB_BUCKETS)
+    int shift = 63 - Long.numberOfLeadingZeros(value) - 9;
+    if (shift > MAX_SHIFT) {
+      return LINEAR + MAX_SHIFT * SUB_BUCKETS - 1;
+    }
+    return LINEAR + (shift - 1) * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+  }
+
+  // Largest value counted in a bucket
+  private static long highest(int index) {
+    if (index < LINEAR) {
+      return index;
+    }
+    int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+    long lowest = (long) (SUB_BUCKETS + (index - LINEAR) % SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
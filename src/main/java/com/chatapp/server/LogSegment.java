@@ -0,0 +1,231 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/*
+ * One file of the message log, preallocated to a fixed capacity and memory-mapped for both appends
+ * and reads. Records are only ever appended, so anything below a size observed under MessageLog's
+ * lock can be read without it.
+ *
+ *   record := int length (of the rest), int CRC32 (of what follows it), long timestamp,
+ *             short roomLength, room (UTF-8), frame (FrameCodec binary encoding)
+ *
+ * The zero-filled tail of a preallocated file reads as length 0, which marks the end of the records.
+ * Every INDEX_INTERVAL bytes the position and timestamp of a record go into a sparse in-memory index,
+ * so a replay from a point in time starts close to it instead of at the beginning of the segment.
+ */
+final class LogSegment {
+  static final int HEADER_SIZE = 4 + 4 + 8 + 2;
+  static final String SUFFIX = ".log";
+  private static final int INDEX_INTERVAL = 4096;
+
+  interface RecordVisitor {
+    void record(int position, long timestamp);
+  }
+
+  private final long base;
+  private final Path path;
+  private final MappedByteBuffer map;
+  private final int capacity;
+  // Guarded by MessageLog's lock
+  private int size;
+  private long lastTimestamp;
+  private int[] indexPositions = new int[64];
+  private long[] indexTimestamps = new long[64];
+  private int indexCount;
+  private int nextIndexAt;
+
+  private LogSegment(long base, Path path, int capacity) throws IOException {
+    this.base = base;
+    this.path = path;
+    this.capacity = capacity;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      // The mapping stays valid after the channel is closed
+      this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+  }
+
+  // base is the log position of the segment's first byte
+  static LogSegment create(Path dir, long base, int capacity) throws IOException {
+    Path path = dir.resolve(String.format("%020d", base) + SUFFIX);
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      // Sparse on most file systems: blocks are only allocated as records are written
+      channel.write(ByteBuffer.allocate(1), capacity - 1);
+    }
+    return new LogSegment(base, path, capacity);
+  }
+
+  /*
+   * Reopens a segment written by an earlier run and finds where its records end. A record cut short
+   * by a crash fails its checksum; it and everything after it are zeroed so appends continue cleanly.
+   */
+  static LogSegment recover(Path path) throws IOException {
+    String name = path.getFileName().toString();
+    long base = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    long fileSize = Files.size(path);
+    if (fileSize > Integer.MAX_VALUE) {
+      throw new IOException("Log segment too large: " + path);
+    }
+    LogSegment segment = new LogSegment(base, path, (int) fileSize);
+    int position = 0;
+    int length;
+    while ((length = segment.validLength(position)) > 0) {
+      segment.indexed(position, segment.map.getLong(position + 8));
+      position += 4 + length;
+    }
+    segment.size = position;
+    if (length < 0) {
+      System.err.println("Discarding damaged history from " + path + " at " + position);
+      for (int i = position; i < segment.capacity; i++) {
+        segment.map.put(i, (byte) 0);
+      }
+      segment.map.force();
+    }
+    return segment;
+  }
+
+  // Length of the record at position if it is intact, 0 at the end of the records, -1 if damaged
+  private int validLength(int position) {
+    if (position + 4 > capacity) {
+      return 0;
+    }
+    int length = map.getInt(position);
+    if (length == 0) {
+      return 0;
+    }
+    if (length < HEADER_SIZE - 4 || length > capacity - position - 4) {
+      return -1;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(map.slice(position + 8, length - 4));
+    return (int) crc.getValue() == map.getInt(position + 4) ? length : -1;
+  }
+
+  long getBase() {
+    return base;
+  }
+
+  Path getPath() {
+    return path;
+  }
+
+  int size() {
+    return size;
+  }
+
+  long getLastTimestamp() {
+    return lastTimestamp;
+  }
+
+  boolean hasRoom(int recordSize) {
+    return size + recordSize <= capacity;
+  }
+
+  // Appends a record and returns its position in the segment; the caller has checked hasRoom
+  int append(long timestamp, byte[] room, byte[] frame) {
+    int position = size;
+    int length = HEADER_SIZE - 4 + room.length + frame.length;
+    map.putLong(position + 8, timestamp);
+    map.putShort(position + 16, (short) room.length);
+    map.put(position + HEADER_SIZE, room);
+    map.put(position + HEADER_SIZE + room.length, frame);
+    CRC32 crc = new CRC32();
+    crc.update(map.slice(position + 8, length - 4));
+    map.putInt(position + 4, (int) crc.getValue());
+    // Written last: until then the record reads as the end of the segment
+    map.putInt(position, length);
+    size = position + 4 + length;
+    indexed(position, timestamp);
+    return position;
+  }
+
+  private void indexed(int position, long timestamp) {
+    lastTimestamp = Math.max(lastTimestamp, timestamp);
+    if (position < nextIndexAt) {
+      return;
+    }
+    if (indexCount == indexPositions.length) {
+      indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+      indexTimestamps = Arrays.copyOf(indexTimestamps, indexCount * 2);
+    }
+    indexPositions[indexCount] = position;
+    indexTimestamps[indexCount] = timestamp;
+    indexCount++;
+    nextIndexAt = position + INDEX_INTERVAL;
+  }
+
+  // Position of an indexed record at or before the first one stamped since; called under the log's lock
+  int positionBefore(long since) {
+    int low = 0;
+    int high = indexCount - 1;
+    int found = 0;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (indexTimestamps[mid] < since) {
+        found = indexPositions[mid];
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return found;
+  }
+
+  // Visits the records in [from, limit); from must be a record boundary
+  void forEach(int from, int limit, RecordVisitor visitor) {
+    int position = from;
+    while (position < limit) {
+      int length = map.getInt(position);
+      visitor.record(position, map.getLong(position + 8));
+      position += 4 + length;
+    }
+  }
+
+  String room(int position) {
+    int roomLength = map.getShort(position + 16);
+    if (roomLength == 0) {
+      return null;
+    }
+    byte[] room = new byte[roomLength];
+    map.get(position + HEADER_SIZE, room);
+    return new String(room, StandardCharsets.UTF_8);
+  }
+
+  // Compares without decoding; an empty room is the one for messages to everyone
+  boolean isRoom(int position, byte[] room) {
+    if (map.getShort(position + 16) != room.length) {
+      return false;
+    }
+    return room.length == 0 || map.slice(position + HEADER_SIZE, room.length).equals(ByteBuffer.wrap(room));
+  }
+
+  // Read-only view of the frame stored in the record at position
+  ByteBuffer frame(int position) {
+    int start = position + HEADER_SIZE + map.getShort(position + 16);
+    return map.slice(start, position + 4 + map.getInt(position) - start).asReadOnlyBuffer();
+  }
+
+  // Forces [from, to) to disk
+  void force(int from, int to) {
+    if (to > from) {
+      map.force(from, to - from);
+    }
+  }
+
+  void delete() {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      System.err.println("Error deleting history segment " + path + ": " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package com.chatapp.server;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * The clients of one audience (everyone, or a room) by name, plus the same clients split into
+ * shards by name hash for fan-out. Each shard is a copy-on-write array: a join or leave copies one
+ * shard under a lock that only other joins and leaves take, a broadcast reads a snapshot of each
+ * without any lock, so delivery never waits for membership changes and a broadcast can hand whole
+ * shards to different threads.
+ */
+final class Members {
+  static final int SHARDS = 64;
+  private static final ClientConnection[] EMPTY = new ClientConnection[0];
+
+  private final ConcurrentHashMap<String, ClientConnection> byName = new ConcurrentHashMap<>();
+  private final AtomicReferenceArray<ClientConnection[]> shards = new AtomicReferenceArray<>(SHARDS);
+  // Serializes joins and leaves with each other, never with readers
+  private final ReentrantLock lock = new ReentrantLock();
+
+  Members() {
+    for (int i = 0; i < SHARDS; i++) {
+      shards.set(i, EMPTY);
+    }
+  }
+
+  // Returns the client already registered under the name, or null after registering this one
+  ClientConnection putIfAbsent(String name, ClientConnection client) {
+    lock.lock();
+    try {
+      ClientConnection existing = byName.putIfAbsent(name, client);
+      if (existing == null) {
+        int shard = shardOf(name);
+        ClientConnection[] current = shards.get(shard);
+        ClientConnection[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = client;
+        shards.set(shard, next);
+      }
+      return existing;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  boolean remove(String name, ClientConnection client) {
+    lock.lock();
+    try {
+      if (!byName.remove(name, client)) {
+        return false;
+      }
+      int shard = shardOf(name);
+      ClientConnection[] current = shards.get(shard);
+      int i = Arrays.asList(current).indexOf(client);
+      ClientConnection[] next = new ClientConnection[current.length - 1];
+      System.arraycopy(current, 0, next, 0, i);
+      System.arraycopy(current, i + 1, next, i, next.length - i);
+      shards.set(shard, next);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static int shardOf(String name) {
+    return (name.hashCode() & 0x7fffffff) % SHARDS;
+  }
+
+  ClientConnection get(String name) {
+    return byName.get(name);
+  }
+
+  // Snapshot of one shard; never modified
+  ClientConnection[] shard(int i) {
+    return shards.get(i);
+  }
+
+  Collection<ClientConnection> values() {
+    return byName.values();
+  }
+
+  Set<String> names() {
+    return byName.keySet();
+  }
+
+  int size() {
+    return byName.size();
+  }
+
+  boolean isEmpty() {
+    return byName.isEmpty();
+  }
+}
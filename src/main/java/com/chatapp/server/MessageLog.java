@@ -0,0 +1,350 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/*
+ * Chat history: every broadcast text message and file reference, appended to memory-mapped segment
+ * files as the binary frame clients receive, so a replay hands the stored bytes straight to the
+ * outbound queues without encoding anything.
+ *
+ * Appenders only copy into the mapping under a short lock. A background thread forces whatever was
+ * appended since its last pass to disk every flushMillis (group commit): one fsync covers every
+ * message in the window, and a power failure loses at most that window. A crash of the process
+ * alone loses nothing, since the mapping is the page cache.
+ *
+ * Each segment is a file named after its position in the log. Whole segments are deleted, oldest
+ * first, once the log outgrows its byte budget or they hold nothing newer than the retention age.
+ */
+class MessageLog {
+  // A replay by time sends at most this many messages, the latest ones
+  static final int MAX_REPLAY = 1000;
+  private static final long RETENTION_CHECK_MILLIS = 60_000;
+  private static final byte[] NO_ROOM = new byte[0];
+
+  private final Path dir;
+  private final int segmentBytes;
+  private final long retentionBytes;
+  private final long retentionMillis;
+  private final int replayCount;
+  private final ScheduledExecutorService flusher;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  // Oldest first; the last one takes appends
+  private final List<LogSegment> segments = new ArrayList<>();
+  // Log positions of the latest replayCount messages per room, "" for messages to everyone
+  private final HashMap<String, ArrayDeque<Long>> recent = new HashMap<>();
+  private long totalBytes;
+  // What the flusher has forced so far in the active segment
+  private LogSegment flushedSegment;
+  private int flushedSize;
+
+  MessageLog(ServerConfig config) throws IOException {
+    this.dir = config.getHistoryDir();
+    this.segmentBytes = config.getHistorySegmentBytes();
+    this.retentionBytes = config.getHistoryRetentionBytes();
+    this.retentionMillis = config.getHistoryRetentionMillis();
+    this.replayCount = config.getHistoryReplayCount();
+    Files.createDirectories(dir);
+    recover();
+    // A thread of its own, so an fsync never holds up presence updates on the shared timer
+    this.flusher = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("chat-history").daemon().factory());
+    long flushMillis = config.getHistoryFlushMillis();
+    flusher.scheduleWithFixedDelay(this::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    flusher.scheduleWithFixedDelay(this::enforceRetention, RETENTION_CHECK_MILLIS, RETENTION_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private void recover() throws IOException {
+    List<Path> paths;
+    try (Stream<Path> listing = Files.list(dir)) {
+      // Zero-padded names sort in log order
+      paths = listing.filter(p -> p.getFileName().toString().endsWith(LogSegment.SUFFIX)).sorted().toList();
+    }
+    for (Path path : paths) {
+      LogSegment segment = LogSegment.recover(path);
+      segments.add(segment);
+      totalBytes += segment.size();
+      segment.forEach(0, segment.size(), (position, timestamp) ->
+          remember(segment.room(position), segment.getBase() + position));
+    }
+    if (segments.isEmpty()) {
+      segments.add(LogSegment.create(dir, 0, segmentBytes));
+    }
+    flushedSegment = active();
+    flushedSize = flushedSegment.size();
+    enforceRetention();
+    System.out.println("History: " + totalBytes + " bytes in " + segments.size() + " segments at " + dir);
+  }
+
+  // Whether a broadcast belongs in the history: chat and stored files, not server notices or transfers
+  static boolean isLogged(ChatMessage msg) {
+    if (msg.getTargetUser() != null) {
+      return false;
+    }
+    if (msg.getType() == ChatMessage.MessageType.TEXT) {
+      return !"Server".equals(msg.getSender());
+    }
+    return msg.getType() == ChatMessage.MessageType.FILE && msg.getContentHash() != null;
+  }
+
+  // Appends a broadcast; the message must already carry its timestamp
+  void append(EncodedMessage encoded) {
+    ChatMessage msg = encoded.getMessage();
+    byte[] frame = encoded.bytes(EncodedMessage.Format.BINARY);
+    byte[] room = msg.getRoom() == null ? NO_ROOM : msg.getRoom().getBytes(StandardCharsets.UTF_8);
+    int recordSize = LogSegment.HEADER_SIZE + room.length + frame.length;
+    if (recordSize > segmentBytes) {
+      System.err.println("Not logging a " + recordSize + " byte message from " + msg.getSender() + ": larger than a history segment");
+      return;
+    }
+    lock.lock();
+    try {
+      LogSegment segment = active();
+      if (!segment.hasRoom(recordSize)) {
+        segment = roll();
+      }
+      int position = segment.append(msg.getTimestamp(), room, frame);
+      totalBytes += recordSize;
+      remember(msg.getRoom(), segment.getBase() + position);
+    } catch (IOException e) {
+      System.err.println("Error appending to history: " + e.getMessage());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private LogSegment active() {
+    return segments.get(segments.size() - 1);
+  }
+
+  // Under the lock. Positions stay dense: the next segment starts where the last record ended.
+  private LogSegment roll() throws IOException {
+    LogSegment full = active();
+    full.force(full == flushedSegment ? flushedSize : 0, full.size());
+    LogSegment next = LogSegment.create(dir, full.getBase() + full.size(), segmentBytes);
+    segments.add(next);
+    flushedSegment = next;
+    flushedSize = 0;
+    enforceRetention();
+    return next;
+  }
+
+  private void remember(String room, long position) {
+    if (replayCount == 0) {
+      return;
+    }
+    ArrayDeque<Long> positions = recent.computeIfAbsent(room == null ? "" : room, r -> new ArrayDeque<>());
+    if (positions.size() == replayCount) {
+      positions.pollFirst();
+    }
+    positions.addLast(position);
+  }
+
+  private void flush() {
+    LogSegment segment;
+    int from;
+    int to;
+    lock.lock();
+    try {
+      segment = flushedSegment;
+      from = flushedSize;
+      to = segment.size();
+      flushedSize = to;
+    } finally {
+      lock.unlock();
+    }
+    // Outside the lock: appends carry on while the disk catches up
+    try {
+      segment.force(from, to);
+    } catch (RuntimeException e) {
+      System.err.println("Error flushing history: " + e.getMessage());
+    }
+  }
+
+  private void enforceRetention() {
+    lock.lock();
+    try {
+      long cutoff = System.currentTimeMillis() - retentionMillis;
+      while (segments.size() > 1
+          && (totalBytes > retentionBytes || segments.get(0).getLastTimestamp() < cutoff)) {
+        LogSegment oldest = segments.remove(0);
+        totalBytes -= oldest.size();
+        // Replays already reading it keep their mapping; only the file goes
+        oldest.delete();
+      }
+      // Positions in deleted segments are skipped on replay and age out of recent on their own
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+   * Sends the client the room's history (null for messages to everyone): the latest replayCount
+   * messages, or with since > 0 the latest MAX_REPLAY stamped at or after since, oldest first, then a
+   * HISTORY marker carrying the room, the count and the newest timestamp sent. Records are located
+   * under the lock and read outside it. Messages broadcast meanwhile may arrive before the marker.
+   */
+  void replay(String room, long since, ClientConnection client) {
+    List<LogSegment> snapshot;
+    ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+    long[] positions = null;
+    int startSegment = 0;
+    int startPosition = 0;
+    int endSize;
+    lock.lock();
+    try {
+      snapshot = new ArrayList<>(segments);
+      endSize = active().size();
+      if (since <= 0) {
+        ArrayDeque<Long> latest = recent.get(room == null ? "" : room);
+        positions = latest == null ? new long[0] : latest.stream().mapToLong(Long::longValue).toArray();
+      } else {
+        while (startSegment < snapshot.size() - 1 && snapshot.get(startSegment).getLastTimestamp() < since) {
+          startSegment++;
+        }
+        startPosition = snapshot.get(startSegment).positionBefore(since);
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    if (positions != null) {
+      for (long position : positions) {
+        LogSegment segment = segmentAt(snapshot, position);
+        if (segment != null) {
+          frames.add(segment.frame((int) (position - segment.getBase())));
+        }
+      }
+    } else {
+      byte[] key = room == null ? NO_ROOM : room.getBytes(StandardCharsets.UTF_8);
+      for (int i = startSegment; i < snapshot.size(); i++) {
+        LogSegment segment = snapshot.get(i);
+        int limit = i == snapshot.size() - 1 ? endSize : segment.size();
+        segment.forEach(i == startSegment ? startPosition : 0, limit, (position, timestamp) -> {
+          if (timestamp >= since && segment.isRoom(position, key)) {
+            if (frames.size() == MAX_REPLAY) {
+              frames.pollFirst();
+            }
+            frames.add(segment.frame(position));
+          }
+        });
+      }
+    }
+
+    send(frames, room, 0, client);
+  }
+
+  /*
+   * Sends the client a page of older history: the latest replayCount messages of the room stamped
+   * at or before `before`, oldest first, then a HISTORY marker as for replay with `before` as its
+   * offset. Several messages can share a millisecond, so the client says how many of those stamped
+   * `before` it already has, and the newest that many are left out. Segments are scanned from the
+   * one holding `before` backwards until the page is full, so paging through recent history does
+   * not read the whole log.
+   */
+  void replayBefore(String room, long before, int have, ClientConnection client) {
+    List<LogSegment> snapshot;
+    int endSize;
+    lock.lock();
+    try {
+      snapshot = new ArrayList<>(segments);
+      endSize = active().size();
+    } finally {
+      lock.unlock();
+    }
+
+    byte[] key = room == null ? NO_ROOM : room.getBytes(StandardCharsets.UTF_8);
+    ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+    int last = 0;
+    while (last < snapshot.size() - 1 && snapshot.get(last).getLastTimestamp() <= before) {
+      last++;
+    }
+    int skip = Math.max(0, have);
+    for (int i = last; i >= 0 && frames.size() < replayCount; i--) {
+      LogSegment segment = snapshot.get(i);
+      int limit = i == snapshot.size() - 1 ? endSize : segment.size();
+      // Stamps only grow along the log, so the messages stamped `before` end each segment's matches
+      int wanted = replayCount - frames.size() + skip;
+      int[] ties = new int[1];
+      ArrayDeque<ByteBuffer> page = new ArrayDeque<>();
+      segment.forEach(0, limit, (position, timestamp) -> {
+        if (timestamp <= before && segment.isRoom(position, key)) {
+          if (page.size() == wanted) {
+            page.pollFirst();
+          }
+          page.add(segment.frame(position));
+          if (timestamp == before) {
+            ties[0]++;
+          }
+        }
+      });
+      for (int dropped = Math.min(skip, Math.min(ties[0], page.size())); dropped > 0; dropped--) {
+        page.pollLast();
+        skip--;
+      }
+      while (!page.isEmpty() && frames.size() < replayCount) {
+        frames.addFirst(page.pollLast());
+      }
+    }
+    send(frames, room, before, client);
+  }
+
+  private static void send(ArrayDeque<ByteBuffer> frames, String room, long before, ClientConnection client) {
+    long newest = 0;
+    int sent = 0;
+    for (ByteBuffer frame : frames) {
+      byte[] bytes = new byte[frame.remaining()];
+      frame.get(bytes);
+      try {
+        ChatMessage msg = FrameCodec.decodeFrame(ByteBuffer.wrap(bytes));
+        EncodedMessage encoded = new EncodedMessage(msg, bytes);
+        client.send(encoded);
+        encoded.release();
+        newest = Math.max(newest, msg.getTimestamp());
+        sent++;
+      } catch (StreamCorruptedException e) {
+        System.err.println("Skipping unreadable history record: " + e.getMessage());
+      }
+    }
+    ChatMessage marker = new ChatMessage(ChatMessage.MessageType.HISTORY, "Server", Integer.toString(sent));
+    marker.setRoom(room);
+    marker.setTimestamp(newest);
+    marker.setOffset(before);
+    client.sendMessage(marker);
+  }
+
+  // The segment holding a log position, or null if it has been deleted
+  private static LogSegment segmentAt(List<LogSegment> snapshot, long position) {
+    LogSegment found = null;
+    int low = 0;
+    int high = snapshot.size() - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (snapshot.get(mid).getBase() <= position) {
+        found = snapshot.get(mid);
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return found;
+  }
+
+  void close() {
+    flusher.shutdown();
+    flush();
+  }
+}
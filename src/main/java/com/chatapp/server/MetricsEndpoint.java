@@ -0,0 +1,51 @@
+package com.chatapp.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Serves a snapshot of the server's metrics at http://127.0.0.1:<chat.metrics.port>/metrics in the
+ * plain-text exposition format, one "name{label="value"} value" line per sample, for a scraper or
+ * curl. Only bound to loopback: anything further afield should scrape through a local agent.
+ */
+final class MetricsEndpoint {
+  private final ServerMetrics metrics;
+  private final HttpServer http;
+
+  MetricsEndpoint(ServerMetrics metrics, int port) throws IOException {
+    this.metrics = metrics;
+    this.http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    http.createContext("/metrics", this::handle);
+    // Scrapes are rare and quick; the server's one dispatcher thread answers them itself
+    http.setExecutor(null);
+  }
+
+  void start() {
+    http.start();
+    System.out.println("Metrics on http://" + http.getAddress().getHostString() + ":" + http.getAddress().getPort() + "/metrics");
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      if (!"GET".equals(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      StringBuilder sb = new StringBuilder();
+      for (ServerMetrics.Sample sample : metrics.snapshot()) {
+        sb.append(sample.getKey()).append(' ').append(sample.getValue()).append('\n');
+      }
+      byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    }
+  }
+}
@@ -0,0 +1,50 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+// Selector-based engine: a handful of event loops serve every connection instead of a thread each
+public class NioChatServer {
+  private final ChatServer server;
+  private final ServerConfig config;
+  private final EventLoop[] loops;
+
+  public NioChatServer(ChatServer server, ServerConfig config) throws IOException {
+    this.server = server;
+    this.config = config;
+    this.loops = new EventLoop[config.getEventLoopThreads()];
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EventLoop("chat-loop-" + i);
+    }
+  }
+
+  public void start() throws IOException {
+    ServerSocketChannel acceptor = ServerSocketChannel.open();
+    acceptor.bind(new InetSocketAddress(config.getPort()));
+    System.out.println("Server started on port " + config.getPort() + " (nio, " + loops.length + " event loops)");
+    for (EventLoop loop : loops) {
+      loop.start();
+    }
+
+    int next = 0;
+    while (true) {
+      try {
+        SocketChannel channel = acceptor.accept();
+        System.out.println("New client connected: " + channel.socket().getInetAddress());
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+        EventLoop loop = loops[next];
+        next = (next + 1) % loops.length;
+        NioClientConnection conn = new NioClientConnection(channel, server, loop);
+        server.addClient(conn);
+        loop.execute(conn::register);
+      } catch (IOException e) {
+        System.err.println("Error accepting client connection: " + e.getMessage());
+      }
+    }
+  }
+}
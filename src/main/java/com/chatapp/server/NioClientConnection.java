@@ -0,0 +1,479 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Non-blocking counterpart of ClientHandler: same wire formats and server callbacks, driven by an EventLoop
+class NioClientConnection implements ClientConnection {
+  private static final int INITIAL_READ_BUFFER = 16 * 1024;
+  private static final int MAX_READ_BUFFER = 64 * 1024 * 1024;
+  private static final int MAX_WRITE_BATCH = 256 * 1024;
+  private static final int MAX_GATHER = 64;
+  // Bytes of a fetched file one flush may write before letting other connections on the loop run
+  private static final int MAX_STREAM_PER_FLUSH = 1024 * 1024;
+
+  private final SocketChannel channel;
+  private final ChatServer server;
+  private final ServerMetrics metrics;
+  private final EventLoop loop;
+  private SelectionKey key;
+
+  // Inbound state, only touched on the loop thread
+  private ByteBuffer inbound = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+  private boolean negotiated;
+  private volatile EncodedMessage.Format format = EncodedMessage.Format.BINARY;
+  // Only used for clients that still speak Java serialization
+  private ObjectStreamScanner scanner;
+  private SliceInputStream slice;
+  private ObjectInputStream legacyIn;
+  // Set while the sender is over its rate limits, or for good once its login was refused; unread data
+  // waits in the socket meanwhile
+  private boolean readPaused;
+  // Everything read after login is charged to it; null with no limit
+  private final TokenBucket budget;
+
+  // Outbound state; senders only enqueue, writing happens on the loop thread straight from the
+  // shared encodings with one gathering write per batch
+  private final OutboundQueue queue;
+  private final WriteBatcher batcher;
+  private final Heartbeat heartbeat;
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+  private ByteBuffer handshake;
+  private boolean writeBlocked;
+  private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+  private final EncodedMessage[] gathered = new EncodedMessage[MAX_GATHER];
+  private int gatherStart;
+  private int gatherEnd;
+  // Fetched file being streamed after its announce, chunk by chunk straight from disk
+  private EncodedMessage streaming;
+  private Blob streamFile;
+  private int streamChunk;
+  private ByteBuffer streamHeader;
+  private long streamPos;
+  private long streamedThisFlush;
+
+  private volatile String username;
+  // Who this connection speaks for once logged in: its session, or itself for a legacy client
+  private ClientConnection peer;
+  private volatile boolean closed;
+
+  NioClientConnection(SocketChannel channel, ChatServer server, EventLoop loop) throws IOException {
+    this.channel = channel;
+    this.server = server;
+    this.metrics = server.getMetrics();
+    this.loop = loop;
+    this.queue = new OutboundQueue(server.getConfig(), metrics, this);
+    this.budget = server.getRateLimiter().newConnectionBucket();
+    this.batcher = new WriteBatcher(server.getConfig());
+    this.heartbeat = server.newHeartbeat(new Heartbeat.Connection() {
+      public void ping() {
+        sendMessage(new ChatMessage(ChatMessage.MessageType.PING, "Server", null));
+      }
+
+      public void timedOut(String reason) {
+        System.out.println("Closing connection to " + username + ": " + reason);
+        loop.execute(NioClientConnection.this::close);
+      }
+    });
+  }
+
+  void register() {
+    try {
+      key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+      flush();
+    } catch (ClosedChannelException e) {
+      close();
+    }
+  }
+
+  void handleRead() {
+    try {
+      int n = channel.read(inbound);
+      if (n < 0) {
+        close();
+        return;
+      }
+      metrics.bytesRead(n);
+      heartbeat.read();
+      process();
+    } catch (IOException | ClassNotFoundException | ClassCastException e) {
+      close();
+    }
+  }
+
+  private void process() throws IOException, ClassNotFoundException {
+    inbound.flip();
+    decode();
+    inbound.compact();
+    // A full buffer only needs to grow if it holds less than one message, not if decoding paused
+    if (!readPaused && !inbound.hasRemaining()) {
+      grow();
+    }
+  }
+
+  // Leaves the rest of the input unread for a while; the socket's receive window closes behind it
+  private void pauseReading(long nanos) {
+    readPaused = true;
+    heartbeat.pausing(nanos);
+    updateInterest();
+    server.getTimers().schedule(() -> loop.execute(this::resumeReading), TimeUnit.NANOSECONDS.toMillis(nanos) + 1);
+  }
+
+  private void resumeReading() {
+    if (closed) {
+      return;
+    }
+    readPaused = false;
+    try {
+      // Whatever arrived before the pause first
+      process();
+      updateInterest();
+    } catch (IOException | ClassNotFoundException | ClassCastException e) {
+      close();
+    } catch (RuntimeException e) {
+      // Runs as a loop task, outside the per-key handling in EventLoop
+      System.err.println("Error serving " + username + ", closing the connection: " + e);
+      e.printStackTrace();
+      close();
+    }
+  }
+
+  private void updateInterest() {
+    key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (writeBlocked ? SelectionKey.OP_WRITE : 0));
+  }
+
+  private void decode() throws IOException, ClassNotFoundException {
+    if (!negotiated && !negotiate()) {
+      return;
+    }
+    if (format == EncodedMessage.Format.LEGACY) {
+      decodeLegacy();
+    } else {
+      decodeFrames();
+    }
+  }
+
+  // The client speaks first: a binary hello, or the Java serialization header from an old client
+  private boolean negotiate() throws IOException {
+    if (inbound.remaining() < 2) {
+      return false;
+    }
+    int pos = inbound.position();
+    if (FrameCodec.isLegacyStream(inbound.get(pos) & 0xFF, inbound.get(pos + 1) & 0xFF)) {
+      format = EncodedMessage.Format.LEGACY;
+      scanner = new ObjectStreamScanner();
+      slice = new SliceInputStream();
+      handshake = ByteBuffer.wrap(EncodedMessage.LEGACY_STREAM_HEADER);
+    } else {
+      if (inbound.remaining() < FrameCodec.HELLO_LENGTH) {
+        return false;
+      }
+      int version = Math.min(FrameCodec.parseHello(inbound), FrameCodec.VERSION);
+      handshake = ByteBuffer.wrap(FrameCodec.hello(version));
+    }
+    negotiated = true;
+    flush();
+    return true;
+  }
+
+  private void decodeFrames() throws IOException {
+    int length;
+    while (!closed && !readPaused && (length = FrameCodec.frameLength(inbound)) > 0 && length <= inbound.remaining()) {
+      ChatMessage msg = FrameCodec.decodeFrame(inbound.slice(inbound.position(), length));
+      inbound.position(inbound.position() + length);
+      received(msg);
+    }
+  }
+
+  private void decodeLegacy() throws IOException, ClassNotFoundException {
+    int length;
+    while (!closed && !readPaused && (length = scanner.next(inbound)) > 0) {
+      slice.set(inbound.slice(inbound.position(), length));
+      if (legacyIn == null) {
+        legacyIn = new ObjectInputStream(slice);
+      } else {
+        received((ChatMessage) legacyIn.readObject());
+      }
+      inbound.position(inbound.position() + length);
+    }
+  }
+
+  private void received(ChatMessage msg) {
+    metrics.received(msg);
+    if (username == null) {
+      // Receive username (first text message, or a session to resume)
+      this.username = msg.getSender();
+      peer = server.login(this, msg);
+      if (peer == null) {
+        // Refused: read nothing more, deliver the reason and close, as ClientHandler does
+        readPaused = true;
+        updateInterest();
+        disconnect();
+      } else {
+        heartbeat.loggedIn(format);
+      }
+    } else if (peer != null) {
+      ClientConnection dispatched = null;
+      if (msg.getType() == ChatMessage.MessageType.PING) {
+        sendMessage(new ChatMessage(ChatMessage.MessageType.PONG, "Server", null));
+      } else if (msg.getType() != ChatMessage.MessageType.PONG) {
+        server.dispatch(msg, peer);
+        dispatched = peer;
+      }
+      long pause = server.throttle(budget, dispatched, msg);
+      if (pause > 0) {
+        pauseReading(pause);
+      }
+    }
+  }
+
+  private void grow() throws IOException {
+    if (inbound.capacity() >= MAX_READ_BUFFER) {
+      throw new IOException("Message exceeds " + MAX_READ_BUFFER + " bytes");
+    }
+    ByteBuffer bigger = ByteBuffer.allocate(inbound.capacity() * 2);
+    inbound.flip();
+    bigger.put(inbound);
+    inbound = bigger;
+  }
+
+  // The socket took more data: the write is moving again
+  void handleWrite() {
+    heartbeat.unblocked();
+    flush();
+  }
+
+  @Override
+  public void send(EncodedMessage msg) {
+    if (closed) {
+      return;
+    }
+    if (!queue.offer(msg)) {
+      System.out.println("Disconnecting slow consumer " + username + " (dropped " + queue.getDroppedCount() + ")");
+      loop.execute(this::close);
+      return;
+    }
+    long linger = batcher.arrived();
+    int queued = queue.size();
+    if (linger > 0 && queued < batcher.getMaxMessages()) {
+      // Busy: let more messages join this one's write
+      if (flushScheduled.compareAndSet(false, true)) {
+        loop.schedule(this::flush, linger);
+      }
+    } else if (loop.inEventLoop()) {
+      flush();
+    } else if (flushScheduled.compareAndSet(false, true) || (linger > 0 && queued == batcher.getMaxMessages())) {
+      // A full batch goes out now, even if a lingering flush is still pending
+      loop.execute(this::flush);
+    }
+  }
+
+  private void flush() {
+    flushScheduled.set(false);
+    streamedThisFlush = 0;
+    if (key == null || closed || !negotiated) {
+      return;
+    }
+    try {
+      if (handshake != null) {
+        metrics.bytesWritten(channel.write(handshake));
+        if (handshake.hasRemaining()) {
+          blockWrite();
+          return;
+        }
+        handshake = null;
+      }
+      while (true) {
+        if (gatherStart < gatherEnd) {
+          metrics.bytesWritten(channel.write(gather, gatherStart, gatherEnd - gatherStart));
+          while (gatherStart < gatherEnd && !gather[gatherStart].hasRemaining()) {
+            releaseGathered(gatherStart++);
+          }
+          if (gatherStart < gatherEnd) {
+            blockWrite();
+            return;
+          }
+        } else if (streaming != null) {
+          // Chat queued meanwhile goes out between chunks, up to its lane weight each time
+          if (streamHeader == null && gatherBatch(true)) {
+            continue;
+          }
+          if (!writeStream()) {
+            return;
+          }
+        } else if (!gatherBatch(false)) {
+          break;
+        }
+      }
+      if (queue.isDrained()) {
+        close();
+        return;
+      }
+      heartbeat.unblocked();
+      writeBlocked = false;
+      updateInterest();
+    } catch (IOException e) {
+      close();
+    }
+  }
+
+  // Collects views over queued messages so a burst goes out in a single gathering write
+  private boolean gatherBatch(boolean controlOnly) {
+    gatherStart = 0;
+    gatherEnd = 0;
+    long bytes = 0;
+    EncodedMessage msg;
+    while (gatherEnd < MAX_GATHER && bytes < MAX_WRITE_BATCH
+        && (msg = controlOnly ? queue.pollControl() : queue.poll()) != null) {
+      ByteBuffer buf = msg.buffer(format, metrics);
+      gathered[gatherEnd] = msg;
+      gather[gatherEnd++] = buf;
+      bytes += buf.remaining();
+      Blob file = msg.getFile(format);
+      if (file != null) {
+        // The announce ends the batch; its chunks follow once it is written
+        streaming = msg.retain();
+        streamFile = file;
+        streamChunk = file.chunkAt(msg.getFileOffset());
+        break;
+      }
+    }
+    return gatherEnd > 0;
+  }
+
+  /*
+   * Writes the next chunk of the file being streamed. Returns false if the socket is full or this
+   * flush has used its share, true once the chunk (or the end of the file) is reached.
+   */
+  private boolean writeStream() throws IOException {
+    if (streamChunk == streamFile.getChunkCount()) {
+      endStream();
+      return true;
+    }
+    if (streamedThisFlush >= MAX_STREAM_PER_FLUSH) {
+      if (flushScheduled.compareAndSet(false, true)) {
+        loop.execute(this::flush);
+      }
+      return false;
+    }
+    if (streamHeader == null) {
+      streamHeader = ByteBuffer.wrap(streamFile.chunkHeader(streamChunk));
+      streamPos = streamFile.chunkStart(streamChunk);
+    }
+    metrics.bytesWritten(channel.write(streamHeader));
+    if (streamHeader.hasRemaining()) {
+      blockWrite();
+      return false;
+    }
+    long end = streamFile.chunkEnd(streamChunk);
+    while (streamPos < end) {
+      long n = streamFile.transferTo(streamPos, end - streamPos, channel);
+      if (n <= 0) {
+        blockWrite();
+        return false;
+      }
+      metrics.bytesWritten(n);
+      streamPos += n;
+      streamedThisFlush += n;
+    }
+    streamHeader = null;
+    streamChunk++;
+    queue.bulkWritten();
+    return true;
+  }
+
+  // The socket is full: write again once the client has read some, unless the heartbeat gives up first
+  private void blockWrite() {
+    heartbeat.blocked();
+    writeBlocked = true;
+    updateInterest();
+  }
+
+  private void endStream() {
+    streaming.release();
+    streaming = null;
+    streamFile = null;
+    streamHeader = null;
+  }
+
+  private void releaseGathered(int i) {
+    gathered[i].release();
+    gathered[i] = null;
+    gather[i] = null;
+  }
+
+  void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    heartbeat.stop();
+    System.out.println("Client disconnected.");
+    if (key != null) {
+      key.cancel();
+    }
+    try { channel.close(); } catch (IOException e) {}
+    queue.close();
+    while (gatherStart < gatherEnd) {
+      releaseGathered(gatherStart++);
+    }
+    if (streaming != null) {
+      endStream();
+    }
+    server.disconnected(this, peer);
+  }
+
+  @Override
+  public void disconnect() {
+    queue.shutdown();
+    loop.execute(this::flush);
+  }
+
+  @Override
+  public EncodedMessage.Format getFormat() { return format; }
+
+  @Override
+  public OutboundQueue getOutboundQueue() { return queue; }
+
+  @Override
+  public String getUsername() { return username; }
+
+  // Exposes exactly one scanned unit to ObjectInputStream, so it never reads past what has arrived
+  private static final class SliceInputStream extends InputStream {
+    private ByteBuffer data;
+
+    void set(ByteBuffer data) {
+      this.data = data;
+    }
+
+    @Override
+    public int read() {
+      return data.hasRemaining() ? data.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!data.hasRemaining()) {
+        return -1;
+      }
+      int n = Math.min(len, data.remaining());
+      data.get(b, off, n);
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return data.remaining();
+    }
+  }
+}
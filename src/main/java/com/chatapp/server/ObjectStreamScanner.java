@@ -0,0 +1,335 @@
+package com.chatapp.server;
+
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Finds object boundaries in a Java serialization stream without deserializing it, so the NIO engine
+ * only hands ObjectInputStream bytes it can consume without blocking. The handle table is mirrored
+ * because class descriptors written once are referenced by every later object on the same stream.
+ */
+class ObjectStreamScanner implements ObjectStreamConstants {
+  private static final Underflow UNDERFLOW = new Underflow();
+
+  private final List<Object> handles = new ArrayList<>();
+  private boolean headerSeen;
+
+  private ByteBuffer buf;
+  private int pos;
+  private int limit;
+
+  private static final class ClassDesc {
+    final String name;
+    byte flags;
+    final StringBuilder fieldTypes = new StringBuilder();
+    ClassDesc superDesc;
+
+    ClassDesc(String name) {
+      this.name = name;
+    }
+  }
+
+  private static final class Underflow extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    Underflow() {
+      super(null, null, false, false);
+    }
+  }
+
+  /*
+   * Returns the length of the next complete unit starting at buf.position() (the stream header first,
+   * then one top-level object per call), or -1 if more bytes are needed. The buffer is not modified.
+   */
+  int next(ByteBuffer buffer) throws StreamCorruptedException {
+    buf = buffer;
+    pos = buffer.position();
+    limit = buffer.limit();
+    int start = pos;
+    int mark = handles.size();
+    List<Object> beforeReset = null;
+
+    try {
+      if (!headerSeen) {
+        if (readShort() != STREAM_MAGIC || readShort() != STREAM_VERSION) {
+          throw new StreamCorruptedException("invalid stream header");
+        }
+        headerSeen = true;
+        return pos - start;
+      }
+
+      // ObjectInputStream.readObject consumes any resets together with the object that follows them
+      while (peekByte() == TC_RESET) {
+        pos++;
+        if (beforeReset == null) {
+          beforeReset = new ArrayList<>(handles);
+        }
+        handles.clear();
+      }
+      if (peekByte() == TC_BLOCKDATA || peekByte() == TC_BLOCKDATALONG) {
+        throw new StreamCorruptedException("unexpected block data");
+      }
+      readObject();
+      return pos - start;
+    } catch (Underflow e) {
+      if (beforeReset != null) {
+        handles.clear();
+        handles.addAll(beforeReset);
+      } else {
+        handles.subList(mark, handles.size()).clear();
+      }
+      return -1;
+    }
+  }
+
+  private void readObject() throws StreamCorruptedException, Underflow {
+    int tc = readByte();
+    switch (tc) {
+      case TC_NULL:
+        return;
+      case TC_REFERENCE:
+        handle(readInt());
+        return;
+      case TC_STRING:
+        handles.add(null);
+        skip(readUnsignedShort());
+        return;
+      case TC_LONGSTRING:
+        handles.add(null);
+        skip(readLong());
+        return;
+      case TC_CLASSDESC:
+      case TC_PROXYCLASSDESC:
+        pos--;
+        readClassDesc();
+        return;
+      case TC_CLASS:
+        readClassDesc();
+        handles.add(null);
+        return;
+      case TC_ENUM:
+        readClassDesc();
+        handles.add(null);
+        readObject();
+        return;
+      case TC_ARRAY:
+        readArray();
+        return;
+      case TC_OBJECT:
+        readOrdinaryObject();
+        return;
+      default:
+        throw new StreamCorruptedException(String.format("invalid type code: %02X", tc));
+    }
+  }
+
+  private ClassDesc readClassDesc() throws StreamCorruptedException, Underflow {
+    int tc = readByte();
+    switch (tc) {
+      case TC_NULL:
+        return null;
+      case TC_REFERENCE: {
+        Object desc = handle(readInt());
+        if (!(desc instanceof ClassDesc)) {
+          throw new StreamCorruptedException("reference is not a class descriptor");
+        }
+        return (ClassDesc) desc;
+      }
+      case TC_CLASSDESC: {
+        ClassDesc desc = new ClassDesc(readUTF());
+        skip(8); // serialVersionUID
+        handles.add(desc);
+        desc.flags = (byte) readByte();
+        int fieldCount = readUnsignedShort();
+        for (int i = 0; i < fieldCount; i++) {
+          char type = (char) readByte();
+          skip(readUnsignedShort()); // field name
+          if (type == 'L' || type == '[') {
+            readObject(); // field class name
+          }
+          desc.fieldTypes.append(type);
+        }
+        skipAnnotation();
+        desc.superDesc = readClassDesc();
+        return desc;
+      }
+      case TC_PROXYCLASSDESC: {
+        ClassDesc desc = new ClassDesc(null);
+        handles.add(desc);
+        desc.flags = SC_SERIALIZABLE;
+        int interfaceCount = readInt();
+        for (int i = 0; i < interfaceCount; i++) {
+          skip(readUnsignedShort());
+        }
+        skipAnnotation();
+        desc.superDesc = readClassDesc();
+        return desc;
+      }
+      default:
+        throw new StreamCorruptedException(String.format("invalid class descriptor type code: %02X", tc));
+    }
+  }
+
+  private void readOrdinaryObject() throws StreamCorruptedException, Underflow {
+    ClassDesc desc = readClassDesc();
+    if (desc == null) {
+      throw new StreamCorruptedException("object without class descriptor");
+    }
+    handles.add(null);
+
+    // Class data is written from the top-most serializable superclass down
+    List<ClassDesc> hierarchy = new ArrayList<>();
+    for (ClassDesc d = desc; d != null; d = d.superDesc) {
+      hierarchy.add(0, d);
+    }
+    for (ClassDesc d : hierarchy) {
+      if ((d.flags & SC_EXTERNALIZABLE) != 0) {
+        if ((d.flags & SC_BLOCK_DATA) == 0) {
+          throw new StreamCorruptedException("unsupported externalizable protocol for " + d.name);
+        }
+        skipAnnotation();
+      } else if ((d.flags & SC_SERIALIZABLE) != 0) {
+        skipFieldValues(d.fieldTypes);
+        if ((d.flags & SC_WRITE_METHOD) != 0) {
+          skipAnnotation();
+        }
+      }
+    }
+  }
+
+  private void readArray() throws StreamCorruptedException, Underflow {
+    ClassDesc desc = readClassDesc();
+    if (desc == null || desc.name == null || desc.name.length() < 2) {
+      throw new StreamCorruptedException("invalid array descriptor");
+    }
+    handles.add(null);
+    int length = readInt();
+    char elementType = desc.name.charAt(1);
+    if (elementType == 'L' || elementType == '[') {
+      for (int i = 0; i < length; i++) {
+        readObject();
+      }
+    } else {
+      skip((long) length * primitiveSize(elementType));
+    }
+  }
+
+  private void skipFieldValues(CharSequence fieldTypes) throws StreamCorruptedException, Underflow {
+    for (int i = 0; i < fieldTypes.length(); i++) {
+      char type = fieldTypes.charAt(i);
+      if (type == 'L' || type == '[') {
+        readObject();
+      } else {
+        skip(primitiveSize(type));
+      }
+    }
+  }
+
+  private void skipAnnotation() throws StreamCorruptedException, Underflow {
+    while (true) {
+      int tc = peekByte();
+      if (tc == TC_ENDBLOCKDATA) {
+        pos++;
+        return;
+      } else if (tc == TC_BLOCKDATA) {
+        pos++;
+        skip(readByte());
+      } else if (tc == TC_BLOCKDATALONG) {
+        pos++;
+        skip(readInt() & 0xFFFFFFFFL);
+      } else {
+        readObject();
+      }
+    }
+  }
+
+  private static int primitiveSize(char type) throws StreamCorruptedException {
+    switch (type) {
+      case 'B':
+      case 'Z':
+        return 1;
+      case 'C':
+      case 'S':
+        return 2;
+      case 'I':
+      case 'F':
+        return 4;
+      case 'J':
+      case 'D':
+        return 8;
+      default:
+        throw new StreamCorruptedException("invalid field type: " + type);
+    }
+  }
+
+  private Object handle(int handle) throws StreamCorruptedException {
+    int index = handle - baseWireHandle;
+    if (index < 0 || index >= handles.size()) {
+      throw new StreamCorruptedException(String.format("invalid handle value: %08X", handle));
+    }
+    return handles.get(index);
+  }
+
+  private void require(long n) throws Underflow {
+    if (limit - pos < n) {
+      throw UNDERFLOW;
+    }
+  }
+
+  private void skip(long n) throws StreamCorruptedException, Underflow {
+    if (n < 0) {
+      throw new StreamCorruptedException("negative length");
+    }
+    require(n);
+    pos += (int) n;
+  }
+
+  private int peekByte() throws Underflow {
+    require(1);
+    return buf.get(pos) & 0xFF;
+  }
+
+  private int readByte() throws Underflow {
+    require(1);
+    return buf.get(pos++) & 0xFF;
+  }
+
+  private int readUnsignedShort() throws Underflow {
+    require(2);
+    int value = buf.getShort(pos) & 0xFFFF;
+    pos += 2;
+    return value;
+  }
+
+  private short readShort() throws Underflow {
+    return (short) readUnsignedShort();
+  }
+
+  private int readInt() throws Underflow {
+    require(4);
+    int value = buf.getInt(pos);
+    pos += 4;
+    return value;
+  }
+
+  private long readLong() throws Underflow {
+    require(8);
+    long value = buf.getLong(pos);
+    pos += 8;
+    return value;
+  }
+
+  // Class names are plain ASCII in practice, so modified UTF-8 decodes the same as UTF-8 here
+  private String readUTF() throws Underflow {
+    int length = readUnsignedShort();
+    require(length);
+    byte[] bytes = new byte[length];
+    buf.get(pos, bytes);
+    pos += length;
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,348 @@
+package com.chatapp.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded per-connection send queue; senders only enqueue, the connection's writer drains it.
+// Accepted messages are retained here; whoever polls one must release it once written.
+//
+// Two lanes, so a file never holds up chat: files (and the chunks streamed after a fetch) go in the
+// bulk lane, everything else in the control lane. While both have work the writer alternates between
+// controlWeight control messages and one bulk message or chunk; each lane stays in order.
+//
+// For a client with a session, every message handed to the writer is numbered by the session then,
+// so the numbers follow the order on the wire rather than the order messages were queued in.
+//
+// With metrics, every message handed to the writer is counted, and one at a time is timed from being
+// accepted until then, at most one in TIMED_EVERY: reading the clock twice per delivery would cost a
+// large broadcast more than the enqueues themselves. A stuck client still shows, since the timed
+// message is stuck with everything else.
+public class OutboundQueue {
+  private static final int TIMED_EVERY = 16;
+
+  private final int capacity;
+  private final int highWaterMark;
+  private final ServerConfig.SlowConsumerPolicy policy;
+  private final long disconnectAfterNanos;
+  private final int controlWeight;
+  // Both null for a queue nobody measures
+  private final ServerMetrics metrics;
+  private final ClientConnection owner;
+
+  private final ArrayDeque<EncodedMessage> control = new ArrayDeque<>();
+  private final ArrayDeque<EncodedMessage> bulk = new ArrayDeque<>();
+  // The message being timed, if any, and when it was accepted
+  private EncodedMessage timed;
+  private long timedSince;
+  // How long the message last polled waited, -1 if it was not timed, and what was left behind it
+  private long polledWait;
+  private int polledBehind;
+  // Control messages handed out since the bulk lane last had a turn
+  private int controlStreak;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private long overHighWaterSince = -1;
+  private long enqueued;
+  private long dropped;
+  private boolean closed;
+  private boolean shutdown;
+  private volatile Session session;
+
+  public OutboundQueue(ServerConfig config) {
+    this(config, null, null);
+  }
+
+  OutboundQueue(ServerConfig config, ServerMetrics metrics, ClientConnection owner) {
+    this.metrics = metrics;
+    this.owner = owner;
+    this.capacity = config.getOutboundCapacity();
+    this.highWaterMark = Math.min(config.getOutboundHighWaterMark(), capacity);
+    this.policy = config.getSlowConsumerPolicy();
+    this.disconnectAfterNanos = TimeUnit.MILLISECONDS.toNanos(config.getSlowConsumerTimeoutMillis());
+    this.controlWeight = config.getControlLaneWeight();
+  }
+
+  // Set before anything is queued for the session
+  void setSession(Session session) {
+    this.session = session;
+  }
+
+  private static boolean isBulk(EncodedMessage msg) {
+    ChatMessage.MessageType type = msg.getMessage().getType();
+    return type == ChatMessage.MessageType.FILE || type == ChatMessage.MessageType.FILE_CHUNK;
+  }
+
+  // Returns false (once) when the policy says the consumer is too slow to keep
+  public boolean offer(EncodedMessage msg) {
+    lock.lock();
+    try {
+      if (closed || shutdown) {
+        return true;
+      }
+      int size = size0();
+      if (size >= highWaterMark) {
+        long now = System.nanoTime();
+        if (overHighWaterSince < 0) {
+          overHighWaterSince = now;
+        }
+        switch (policy) {
+          case DISCONNECT:
+            if (size >= capacity || now - overHighWaterSince > disconnectAfterNanos) {
+              // Give up once; later offers are ignored while the connection is torn down
+              closed = true;
+              dropped += size;
+              releaseAll();
+              return false;
+            }
+            break;
+          case DROP_NON_TEXT:
+            if (isBulk(msg)) {
+              dropped++;
+              return true;
+            }
+            if (size >= capacity) {
+              dropOldest();
+              dropped++;
+            }
+            break;
+          case DROP_OLDEST:
+            if (size >= capacity) {
+              dropOldest();
+              dropped++;
+            }
+            break;
+        }
+      }
+      (isBulk(msg) ? bulk : control).addLast(msg.retain());
+      if (metrics != null && timed == null && enqueued % TIMED_EVERY == 0) {
+        timed = msg;
+        timedSince = System.nanoTime();
+      }
+      enqueued++;
+      notEmpty.signal();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // The lanes are not ordered against each other; a queued file goes before any chat message does
+  private void dropOldest() {
+    EncodedMessage oldest = (bulk.isEmpty() ? control : bulk).pollFirst();
+    if (oldest == timed) {
+      timed = null;
+    }
+    oldest.release();
+  }
+
+  // Next message by lane weight, or null if both lanes are empty
+  public EncodedMessage poll() {
+    EncodedMessage msg;
+    long waited;
+    int behind;
+    lock.lock();
+    try {
+      msg = poll0();
+      waited = polledWait;
+      behind = polledBehind;
+    } finally {
+      lock.unlock();
+    }
+    return handedOut(msg, waited, behind);
+  }
+
+  private EncodedMessage poll0() {
+    EncodedMessage msg;
+    if (!control.isEmpty() && (bulk.isEmpty() || controlStreak < controlWeight)) {
+      msg = control.pollFirst();
+      controlStreak++;
+    } else {
+      msg = bulk.pollFirst();
+      controlStreak = 0;
+    }
+    polled(msg);
+    return msg;
+  }
+
+  // Outside the lock: senders hold the session's lock while they offer, and a slow send is logged
+  private EncodedMessage handedOut(EncodedMessage msg, long waited, int behind) {
+    if (msg == null) {
+      return null;
+    }
+    Session s = session;
+    if (s != null) {
+      s.sequenced(this, msg);
+    }
+    if (metrics != null) {
+      metrics.handedOut(msg, waited, owner, behind);
+    }
+    return msg;
+  }
+
+  /*
+   * For writers in the middle of streaming a file: the next control message, or null if there is
+   * none or the control lane has had its share since the last bulkWritten().
+   */
+  public EncodedMessage pollControl() {
+    EncodedMessage msg;
+    long waited;
+    int behind;
+    lock.lock();
+    try {
+      if (controlStreak >= controlWeight) {
+        return null;
+      }
+      msg = control.pollFirst();
+      if (msg != null) {
+        controlStreak++;
+        polled(msg);
+      }
+      waited = polledWait;
+      behind = polledBehind;
+    } finally {
+      lock.unlock();
+    }
+    return handedOut(msg, waited, behind);
+  }
+
+  // A streamed chunk went out; it counts as the bulk lane's turn
+  public void bulkWritten() {
+    lock.lock();
+    try {
+      controlStreak = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void polled(EncodedMessage msg) {
+    int size = size0();
+    if (size < highWaterMark) {
+      overHighWaterSince = -1;
+    }
+    if (msg != null && msg == timed) {
+      timed = null;
+      polledWait = System.nanoTime() - timedSince;
+    } else {
+      polledWait = -1;
+    }
+    polledBehind = size;
+  }
+
+  private int size0() {
+    return control.size() + bulk.size();
+  }
+
+  // Blocks until a message is available; returns null once the queue is closed, or shut down and drained
+  public EncodedMessage take() throws InterruptedException {
+    EncodedMessage msg;
+    long waited;
+    int behind;
+    lock.lock();
+    try {
+      while (size0() == 0 && !closed && !shutdown) {
+        notEmpty.await();
+      }
+      msg = closed ? null : poll0();
+      waited = polledWait;
+      behind = polledBehind;
+    } finally {
+      lock.unlock();
+    }
+    return handedOut(msg, waited, behind);
+  }
+
+  // Stops accepting messages but lets the writer drain what is already queued
+  public void shutdown() {
+    lock.lock();
+    try {
+      shutdown = true;
+      notEmpty.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public boolean isDrained() {
+    lock.lock();
+    try {
+      return closed || (shutdown && size0() == 0);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Closes the queue and hands over what was never written, in the order it would have been
+  List<EncodedMessage> drain() {
+    lock.lock();
+    try {
+      List<EncodedMessage> unsent = new ArrayList<>(size0());
+      while (size0() > 0) {
+        unsent.add(poll0());
+      }
+      closed = true;
+      notEmpty.signalAll();
+      return unsent;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      releaseAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void releaseAll() {
+    EncodedMessage msg;
+    while ((msg = control.pollFirst()) != null) {
+      msg.release();
+    }
+    while ((msg = bulk.pollFirst()) != null) {
+      msg.release();
+    }
+    timed = null;
+    notEmpty.signalAll();
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public int size() {
+    lock.lock();
+    try {
+      return size0();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getEnqueuedCount() {
+    lock.lock();
+    try {
+      return enqueued;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getDroppedCount() {
+    lock.lock();
+    try {
+      return dropped;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
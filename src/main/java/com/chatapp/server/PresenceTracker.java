@@ -0,0 +1,183 @@
+package com.chatapp.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Presence protocol: a client gets one USER_LIST snapshot when it joins, then PRESENCE deltas
+ * ("+alice,-bob,") that each bump the presence version by one. Joins and leaves are coalesced over
+ * a short window, so a reconnect storm costs a few deltas per client instead of a full list per join.
+ * Deltas only say what state a name ends up in, so applying one twice is harmless.
+ *
+ * Legacy clients cannot decode PRESENCE and get a full (coalesced) USER_LIST instead.
+ *
+ * The server keeps one tracker for everyone and one per room; a room's updates carry its name. In a
+ * cluster, the tracker for everyone also lists the users logged in on other nodes.
+ */
+class PresenceTracker {
+  private final String room;
+  private final Members users;
+  private final ScheduledExecutorService scheduler;
+  private final long coalesceMillis;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Map<String, Boolean> pending = new LinkedHashMap<>();
+  // Users logged in on other nodes of the cluster
+  private final Set<String> remote = ConcurrentHashMap.newKeySet();
+  private long version;
+  private boolean flushScheduled;
+
+  PresenceTracker(String room, Members users, ScheduledExecutorService scheduler, long coalesceMillis) {
+    this.room = room;
+    this.users = users;
+    this.scheduler = scheduler;
+    this.coalesceMillis = coalesceMillis;
+  }
+
+  /*
+   * Registers the client under its username unless the name is taken. Done under the presence lock so
+   * the client's snapshot is guaranteed to reach it before any delta.
+   */
+  boolean join(ClientConnection client) {
+    lock.lock();
+    try {
+      if (users.putIfAbsent(client.getUsername(), client) != null) {
+        return false;
+      }
+      client.sendMessage(snapshot());
+      changed(client.getUsername(), true);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void left(String username) {
+    lock.lock();
+    try {
+      if (!remote.contains(username)) {
+        changed(username, false);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // A user logged in on another node
+  void remoteJoined(String username) {
+    lock.lock();
+    try {
+      if (remote.add(username) && users.get(username) == null) {
+        changed(username, true);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void remoteLeft(String username) {
+    lock.lock();
+    try {
+      if (remote.remove(username) && users.get(username) == null) {
+        changed(username, false);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Resync for a client that noticed a gap in the versions it received
+  void sendSnapshot(ClientConnection client) {
+    lock.lock();
+    try {
+      client.sendMessage(snapshot());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Full list to everyone, bypassing deltas
+  void broadcastSnapshot() {
+    lock.lock();
+    try {
+      EncodedMessage listMsg = new EncodedMessage(snapshot());
+      for (ClientConnection client : users.values()) {
+        client.send(listMsg);
+      }
+      listMsg.release();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void changed(String username, boolean present) {
+    pending.remove(username);
+    pending.put(username, present);
+    if (coalesceMillis <= 0) {
+      flush();
+    } else if (!flushScheduled) {
+      flushScheduled = true;
+      scheduler.schedule(this::flush, coalesceMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void flush() {
+    lock.lock();
+    try {
+      flushScheduled = false;
+      if (pending.isEmpty()) {
+        return;
+      }
+      version++;
+      StringBuilder sb = new StringBuilder();
+      for (Map.Entry<String, Boolean> change : pending.entrySet()) {
+        sb.append(change.getValue() ? '+' : '-').append(change.getKey()).append(",");
+      }
+      pending.clear();
+
+      ChatMessage deltaMsg = new ChatMessage(ChatMessage.MessageType.PRESENCE, "Server", sb.toString());
+      deltaMsg.setVersion(version);
+      deltaMsg.setRoom(room);
+      EncodedMessage delta = new EncodedMessage(deltaMsg);
+      EncodedMessage fullList = null;
+      for (ClientConnection client : users.values()) {
+        if (client.getFormat() == EncodedMessage.Format.LEGACY) {
+          if (fullList == null) {
+            fullList = new EncodedMessage(snapshot());
+          }
+          client.send(fullList);
+        } else {
+          client.send(delta);
+        }
+      }
+      delta.release();
+      if (fullList != null) {
+        fullList.release();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Current users; pending changes are already reflected, the version is the last delta sent
+  private ChatMessage snapshot() {
+    StringBuilder sb = new StringBuilder();
+    for (String username : users.names()) {
+      sb.append(username).append(",");
+    }
+    for (String username : remote) {
+      if (users.get(username) == null) {
+        sb.append(username).append(",");
+      }
+    }
+    ChatMessage listMsg = new ChatMessage(ChatMessage.MessageType.USER_LIST, "Server", sb.toString());
+    listMsg.setVersion(version);
+    listMsg.setRoom(room);
+    return listMsg;
+  }
+}
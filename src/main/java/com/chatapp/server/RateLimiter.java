@@ -0,0 +1,160 @@
+package com.chatapp.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Ingest budgets. Every message a logged-in client sends is charged to its connection's bucket,
+ * whatever it is, and every message it dispatches to that user's buckets, chat and file transfers
+ * separately; every message that fans out is charged per recipient to one server-wide bucket. A
+ * bucket in debt does not reject anything: the engine stops reading from the sender until the debt
+ * is paid off, so TCP pushes back on the client instead of the server buffering on its behalf.
+ *
+ * The user's buckets outlive the socket, so reconnecting does not refill them; the connection's
+ * also covers pings and whatever else never reaches dispatch. A limit of 0 turns its bucket off.
+ * A user's buckets are dropped by age, not when the user leaves: once nothing has been charged to
+ * them for a while and they have refilled, so new ones would be no different. Pauses are exported
+ * through ServerMetrics per budget.
+ */
+class RateLimiter {
+  // How long a user's buckets are kept after their last charge, at least
+  private static final long IDLE_MILLIS = 60_000;
+
+  enum Budget {
+    TEXT_MESSAGES, TEXT_BYTES, FILE_BYTES, FANOUT, CONNECTION_MESSAGES
+  }
+
+  private final ServerConfig config;
+  private final ConcurrentHashMap<String, UserBuckets> byUser = new ConcurrentHashMap<>();
+  private final TokenBucket fanout;
+  // Pauses and total pause time per budget that caused them, since startup
+  private final AtomicLong[] pauses = new AtomicLong[Budget.values().length];
+  private final AtomicLong[] pausedNanos = new AtomicLong[Budget.values().length];
+
+  RateLimiter(ServerConfig config, ScheduledExecutorService scheduler) {
+    this.config = config;
+    long fanoutRate = config.getFanoutPerSecond();
+    this.fanout = fanoutRate > 0 ? new TokenBucket(fanoutRate, fanoutRate) : null;
+    for (int i = 0; i < pauses.length; i++) {
+      pauses[i] = new AtomicLong();
+      pausedNanos[i] = new AtomicLong();
+    }
+    scheduler.scheduleWithFixedDelay(this::sweep, IDLE_MILLIS, IDLE_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  // Held by the connection for as long as it is open; null with no limit
+  TokenBucket newConnectionBucket() {
+    long rate = config.getConnectionMessagesPerSecond();
+    return rate > 0 ? new TokenBucket(rate, rate) : null;
+  }
+
+  /*
+   * Charges a message that arrived on a connection and, if it was dispatched, is from sender and
+   * will reach audience recipients. Returns how many nanoseconds the engine should stop reading
+   * from the connection, 0 to carry on.
+   */
+  long charge(TokenBucket connection, ClientConnection sender, ChatMessage msg, int audience) {
+    long wait = take(connection, 1);
+    Budget cause = wait > 0 ? Budget.CONNECTION_MESSAGES : null;
+    // Only what was dispatched, not pings, counts against the user
+    if (sender != null) {
+      UserBuckets user = byUser.computeIfAbsent(sender.getUsername(), name -> new UserBuckets(newBuckets()));
+      user.lastCharged = System.nanoTime();
+      TokenBucket[] buckets = user.buckets;
+      if (isFile(msg)) {
+        long w = take(buckets[Budget.FILE_BYTES.ordinal()], sizeOf(msg));
+        if (w > wait) {
+          wait = w;
+          cause = Budget.FILE_BYTES;
+        }
+      } else {
+        long w = take(buckets[Budget.TEXT_MESSAGES.ordinal()], 1);
+        if (w > wait) {
+          wait = w;
+          cause = Budget.TEXT_MESSAGES;
+        }
+        w = take(buckets[Budget.TEXT_BYTES.ordinal()], sizeOf(msg));
+        if (w > wait) {
+          wait = w;
+          cause = Budget.TEXT_BYTES;
+        }
+      }
+    }
+    if (audience > 0) {
+      long w = take(fanout, audience);
+      if (w > wait) {
+        wait = w;
+        cause = Budget.FANOUT;
+      }
+    }
+    if (cause != null) {
+      pauses[cause.ordinal()].incrementAndGet();
+      pausedNanos[cause.ordinal()].addAndGet(wait);
+    }
+    return wait;
+  }
+
+  private TokenBucket[] newBuckets() {
+    TokenBucket[] buckets = new TokenBucket[Budget.values().length];
+    if (config.getTextMessagesPerSecond() > 0) {
+      buckets[Budget.TEXT_MESSAGES.ordinal()] = new TokenBucket(config.getTextMessagesPerSecond(), config.getTextBurst());
+    }
+    if (config.getTextBytesPerSecond() > 0) {
+      buckets[Budget.TEXT_BYTES.ordinal()] = new TokenBucket(config.getTextBytesPerSecond(), config.getTextBytesPerSecond());
+    }
+    if (config.getFileBytesPerSecond() > 0) {
+      buckets[Budget.FILE_BYTES.ordinal()] = new TokenBucket(config.getFileBytesPerSecond(), config.getFileBytesPerSecond());
+    }
+    return buckets;
+  }
+
+  private static long take(TokenBucket bucket, long amount) {
+    return bucket == null ? 0 : bucket.take(amount);
+  }
+
+  private static boolean isFile(ChatMessage msg) {
+    return msg.getType() == ChatMessage.MessageType.FILE_CHUNK
+        || (msg.getType() == ChatMessage.MessageType.FILE && msg.getFileData() != null);
+  }
+
+  // What the message brought in, roughly its size on the wire
+  private static long sizeOf(ChatMessage msg) {
+    long size = msg.getContent() == null ? 0 : msg.getContent().length();
+    return msg.getFileData() == null ? size : size + msg.getFileData().length;
+  }
+
+  // Users who have been quiet for IDLE_MILLIS and are out of debt start afresh if they come back
+  private void sweep() {
+    long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(IDLE_MILLIS);
+    byUser.values().removeIf(user -> user.lastCharged - cutoff < 0 && user.isFull());
+  }
+
+  long getPauseCount(Budget budget) {
+    return pauses[budget.ordinal()].get();
+  }
+
+  long getPausedMillis(Budget budget) {
+    return TimeUnit.NANOSECONDS.toMillis(pausedNanos[budget.ordinal()].get());
+  }
+
+  private static final class UserBuckets {
+    // Indexed by Budget; null where there is no limit
+    final TokenBucket[] buckets;
+    volatile long lastCharged = System.nanoTime();
+
+    UserBuckets(TokenBucket[] buckets) {
+      this.buckets = buckets;
+    }
+
+    boolean isFull() {
+      for (TokenBucket bucket : buckets) {
+        if (bucket != null && !bucket.isFull()) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
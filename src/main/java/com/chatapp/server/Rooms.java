@@ -0,0 +1,157 @@
+package com.chatapp.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+
+/*
+ * Named rooms that clients join and leave (JOIN_ROOM / LEAVE_ROOM with the room field set). Each room
+ * has its own member map and its own presence, so a message to a room costs one send per member and
+ * nothing is locked across rooms: a huge room only ever contends with itself. Rooms are created by
+ * their first join and dropped with their last member.
+ *
+ * Messages without a room still go to everyone, which is all legacy clients ever see.
+ */
+class Rooms {
+  static final int MAX_NAME_LENGTH = 64;
+  static final int MAX_ROOMS_PER_CLIENT = 64;
+  // ROOM_LIST replies name the largest rooms only
+  private static final int MAX_LISTED = 100;
+
+  private static final class Room {
+    final Members members = new Members();
+    final PresenceTracker presence;
+
+    Room(String name, ScheduledExecutorService scheduler, long coalesceMillis) {
+      this.presence = new PresenceTracker(name, members, scheduler, coalesceMillis);
+    }
+  }
+
+  private final ScheduledExecutorService scheduler;
+  private final long coalesceMillis;
+  private final FanOut fanOut;
+  private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+  // Rooms each client is in, to leave them all when it disconnects
+  private final ConcurrentHashMap<ClientConnection, Set<String>> memberships = new ConcurrentHashMap<>();
+
+  Rooms(ScheduledExecutorService scheduler, long coalesceMillis, FanOut fanOut) {
+    this.scheduler = scheduler;
+    this.coalesceMillis = coalesceMillis;
+    this.fanOut = fanOut;
+  }
+
+  static boolean isValidName(String name) {
+    return name != null && !name.isBlank() && name.length() <= MAX_NAME_LENGTH
+        && name.indexOf(',') < 0 && name.indexOf(':') < 0;
+  }
+
+  /*
+   * The joining client gets the room's member list, everyone in the room a presence update. Returns
+   * true only if the client was not in the room before.
+   */
+  boolean join(String name, ClientConnection client) {
+    if (!isValidName(name)) {
+      reply(client, "Invalid room name.");
+      return false;
+    }
+    Set<String> joined = memberships.computeIfAbsent(client, c -> ConcurrentHashMap.newKeySet());
+    if (joined.contains(name)) {
+      sendSnapshot(name, client);
+      return false;
+    }
+    if (joined.size() >= MAX_ROOMS_PER_CLIENT) {
+      reply(client, "You cannot be in more than " + MAX_ROOMS_PER_CLIENT + " rooms.");
+      return false;
+    }
+    joined.add(name);
+    // Atomic with leave(), so a join never lands in a room that is being dropped
+    rooms.compute(name, (key, room) -> {
+      if (room == null) {
+        room = new Room(key, scheduler, coalesceMillis);
+      }
+      room.presence.join(client);
+      return room;
+    });
+    return true;
+  }
+
+  void leave(String name, ClientConnection client) {
+    Set<String> joined = memberships.get(client);
+    if (joined != null && joined.remove(name)) {
+      removeMember(name, client);
+    }
+  }
+
+  void leaveAll(ClientConnection client) {
+    Set<String> joined = memberships.remove(client);
+    if (joined != null) {
+      for (String name : joined) {
+        removeMember(name, client);
+      }
+    }
+  }
+
+  private void removeMember(String name, ClientConnection client) {
+    rooms.computeIfPresent(name, (key, room) -> {
+      if (room.members.remove(client.getUsername(), client)) {
+        room.presence.left(client.getUsername());
+      }
+      return room.members.isEmpty() ? null : room;
+    });
+  }
+
+  boolean isMember(String name, ClientConnection client) {
+    Set<String> joined = memberships.get(client);
+    return joined != null && joined.contains(name);
+  }
+
+  int size(String name) {
+    Room room = rooms.get(name);
+    return room == null ? 0 : room.members.size();
+  }
+
+  // Sends to everyone in the room except the sender; costs nothing for the rest of the server
+  void broadcast(String name, EncodedMessage encoded, ClientConnection sender) {
+    Room room = rooms.get(name);
+    if (room == null) {
+      return;
+    }
+    fanOut.send(room.members, encoded, sender);
+  }
+
+  // Resync for a client that missed a presence delta in one of its rooms
+  void sendSnapshot(String name, ClientConnection client) {
+    Room room = rooms.get(name);
+    if (room != null && isMember(name, client)) {
+      room.presence.sendSnapshot(client);
+    }
+  }
+
+  void sendSnapshots(ClientConnection client) {
+    Set<String> joined = memberships.get(client);
+    if (joined != null) {
+      for (String name : joined) {
+        sendSnapshot(name, client);
+      }
+    }
+  }
+
+  // "name:members," for the largest rooms, biggest first
+  void sendList(ClientConnection client) {
+    List<Map.Entry<String, Integer>> sizes = new ArrayList<>();
+    rooms.forEach((name, room) -> sizes.add(Map.entry(name, room.members.size())));
+    sizes.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Integer> entry : sizes.subList(0, Math.min(MAX_LISTED, sizes.size()))) {
+      sb.append(entry.getKey()).append(':').append(entry.getValue()).append(',');
+    }
+    client.sendMessage(new ChatMessage(ChatMessage.MessageType.ROOM_LIST, "Server", sb.toString()));
+  }
+
+  private static void reply(ClientConnection client, String text) {
+    client.sendMessage(new ChatMessage(ChatMessage.MessageType.TEXT, "Server", text));
+  }
+}
@@ -0,0 +1,478 @@
+package com.chatapp.server;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ServerConfig {
+  public enum Mode {
+    BLOCKING, NIO
+  }
+
+  public enum Threads {
+    PLATFORM, VIRTUAL
+  }
+
+  public enum SlowConsumerPolicy {
+    DROP_OLDEST, DROP_NON_TEXT, DISCONNECT
+  }
+
+  private int port = 5000;
+  private Mode mode = Mode.BLOCKING;
+  private int eventLoopThreads = Runtime.getRuntime().availableProcessors();
+  private Threads threads = Threads.PLATFORM;
+  private int outboundCapacity = 4096;
+  private int outboundHighWaterMark = 256;
+  private int controlLaneWeight = 16;
+  private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+  private long slowConsumerTimeoutMillis = 5000;
+  private long presenceCoalesceMillis = 50;
+  private Path filesDir = Path.of(System.getProperty("java.io.tmpdir"), "chat-files");
+  private long maxFileSize = 1024L * 1024 * 1024;
+  private long fileRetentionMillis = 10 * 60 * 1000;
+  private long fileStoreQuota = 4L * 1024 * 1024 * 1024;
+  private boolean historyEnabled = true;
+  private Path historyDir = Path.of(System.getProperty("java.io.tmpdir"), "chat-history");
+  private int historySegmentBytes = 64 * 1024 * 1024;
+  private long historyRetentionBytes = 1024L * 1024 * 1024;
+  private long historyRetentionMillis = 7L * 24 * 60 * 60 * 1000;
+  private long historyFlushMillis = 10;
+  private int historyReplayCount = 100;
+  private long sessionGraceMillis = 30_000;
+  private int sessionReplayBuffer = 1024;
+  private long heartbeatMillis = 5000;
+  private long idleTimeoutMillis = 15_000;
+  private long writeTimeoutMillis = 10_000;
+  private long textMessagesPerSecond = 20;
+  private long textBurst = 50;
+  private long textBytesPerSecond = 128 * 1024;
+  private long fileBytesPerSecond = 32L * 1024 * 1024;
+  private long fanoutPerSecond = 1_000_000;
+  private long connectionMessagesPerSecond = 1000;
+  private long batchLingerMicros = 2000;
+  private int batchMaxMessages = 64;
+  private int fanoutThreads = Runtime.getRuntime().availableProcessors();
+  private int fanoutParallelThreshold = 2048;
+  private int metricsPort = 5001;
+  private long slowSendMillis = 250;
+  private int clusterPort;
+  private List<String> clusterPeers = List.of();
+  private String nodeId;
+
+  // Reads overrides such as -Dchat.mode=nio from the command line
+  public static ServerConfig fromSystemProperties() {
+    ServerConfig config = new ServerConfig();
+    config.setPort(Integer.getInteger("chat.port", config.getPort()));
+    config.setMode(Mode.valueOf(System.getProperty("chat.mode", config.getMode().name()).toUpperCase()));
+    config.setEventLoopThreads(Integer.getInteger("chat.eventLoops", config.getEventLoopThreads()));
+    config.setThreads(Threads.valueOf(System.getProperty("chat.threads", config.getThreads().name()).toUpperCase()));
+    config.setOutboundCapacity(Integer.getInteger("chat.outbound.capacity", config.getOutboundCapacity()));
+    config.setOutboundHighWaterMark(Integer.getInteger("chat.outbound.highWater", config.getOutboundHighWaterMark()));
+    config.setControlLaneWeight(Integer.getInteger("chat.outbound.controlWeight", config.getControlLaneWeight()));
+    config.setSlowConsumerPolicy(SlowConsumerPolicy.valueOf(
+        System.getProperty("chat.slowConsumer", config.getSlowConsumerPolicy().name()).toUpperCase()));
+    config.setSlowConsumerTimeoutMillis(Long.getLong("chat.slowConsumer.timeoutMs", config.getSlowConsumerTimeoutMillis()));
+    config.setPresenceCoalesceMillis(Long.getLong("chat.presence.coalesceMs", config.getPresenceCoalesceMillis()));
+    config.setFilesDir(Path.of(System.getProperty("chat.files.dir", config.getFilesDir().toString())));
+    config.setMaxFileSize(Long.getLong("chat.files.maxSize", config.getMaxFileSize()));
+    config.setFileRetentionMillis(Long.getLong("chat.files.retentionMs", config.getFileRetentionMillis()));
+    config.setFileStoreQuota(Long.getLong("chat.files.quota", config.getFileStoreQuota()));
+    config.setHistoryEnabled(Boolean.parseBoolean(System.getProperty("chat.history", Boolean.toString(config.isHistoryEnabled()))));
+    config.setHistoryDir(Path.of(System.getProperty("chat.history.dir", config.getHistoryDir().toString())));
+    config.setHistorySegmentBytes(Integer.getInteger("chat.history.segmentBytes", config.getHistorySegmentBytes()));
+    config.setHistoryRetentionBytes(Long.getLong("chat.history.retentionBytes", config.getHistoryRetentionBytes()));
+    config.setHistoryRetentionMillis(Long.getLong("chat.history.retentionMs", config.getHistoryRetentionMillis()));
+    config.setHistoryFlushMillis(Long.getLong("chat.history.flushMs", config.getHistoryFlushMillis()));
+    config.setHistoryReplayCount(Integer.getInteger("chat.history.replay", config.getHistoryReplayCount()));
+    config.setSessionGraceMillis(Long.getLong("chat.session.graceMs", config.getSessionGraceMillis()));
+    config.setSessionReplayBuffer(Integer.getInteger("chat.session.replayBuffer", config.getSessionReplayBuffer()));
+    config.setHeartbeatMillis(Long.getLong("chat.heartbeatMs", config.getHeartbeatMillis()));
+    config.setIdleTimeoutMillis(Long.getLong("chat.idleTimeoutMs", config.getIdleTimeoutMillis()));
+    config.setWriteTimeoutMillis(Long.getLong("chat.writeTimeoutMs", config.getWriteTimeoutMillis()));
+    config.setTextMessagesPerSecond(Long.getLong("chat.limit.textPerSec", config.getTextMessagesPerSecond()));
+    config.setTextBurst(Long.getLong("chat.limit.textBurst", config.getTextBurst()));
+    config.setTextBytesPerSecond(Long.getLong("chat.limit.textBytesPerSec", config.getTextBytesPerSecond()));
+    config.setFileBytesPerSecond(Long.getLong("chat.limit.fileBytesPerSec", config.getFileBytesPerSecond()));
+    config.setFanoutPerSecond(Long.getLong("chat.limit.fanoutPerSec", config.getFanoutPerSecond()));
+    config.setConnectionMessagesPerSecond(Long.getLong("chat.limit.connectionPerSec", config.getConnectionMessagesPerSecond()));
+    config.setBatchLingerMicros(Long.getLong("chat.batch.lingerMicros", config.getBatchLingerMicros()));
+    config.setBatchMaxMessages(Integer.getInteger("chat.batch.maxMessages", config.getBatchMaxMessages()));
+    config.setFanoutThreads(Integer.getInteger("chat.fanout.threads", config.getFanoutThreads()));
+    config.setFanoutParallelThreshold(Integer.getInteger("chat.fanout.parallelThreshold", config.getFanoutParallelThreshold()));
+    config.setMetricsPort(Integer.getInteger("chat.metrics.port", config.getMetricsPort()));
+    config.setSlowSendMillis(Long.getLong("chat.metrics.slowSendMs", config.getSlowSendMillis()));
+    config.setClusterPort(Integer.getInteger("chat.cluster.port", config.getClusterPort()));
+    config.setClusterPeers(parseList(System.getProperty("chat.cluster.peers", "")));
+    config.setNodeId(System.getProperty("chat.cluster.nodeId", config.getNodeId()));
+    return config;
+  }
+
+  private static List<String> parseList(String value) {
+    List<String> items = new ArrayList<>();
+    for (String item : value.split(",")) {
+      if (!item.isBlank()) {
+        items.add(item.trim());
+      }
+    }
+    return items;
+  }
+
+  // Executor running one ClientHandler per connection in blocking mode
+  public ExecutorService newClientExecutor() {
+    Thread.Builder builder = threads == Threads.VIRTUAL ? Thread.ofVirtual() : Thread.ofPlatform();
+    return Executors.newThreadPerTaskExecutor(builder.name("client-", 0).factory());
+  }
+
+  // Getters and Setters
+  public int getPort() {
+    return port;
+  }
+
+  public void setPort(int port) {
+    this.port = port;
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  public void setMode(Mode mode) {
+    this.mode = mode;
+  }
+
+  public int getEventLoopThreads() {
+    return eventLoopThreads;
+  }
+
+  public void setEventLoopThreads(int eventLoopThreads) {
+    this.eventLoopThreads = Math.max(1, eventLoopThreads);
+  }
+
+  public Threads getThreads() {
+    return threads;
+  }
+
+  public void setThreads(Threads threads) {
+    this.threads = threads;
+  }
+
+  public int getOutboundCapacity() {
+    return outboundCapacity;
+  }
+
+  public void setOutboundCapacity(int outboundCapacity) {
+    this.outboundCapacity = Math.max(1, outboundCapacity);
+  }
+
+  public int getOutboundHighWaterMark() {
+    return outboundHighWaterMark;
+  }
+
+  public void setOutboundHighWaterMark(int outboundHighWaterMark) {
+    this.outboundHighWaterMark = Math.max(1, outboundHighWaterMark);
+  }
+
+  // Text and control messages a client is sent for every file message or chunk while both are waiting
+  public int getControlLaneWeight() {
+    return controlLaneWeight;
+  }
+
+  public void setControlLaneWeight(int controlLaneWeight) {
+    this.controlLaneWeight = Math.max(1, controlLaneWeight);
+  }
+
+  public SlowConsumerPolicy getSlowConsumerPolicy() {
+    return slowConsumerPolicy;
+  }
+
+  public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+    this.slowConsumerPolicy = slowConsumerPolicy;
+  }
+
+  public long getSlowConsumerTimeoutMillis() {
+    return slowConsumerTimeoutMillis;
+  }
+
+  public void setSlowConsumerTimeoutMillis(long slowConsumerTimeoutMillis) {
+    this.slowConsumerTimeoutMillis = slowConsumerTimeoutMillis;
+  }
+
+  public long getPresenceCoalesceMillis() {
+    return presenceCoalesceMillis;
+  }
+
+  public void setPresenceCoalesceMillis(long presenceCoalesceMillis) {
+    this.presenceCoalesceMillis = presenceCoalesceMillis;
+  }
+
+  public Path getFilesDir() {
+    return filesDir;
+  }
+
+  public void setFilesDir(Path filesDir) {
+    this.filesDir = filesDir;
+  }
+
+  public long getMaxFileSize() {
+    return maxFileSize;
+  }
+
+  public void setMaxFileSize(long maxFileSize) {
+    this.maxFileSize = maxFileSize;
+  }
+
+  public long getFileRetentionMillis() {
+    return fileRetentionMillis;
+  }
+
+  public void setFileRetentionMillis(long fileRetentionMillis) {
+    this.fileRetentionMillis = fileRetentionMillis;
+  }
+
+  public long getFileStoreQuota() {
+    return fileStoreQuota;
+  }
+
+  public void setFileStoreQuota(long fileStoreQuota) {
+    this.fileStoreQuota = fileStoreQuota;
+  }
+
+  public boolean isHistoryEnabled() {
+    return historyEnabled;
+  }
+
+  public void setHistoryEnabled(boolean historyEnabled) {
+    this.historyEnabled = historyEnabled;
+  }
+
+  public Path getHistoryDir() {
+    return historyDir;
+  }
+
+  public void setHistoryDir(Path historyDir) {
+    this.historyDir = historyDir;
+  }
+
+  // Size of each memory-mapped log segment; also caps the size of one logged message
+  public int getHistorySegmentBytes() {
+    return historySegmentBytes;
+  }
+
+  public void setHistorySegmentBytes(int historySegmentBytes) {
+    this.historySegmentBytes = Math.max(64 * 1024, historySegmentBytes);
+  }
+
+  public long getHistoryRetentionBytes() {
+    return historyRetentionBytes;
+  }
+
+  public void setHistoryRetentionBytes(long historyRetentionBytes) {
+    this.historyRetentionBytes = historyRetentionBytes;
+  }
+
+  public long getHistoryRetentionMillis() {
+    return historyRetentionMillis;
+  }
+
+  public void setHistoryRetentionMillis(long historyRetentionMillis) {
+    this.historyRetentionMillis = historyRetentionMillis;
+  }
+
+  // How often appended messages are forced to disk; one fsync covers everything since the last
+  public long getHistoryFlushMillis() {
+    return historyFlushMillis;
+  }
+
+  public void setHistoryFlushMillis(long historyFlushMillis) {
+    this.historyFlushMillis = Math.max(1, historyFlushMillis);
+  }
+
+  // Messages replayed to a client when it logs in or joins a room
+  public int getHistoryReplayCount() {
+    return historyReplayCount;
+  }
+
+  public void setHistoryReplayCount(int historyReplayCount) {
+    this.historyReplayCount = Math.max(0, historyReplayCount);
+  }
+
+  // How long a dropped client stays logged in, waiting for it to reconnect
+  public long getSessionGraceMillis() {
+    return sessionGraceMillis;
+  }
+
+  public void setSessionGraceMillis(long sessionGraceMillis) {
+    this.sessionGraceMillis = Math.max(0, sessionGraceMillis);
+  }
+
+  // Unacknowledged messages kept per client for resending after a reconnect
+  public int getSessionReplayBuffer() {
+    return sessionReplayBuffer;
+  }
+
+  public void setSessionReplayBuffer(int sessionReplayBuffer) {
+    this.sessionReplayBuffer = Math.max(1, sessionReplayBuffer);
+  }
+
+  // Silence after which a client is pinged; 0 sends no pings
+  public long getHeartbeatMillis() {
+    return heartbeatMillis;
+  }
+
+  public void setHeartbeatMillis(long heartbeatMillis) {
+    this.heartbeatMillis = Math.max(0, heartbeatMillis);
+  }
+
+  // Silence after which a client is disconnected; 0 waits forever
+  public long getIdleTimeoutMillis() {
+    return idleTimeoutMillis;
+  }
+
+  public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+    this.idleTimeoutMillis = Math.max(0, idleTimeoutMillis);
+  }
+
+  // How long a write to a client may block before the client is disconnected; 0 waits forever
+  public long getWriteTimeoutMillis() {
+    return writeTimeoutMillis;
+  }
+
+  public void setWriteTimeoutMillis(long writeTimeoutMillis) {
+    this.writeTimeoutMillis = Math.max(0, writeTimeoutMillis);
+  }
+
+  // Chat and other non-file messages one user may send per second on average; 0 for no limit
+  public long getTextMessagesPerSecond() {
+    return textMessagesPerSecond;
+  }
+
+  public void setTextMessagesPerSecond(long textMessagesPerSecond) {
+    this.textMessagesPerSecond = Math.max(0, textMessagesPerSecond);
+  }
+
+  // Messages a user may send in a burst before the per-second limit applies
+  public long getTextBurst() {
+    return textBurst;
+  }
+
+  public void setTextBurst(long textBurst) {
+    this.textBurst = Math.max(1, textBurst);
+  }
+
+  public long getTextBytesPerSecond() {
+    return textBytesPerSecond;
+  }
+
+  public void setTextBytesPerSecond(long textBytesPerSecond) {
+    this.textBytesPerSecond = Math.max(0, textBytesPerSecond);
+  }
+
+  // Upload bandwidth per user
+  public long getFileBytesPerSecond() {
+    return fileBytesPerSecond;
+  }
+
+  public void setFileBytesPerSecond(long fileBytesPerSecond) {
+    this.fileBytesPerSecond = Math.max(0, fileBytesPerSecond);
+  }
+
+  // Deliveries (messages times recipients) the whole server fans out per second
+  public long getFanoutPerSecond() {
+    return fanoutPerSecond;
+  }
+
+  public void setFanoutPerSecond(long fanoutPerSecond) {
+    this.fanoutPerSecond = Math.max(0, fanoutPerSecond);
+  }
+
+  // Messages of any kind, pings and file chunks included, one connection may send per second
+  public long getConnectionMessagesPerSecond() {
+    return connectionMessagesPerSecond;
+  }
+
+  public void setConnectionMessagesPerSecond(long connectionMessagesPerSecond) {
+    this.connectionMessagesPerSecond = Math.max(0, connectionMessagesPerSecond);
+  }
+
+  // Longest a busy connection holds a flush back for more messages in nio mode; 0 flushes every time
+  public long getBatchLingerMicros() {
+    return batchLingerMicros;
+  }
+
+  public void setBatchLingerMicros(long batchLingerMicros) {
+    this.batchLingerMicros = Math.max(0, batchLingerMicros);
+  }
+
+  public int getBatchMaxMessages() {
+    return batchMaxMessages;
+  }
+
+  public void setBatchMaxMessages(int batchMaxMessages) {
+    this.batchMaxMessages = Math.max(1, batchMaxMessages);
+  }
+
+  // Threads, the broadcaster included, that share the fan-out of one message to a large audience
+  public int getFanoutThreads() {
+    return fanoutThreads;
+  }
+
+  public void setFanoutThreads(int fanoutThreads) {
+    this.fanoutThreads = Math.max(1, fanoutThreads);
+  }
+
+  // Audience size from which a broadcast is fanned out in parallel
+  public int getFanoutParallelThreshold() {
+    return fanoutParallelThreshold;
+  }
+
+  public void setFanoutParallelThreshold(int fanoutParallelThreshold) {
+    this.fanoutParallelThreshold = Math.max(1, fanoutParallelThreshold);
+  }
+
+  // Loopback port serving the metrics as plain text; 0 serves none (JMX still has them)
+  public int getMetricsPort() {
+    return metricsPort;
+  }
+
+  public void setMetricsPort(int metricsPort) {
+    this.metricsPort = Math.max(0, metricsPort);
+  }
+
+  // How long a message may wait in a client's queue before it is logged as a slow send
+  public long getSlowSendMillis() {
+    return slowSendMillis;
+  }
+
+  public void setSlowSendMillis(long slowSendMillis) {
+    this.slowSendMillis = Math.max(0, slowSendMillis);
+  }
+
+  // Port other nodes of the cluster connect to; 0 runs the server on its own
+  public int getClusterPort() {
+    return clusterPort;
+  }
+
+  public void setClusterPort(int clusterPort) {
+    this.clusterPort = Math.max(0, clusterPort);
+  }
+
+  // Cluster ports of the other nodes, as host:port; this node's own address may be among them
+  public List<String> getClusterPeers() {
+    return clusterPeers;
+  }
+
+  public void setClusterPeers(List<String> clusterPeers) {
+    this.clusterPeers = List.copyOf(clusterPeers);
+  }
+
+  // Unique name of this node in the cluster; null for host:port of the chat port
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  public void setNodeId(String nodeId) {
+    this.nodeId = nodeId;
+  }
+}
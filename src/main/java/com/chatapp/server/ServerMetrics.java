@@ -0,0 +1,307 @@
+package com.chatapp.server;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/*
+ * What the server is doing, recorded on the hot paths without taking locks: counters are LongAdders
+ * and timings go into LatencyHistograms. Gauges such as the number of connected clients are only
+ * computed when someone looks. Everything is read as one snapshot, by the scrape endpoint
+ * (MetricsEndpoint) and over JMX, where each sample is a read-only attribute of
+ * com.chatapp:type=ChatServer,port=<port>.
+ *
+ * Timings are in microseconds since startup:
+ *   fanout     - a broadcast handed to every recipient's queue
+ *   send_wait  - a message queued for one client until that client's writer takes it; sampled, see
+ *                OutboundQueue
+ *   encode     - a message encoded for the wire, once per format however many get it
+ *
+ * A send_wait over the slow-send threshold is logged as a slow_send line, at most one a second; the
+ * line says how many more there were since the last one.
+ */
+public final class ServerMetrics implements DynamicMBean {
+  private static final long SLOW_SEND_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+  private static final ChatMessage.MessageType[] TYPES = ChatMessage.MessageType.values();
+
+  // One value in a snapshot: a metric, optionally with one label
+  public static final class Sample {
+    private final String name;
+    private final String label;
+    private final String labelValue;
+    private final long value;
+
+    Sample(String name, String label, String labelValue, long value) {
+      this.name = name;
+      this.label = label;
+      this.labelValue = labelValue;
+      this.value = value;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getValue() {
+      return value;
+    }
+
+    // As in the text exposition format, e.g. chat_messages_in_total{type="text"}
+    public String getKey() {
+      return label == null ? name : name + "{" + label + "=\"" + labelValue + "\"}";
+    }
+
+    // JMX attribute name, e.g. chat_messages_in_total.text
+    String getAttributeName() {
+      return label == null ? name : name + "." + labelValue;
+    }
+  }
+
+  private static final class Gauge {
+    final String name;
+    final String label;
+    final String labelValue;
+    final LongSupplier value;
+
+    Gauge(String name, String label, String labelValue, LongSupplier value) {
+      this.name = name;
+      this.label = label;
+      this.labelValue = labelValue;
+      this.value = value;
+    }
+  }
+
+  private final long slowSendNanos;
+  private final LongAdder[] messagesIn = adders(TYPES.length);
+  private final LongAdder[] messagesOut = adders(TYPES.length);
+  private final LongAdder[] messagesDropped = adders(TYPES.length);
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final LatencyHistogram fanout = new LatencyHistogram();
+  private final LatencyHistogram sendWait = new LatencyHistogram();
+  private final LatencyHistogram encode = new LatencyHistogram();
+  private final LongAdder slowSends = new LongAdder();
+  // When the last slow_send line went out, and the slow sends since that were not logged
+  private final AtomicLong slowSendLogged = new AtomicLong(System.nanoTime() - SLOW_SEND_LOG_INTERVAL_NANOS);
+  private final LongAdder slowSendsUnlogged = new LongAdder();
+  private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+  ServerMetrics(ServerConfig config) {
+    this.slowSendNanos = TimeUnit.MILLISECONDS.toNanos(config.getSlowSendMillis());
+  }
+
+  private static LongAdder[] adders(int n) {
+    LongAdder[] adders = new LongAdder[n];
+    for (int i = 0; i < n; i++) {
+      adders[i] = new LongAdder();
+    }
+    return adders;
+  }
+
+  // A value read at snapshot time; label may be null
+  void gauge(String name, String label, String labelValue, LongSupplier value) {
+    gauges.add(new Gauge(name, label, labelValue, value));
+  }
+
+  void received(ChatMessage msg) {
+    messagesIn[msg.getType().ordinal()].increment();
+  }
+
+  // A message the server would not relay; counted rather than logged, since the client chooses how many
+  void dropped(ChatMessage msg) {
+    messagesDropped[msg.getType().ordinal()].increment();
+  }
+
+  void bytesRead(long n) {
+    bytesIn.add(n);
+  }
+
+  void bytesWritten(long n) {
+    bytesOut.add(n);
+  }
+
+  void fannedOut(long nanos) {
+    fanout.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+  }
+
+  void encoded(long nanos) {
+    encode.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+  }
+
+  // A writer took msg off the queue of client after it waited there, -1 if untimed; queued are still behind it
+  void handedOut(EncodedMessage msg, long waitedNanos, ClientConnection client, int queued) {
+    ChatMessage.MessageType type = msg.getMessage().getType();
+    messagesOut[type.ordinal()].increment();
+    if (waitedNanos < 0) {
+      return;
+    }
+    sendWait.record(TimeUnit.NANOSECONDS.toMicros(waitedNanos));
+    if (waitedNanos < slowSendNanos) {
+      return;
+    }
+    slowSends.increment();
+    long now = System.nanoTime();
+    long last = slowSendLogged.get();
+    if (now - last < SLOW_SEND_LOG_INTERVAL_NANOS || !slowSendLogged.compareAndSet(last, now)) {
+      slowSendsUnlogged.increment();
+      return;
+    }
+    System.out.println("slow_send user=" + (client == null ? null : client.getUsername())
+        + " type=" + type.name().toLowerCase()
+        + " waited_ms=" + TimeUnit.NANOSECONDS.toMillis(waitedNanos)
+        + " queued=" + queued
+        + " unlogged=" + slowSendsUnlogged.sumThenReset());
+  }
+
+  // Counts what is read through in, for the stream-based engine
+  InputStream countIn(InputStream in) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+          bytesIn.increment();
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+          bytesIn.add(n);
+        }
+        return n;
+      }
+    };
+  }
+
+  // Counts what is written through out, for the stream-based engine
+  OutputStream countOut(OutputStream out) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        bytesOut.increment();
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        bytesOut.add(len);
+      }
+    };
+  }
+
+  public List<Sample> snapshot() {
+    List<Sample> samples = new ArrayList<>();
+    for (Gauge gauge : gauges) {
+      samples.add(new Sample(gauge.name, gauge.label, gauge.labelValue, gauge.value.getAsLong()));
+    }
+    for (ChatMessage.MessageType type : TYPES) {
+      samples.add(new Sample("chat_messages_in_total", "type", type.name().toLowerCase(), messagesIn[type.ordinal()].sum()));
+    }
+    for (ChatMessage.MessageType type : TYPES) {
+      samples.add(new Sample("chat_messages_out_total", "type", type.name().toLowerCase(), messagesOut[type.ordinal()].sum()));
+    }
+    for (ChatMessage.MessageType type : TYPES) {
+      samples.add(new Sample("chat_messages_dropped_total", "type", type.name().toLowerCase(), messagesDropped[type.ordinal()].sum()));
+    }
+    samples.add(new Sample("chat_bytes_in_total", null, null, bytesIn.sum()));
+    samples.add(new Sample("chat_bytes_out_total", null, null, bytesOut.sum()));
+    addTiming(samples, "chat_fanout_micros", fanout);
+    addTiming(samples, "chat_send_wait_micros", sendWait);
+    addTiming(samples, "chat_encode_micros", encode);
+    samples.add(new Sample("chat_slow_sends_total", null, null, slowSends.sum()));
+    return samples;
+  }
+
+  // Quantiles, count and max, like a summary in the text exposition format
+  private static void addTiming(List<Sample> samples, String name, LatencyHistogram histogram) {
+    for (double quantile : QUANTILES) {
+      samples.add(new Sample(name, "quantile", Double.toString(quantile), histogram.percentile(quantile)));
+    }
+    samples.add(new Sample(name + "_count", null, null, histogram.count()));
+    samples.add(new Sample(name + "_max", null, null, histogram.max()));
+  }
+
+  // Makes the metrics visible over JMX; a name already taken, e.g. by a second server, is reported and skipped
+  void register(int port) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("com.chatapp:type=ChatServer,port=" + port));
+    } catch (JMException e) {
+      System.err.println("Error registering metrics with JMX: " + e.getMessage());
+    }
+  }
+
+  @Override
+  public Object getAttribute(String attribute) throws AttributeNotFoundException {
+    for (Sample sample : snapshot()) {
+      if (sample.getAttributeName().equals(attribute)) {
+        return sample.getValue();
+      }
+    }
+    throw new AttributeNotFoundException(attribute);
+  }
+
+  @Override
+  public AttributeList getAttributes(String[] attributes) {
+    List<Sample> samples = snapshot();
+    AttributeList list = new AttributeList();
+    for (String attribute : attributes) {
+      for (Sample sample : samples) {
+        if (sample.getAttributeName().equals(attribute)) {
+          list.add(new Attribute(attribute, sample.getValue()));
+          break;
+        }
+      }
+    }
+    return list;
+  }
+
+  @Override
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+  }
+
+  @Override
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  @Override
+  public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+    throw new ReflectionException(new NoSuchMethodException(actionName));
+  }
+
+  @Override
+  public MBeanInfo getMBeanInfo() {
+    List<Sample> samples = snapshot();
+    MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[samples.size()];
+    for (int i = 0; i < attributes.length; i++) {
+      Sample sample = samples.get(i);
+      attributes[i] = new MBeanAttributeInfo(sample.getAttributeName(), "long", sample.getKey(), true, false, false);
+    }
+    return new MBeanInfo(ServerMetrics.class.getName(), "Chat server metrics", attributes, null, null, null);
+  }
+}
@@ -0,0 +1,266 @@
+package com.chatapp.server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * A binary client's login, which outlives any one connection. The server routes everything for the
+ * user through the session; the session passes it on to the current connection, or keeps it while
+ * there is none.
+ *
+ * Messages are numbered from 1 as they are handed to the connection's writer (or buffered while
+ * detached), counting only FrameCodec.isSequenced ones. The client counts what it receives the same
+ * way, acknowledges now and then, and on reconnect says how many it got. Everything after that is
+ * still in the replay buffer unless more than its capacity went unacknowledged, and is sent again
+ * on the new connection, where it is numbered afresh as it is written.
+ */
+final class Session implements ClientConnection {
+  enum Resume {
+    // The client gets exactly what it missed
+    COMPLETE,
+    // More was missed than the buffer holds; the client needs fresh snapshots
+    GAP,
+    // The session ended before the client came back
+    ENDED
+  }
+
+  private final String token;
+  private final String username;
+  private final int capacity;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  // Null while detached
+  private ClientConnection connection;
+  // Sent but not acknowledged, oldest first; the last one is number sent
+  private final ArrayDeque<EncodedMessage> unacked = new ArrayDeque<>();
+  private long sent;
+  // Bumped on every detach, so a stale expiry can tell the client has been back since
+  private long detachCount;
+  private boolean ended;
+
+  Session(String token, String username, int capacity) {
+    this.token = token;
+    this.username = username;
+    this.capacity = capacity;
+  }
+
+  String getToken() {
+    return token;
+  }
+
+  @Override
+  public String getUsername() {
+    return username;
+  }
+
+  @Override
+  public void send(EncodedMessage msg) {
+    lock.lock();
+    try {
+      if (ended) {
+        return;
+      }
+      if (connection != null) {
+        // Under the lock, so nothing slips into a connection that is being detached
+        connection.send(msg);
+      } else if (FrameCodec.isSequenced(msg.getMessage())) {
+        buffer(msg);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Called by a connection's queue as it hands msg to the writer
+  void sequenced(OutboundQueue queue, EncodedMessage msg) {
+    if (!FrameCodec.isSequenced(msg.getMessage())) {
+      return;
+    }
+    lock.lock();
+    try {
+      // A writer that lost the session to a newer connection no longer counts
+      if (!ended && (connection == null || connection.getOutboundQueue() == queue)) {
+        buffer(msg);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void buffer(EncodedMessage msg) {
+    if (unacked.size() == capacity) {
+      unacked.pollFirst().release();
+    }
+    unacked.addLast(msg.retain());
+    sent++;
+  }
+
+  // The client has received everything up to and including number received
+  void acknowledged(long received) {
+    lock.lock();
+    try {
+      while (!unacked.isEmpty() && sent - unacked.size() < Math.min(received, sent)) {
+        unacked.pollFirst().release();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void attach(ClientConnection first) {
+    lock.lock();
+    try {
+      connection = first;
+      first.getOutboundQueue().setSession(this);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+   * Moves the session to a new connection from a client that has received `received` messages. Any
+   * previous connection is dropped first; the reply is sent ahead of whatever is resent.
+   */
+  Resume resume(ClientConnection next, long received, ChatMessage reply) {
+    ClientConnection previous;
+    Resume result;
+    lock.lock();
+    try {
+      if (ended) {
+        return Resume.ENDED;
+      }
+      previous = connection;
+      if (previous != null) {
+        detach0();
+      }
+      long oldest = sent - unacked.size() + 1;
+      result = received >= oldest - 1 && received <= sent ? Resume.COMPLETE : Resume.GAP;
+      connection = next;
+      next.getOutboundQueue().setSession(this);
+      reply.setOffset(result == Resume.COMPLETE ? received : sent);
+      next.sendMessage(reply);
+      if (result == Resume.COMPLETE) {
+        ArrayDeque<EncodedMessage> missed = new ArrayDeque<>();
+        while (sent > received) {
+          missed.addFirst(unacked.pollLast());
+          sent--;
+        }
+        for (EncodedMessage msg : missed) {
+          next.send(msg);
+          msg.release();
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (previous != null) {
+      previous.disconnect();
+    }
+    return result;
+  }
+
+  // Returns false if connection was not the current one; otherwise what it never wrote is kept
+  boolean detach(ClientConnection from) {
+    lock.lock();
+    try {
+      if (ended || connection != from) {
+        return false;
+      }
+      detach0();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void detach0() {
+    for (EncodedMessage msg : connection.getOutboundQueue().drain()) {
+      if (FrameCodec.isSequenced(msg.getMessage())) {
+        buffer(msg);
+      }
+      msg.release();
+    }
+    connection = null;
+    detachCount++;
+  }
+
+  long getDetachCount() {
+    lock.lock();
+    try {
+      return detachCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Ends the session unless the client reconnected since the given detach; returns true if it ended
+  boolean endIfDetached(long detachCount) {
+    lock.lock();
+    try {
+      if (ended || connection != null || this.detachCount != detachCount) {
+        return false;
+      }
+      end0();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  boolean isDetached() {
+    lock.lock();
+    try {
+      return connection == null && !ended;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void end() {
+    lock.lock();
+    try {
+      if (!ended) {
+        end0();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void end0() {
+    ended = true;
+    EncodedMessage msg;
+    while ((msg = unacked.pollFirst()) != null) {
+      msg.release();
+    }
+  }
+
+  @Override
+  public void disconnect() {
+    ClientConnection current;
+    lock.lock();
+    try {
+      current = connection;
+    } finally {
+      lock.unlock();
+    }
+    if (current != null) {
+      current.disconnect();
+    }
+  }
+
+  @Override
+  public EncodedMessage.Format getFormat() {
+    return EncodedMessage.Format.BINARY;
+  }
+
+  @Override
+  public OutboundQueue getOutboundQueue() {
+    lock.lock();
+    try {
+      return connection == null ? null : connection.getOutboundQueue();
+    } finally {
+      lock.unlock();
+    }
+  }
+}
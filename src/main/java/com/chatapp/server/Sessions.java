@@ -0,0 +1,94 @@
+package com.chatapp.server;
+
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Sessions by token. A binary client gets a SESSION message with its token once it has logged in. When
+ * its connection drops, the session stays logged in for graceMillis: to everyone else the user never
+ * left. A client that reconnects in time sends SESSION with the token and how many messages it has
+ * received instead of logging in, and carries on where it was. Once the grace period is over the
+ * user leaves as if it had disconnected then.
+ */
+class Sessions {
+  private final ChatServer server;
+  private final ScheduledExecutorService scheduler;
+  private final long graceMillis;
+  private final int replayBuffer;
+  private final ConcurrentHashMap<String, Session> byToken = new ConcurrentHashMap<>();
+  private final SecureRandom random = new SecureRandom();
+
+  Sessions(ChatServer server, ServerConfig config, ScheduledExecutorService scheduler) {
+    this.server = server;
+    this.scheduler = scheduler;
+    this.graceMillis = config.getSessionGraceMillis();
+    this.replayBuffer = config.getSessionReplayBuffer();
+  }
+
+  // A new session on the connection; its token goes out once the login has been accepted
+  Session create(ClientConnection connection) {
+    byte[] bytes = new byte[16];
+    random.nextBytes(bytes);
+    Session session = new Session(HexFormat.of().formatHex(bytes), connection.getUsername(), replayBuffer);
+    session.attach(connection);
+    byToken.put(session.getToken(), session);
+    return session;
+  }
+
+  /*
+   * Moves the session named in a SESSION request to the connection. Returns null if there is no such
+   * session for this user (it expired, or the server restarted); the client then logs in afresh.
+   */
+  Session resume(ClientConnection connection, ChatMessage request) {
+    Session session = request.getContent() == null ? null : byToken.get(request.getContent());
+    if (session == null || !session.getUsername().equals(connection.getUsername())) {
+      return null;
+    }
+    ChatMessage reply = new ChatMessage(ChatMessage.MessageType.SESSION, "Server", session.getToken());
+    Session.Resume result = session.resume(connection, request.getOffset(), reply);
+    if (result == Session.Resume.ENDED) {
+      return null;
+    }
+    if (result == Session.Resume.GAP) {
+      server.resync(session);
+    }
+    return session;
+  }
+
+  // The session's connection closed: keep the user logged in for the grace period
+  void disconnected(Session session, ClientConnection connection) {
+    if (!session.detach(connection)) {
+      return;
+    }
+    long detachCount = session.getDetachCount();
+    if (graceMillis == 0) {
+      expire(session, detachCount);
+    } else {
+      scheduler.schedule(() -> expire(session, detachCount), graceMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private boolean expire(Session session, long detachCount) {
+    if (!session.endIfDetached(detachCount)) {
+      return false;
+    }
+    byToken.remove(session.getToken(), session);
+    server.removeClient(session);
+    return true;
+  }
+
+  // Ends a session that is waiting for its client, e.g. because the user logged in again without it
+  boolean endDetached(Session session) {
+    return expire(session, session.getDetachCount());
+  }
+
+  // Logout, or a login that was refused
+  void end(Session session) {
+    session.end();
+    byToken.remove(session.getToken(), session);
+    server.removeClient(session);
+  }
+}
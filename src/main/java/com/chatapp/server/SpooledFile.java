@@ -0,0 +1,172 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/*
+ * An upload in progress, spooled to disk chunk by chunk so the server never holds more than one chunk
+ * of it in memory. Chunk boundaries and checksums are recorded as they arrive and the SHA-256 is
+ * computed on the fly; once complete, BlobStore takes the file over as a Blob.
+ */
+final class SpooledFile {
+  enum AppendResult {
+    ACCEPTED, REJECTED, DROPPED
+  }
+
+  static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+  private final String transferId;
+  private final String owner;
+  private final ChatMessage announce;
+  private final long size;
+  private final Path path;
+  private final FileChannel channel;
+  private final MessageDigest digest;
+
+  // Guarded by lock
+  private final ReentrantLock lock = new ReentrantLock();
+  private long received;
+  private int chunkCount;
+  private long[] chunkEnds = new long[16];
+  private long[] chunkChecksums = new long[16];
+  private boolean rejecting;
+  private boolean closed;
+  private volatile long lastActivity = System.currentTimeMillis();
+
+  SpooledFile(ChatMessage announce, String owner, Path dir) throws IOException {
+    this.transferId = announce.getTransferId();
+    this.owner = owner;
+    this.announce = announce;
+    this.size = announce.getFileSize();
+    this.path = Files.createTempFile(dir, "upload-", ".part");
+    this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      this.digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  String getTransferId() { return transferId; }
+
+  String getOwner() { return owner; }
+
+  // The uploader's announce: file name, target user, claimed hash and thumbnail
+  ChatMessage getAnnounce() { return announce; }
+
+  long getSize() { return size; }
+
+  long getLastActivity() { return lastActivity; }
+
+  long getReceived() {
+    lock.lock();
+    try {
+      return received;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  boolean isComplete() {
+    return getReceived() == size;
+  }
+
+  // Keeps the upload from expiring; an uploader (re)starting from getReceived() also clears earlier rejections
+  void touch() {
+    lock.lock();
+    try {
+      rejecting = false;
+      lastActivity = System.currentTimeMillis();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+   * Appends the next chunk. A chunk that is out of order or fails its checksum is REJECTED, which
+   * should make the uploader rewind to getReceived(); the rest of its window in flight is DROPPED
+   * quietly until a chunk at the right offset arrives.
+   */
+  AppendResult append(ChatMessage chunk) throws IOException {
+    byte[] data = chunk.getFileData();
+    lock.lock();
+    try {
+      if (closed) {
+        return AppendResult.DROPPED;
+      }
+      lastActivity = System.currentTimeMillis();
+      boolean valid = data != null && data.length > 0 && data.length <= MAX_CHUNK_SIZE
+          && chunk.getOffset() == received && received + data.length <= size && checksum(data) == chunk.getChecksum();
+      if (!valid) {
+        if (rejecting) {
+          return AppendResult.DROPPED;
+        }
+        rejecting = true;
+        return AppendResult.REJECTED;
+      }
+      rejecting = false;
+      ByteBuffer buf = ByteBuffer.wrap(data);
+      while (buf.hasRemaining()) {
+        channel.write(buf, received + buf.position());
+      }
+      digest.update(data);
+      if (chunkCount == chunkEnds.length) {
+        chunkEnds = Arrays.copyOf(chunkEnds, chunkCount * 2);
+        chunkChecksums = Arrays.copyOf(chunkChecksums, chunkCount * 2);
+      }
+      received += data.length;
+      chunkEnds[chunkCount] = received;
+      chunkChecksums[chunkCount] = chunk.getChecksum();
+      chunkCount++;
+      return AppendResult.ACCEPTED;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Hex SHA-256 of the complete upload; stops further appends
+  String finish() throws IOException {
+    lock.lock();
+    try {
+      closed = true;
+      channel.close();
+      return HexFormat.of().formatHex(digest.digest());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Only valid after finish()
+  Blob toBlob(Path dir, String hash) throws IOException {
+    return Blob.create(dir, hash, path, Arrays.copyOf(chunkEnds, chunkCount), Arrays.copyOf(chunkChecksums, chunkCount));
+  }
+
+  void discard() {
+    lock.lock();
+    try {
+      closed = true;
+      channel.close();
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      System.err.println("Error deleting spool file " + path + ": " + e.getMessage());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  static long checksum(byte[] data) {
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    return crc.getValue();
+  }
+}
@@ -0,0 +1,104 @@
+package com.chatapp.server;
+
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Hashed timer wheel for the per-connection deadlines: one tick every tickMillis on the server's
+ * timer thread fires whatever is due, however many connections there are, instead of a scheduled
+ * task or a sleeping thread each. Scheduling and cancelling are constant time; a deadline fires up
+ * to one tick late.
+ *
+ * Any thread may schedule. New timeouts wait in a queue until the next tick files them into the
+ * slot of their deadline tick, so the slots themselves are only touched by the timer thread. A
+ * timeout further away than one turn of the wheel stays in its slot until its turn comes round.
+ */
+final class TimerWheel {
+  final class Timeout {
+    private final Runnable task;
+    private final long deadline;
+    private volatile boolean cancelled;
+
+    private Timeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    // Cancelled timeouts are dropped from their slot when its tick comes
+    void cancel() {
+      cancelled = true;
+    }
+  }
+
+  private final long tickNanos;
+  private final long startNanos = System.nanoTime();
+  private final ArrayList<Timeout>[] slots;
+  private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+  // Last tick processed; only touched by the timer thread
+  private long tick;
+
+  // No generic array creation in Java: the slots array is made raw and only ever holds ArrayList<Timeout>
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  TimerWheel(ScheduledExecutorService scheduler, long tickMillis, int slotCount) {
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    this.slots = new ArrayList[slotCount];
+    for (int i = 0; i < slotCount; i++) {
+      slots[i] = new ArrayList<>();
+    }
+    scheduler.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+  }
+
+  // Runs task on the timer thread once delayMillis have passed; the task must not block
+  Timeout schedule(Runnable task, long delayMillis) {
+    long ticks = Math.max(1, (TimeUnit.MILLISECONDS.toNanos(delayMillis) + tickNanos - 1) / tickNanos);
+    Timeout timeout = new Timeout(task, currentTick() + ticks);
+    pending.add(timeout);
+    return timeout;
+  }
+
+  private long currentTick() {
+    return (System.nanoTime() - startNanos) / tickNanos;
+  }
+
+  // Catches up tick by tick if the timer thread was held up
+  private void advance() {
+    long now = currentTick();
+    while (tick < now) {
+      tick++;
+      Timeout timeout;
+      while ((timeout = pending.poll()) != null) {
+        if (timeout.deadline <= tick) {
+          fire(timeout);
+        } else {
+          slots[(int) (timeout.deadline % slots.length)].add(timeout);
+        }
+      }
+      ArrayList<Timeout> slot = slots[(int) (tick % slots.length)];
+      // Tasks only schedule through pending, so the slot does not change under this loop
+      int kept = 0;
+      for (int i = 0; i < slot.size(); i++) {
+        Timeout due = slot.get(i);
+        if (due.deadline > tick && !due.cancelled) {
+          slot.set(kept++, due);
+        } else {
+          fire(due);
+        }
+      }
+      slot.subList(kept, slot.size()).clear();
+    }
+  }
+
+  private void fire(Timeout timeout) {
+    if (timeout.cancelled) {
+      return;
+    }
+    try {
+      timeout.task.run();
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+    }
+  }
+}
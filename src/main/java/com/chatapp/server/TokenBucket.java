@@ -0,0 +1,55 @@
+package com.chatapp.server;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Token bucket that lets a taker run into debt: take() always succeeds and returns how long the
+ * taker should now hold off for the bucket to be back at zero. A sender that pauses for that long
+ * before taking again averages the refill rate, with bursts of up to capacity.
+ *
+ * The server-wide fanout bucket is taken from by every connection, so it is guarded by a lock
+ * rather than a monitor: a virtual thread waiting for it unmounts instead of pinning its carrier.
+ */
+final class TokenBucket {
+  private final double tokensPerNano;
+  private final long capacity;
+  private final ReentrantLock lock = new ReentrantLock();
+  private double tokens;
+  private long refilled = System.nanoTime();
+
+  TokenBucket(long perSecond, long capacity) {
+    this.tokensPerNano = perSecond / 1e9;
+    this.capacity = capacity;
+    this.tokens = capacity;
+  }
+
+  // Returns the nanoseconds to wait before taking more, 0 if the bucket is still in credit
+  long take(long amount) {
+    lock.lock();
+    try {
+      refill();
+      tokens -= amount;
+      return tokens >= 0 ? 0 : (long) (-tokens / tokensPerNano);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Whether it has refilled to capacity, so a new bucket would be no different
+  boolean isFull() {
+    lock.lock();
+    try {
+      refill();
+      return tokens >= capacity;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Under the lock
+  private void refill() {
+    long now = System.nanoTime();
+    tokens = Math.min(capacity, tokens + (now - refilled) * tokensPerNano);
+    refilled = now;
+  }
+}
@@ -0,0 +1,47 @@
+package com.chatapp.server;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Decides, per NIO connection, whether the loop should hold a flush back for a moment so the next few
+ * messages share one write. When messages arrive densely (a busy room), flushing each one costs a
+ * syscall and a TCP segment per message per recipient; lingering up to lingerNanos, or until
+ * maxMessages are waiting, turns a burst into one. When traffic is light, lingering would only add
+ * latency, so the writer flushes at once.
+ *
+ * Traffic counts as busy while the average gap between arriving messages is under half the linger
+ * time, i.e. a flush held back can expect at least two more messages to join it. The average moves
+ * an eighth of the way toward each new gap, so one quiet moment switches lingering off again.
+ *
+ * The blocking engine needs none of this: its writer thread only flushes once the queue runs dry,
+ * so under load messages pile up behind a write and go out together anyway.
+ */
+final class WriteBatcher {
+  private final long lingerNanos;
+  private final int maxMessages;
+  private long lastArrival = System.nanoTime();
+  private long averageGap = Long.MAX_VALUE / 2;
+
+  WriteBatcher(ServerConfig config) {
+    this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(config.getBatchLingerMicros());
+    this.maxMessages = config.getBatchMaxMessages();
+  }
+
+  // A message was queued for the connection; returns how long its flush may wait, 0 to flush now
+  synchronized long arrived() {
+    long now = System.nanoTime();
+    long gap = now - lastArrival;
+    lastArrival = now;
+    averageGap += (gap - averageGap) / 8;
+    return lingerNanos();
+  }
+
+  synchronized long lingerNanos() {
+    return averageGap * 2 < lingerNanos ? lingerNanos : 0;
+  }
+
+  // Messages worth one write; a batch this large is flushed without waiting out the linger time
+  int getMaxMessages() {
+    return maxMessages;
+  }
+}
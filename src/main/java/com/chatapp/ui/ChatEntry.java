@@ -0,0 +1,82 @@
+package com.chatapp.ui;
+
+import com.chatapp.client.Outbox;
+import com.chatapp.server.ChatMessage;
+import java.awt.Dimension;
+
+/*
+ * One line of a room's history as plain data: no Swing text elements, icons or buttons, which
+ * HistoryView only creates for the rows on screen. Immutable apart from how far along our own
+ * message or upload is; an image's size is read from its header when the entry is made, on the
+ * thread that received it, so laying out the row needs no image I/O on the EDT.
+ */
+final class ChatEntry {
+  enum Kind {
+    TEXT, SYSTEM, IMAGE, FILE
+  }
+
+  final Kind kind;
+  // Server time in epoch millis if stamped, otherwise when the entry was created
+  final long time;
+  final boolean stamped;
+  final String sender;
+  final String text;
+  final boolean mine;
+  // The stored file a download button fetches; null for none
+  final ChatMessage file;
+  // Encoded image (a thumbnail, or the whole image from a legacy client); null unless IMAGE
+  final byte[] image;
+
+  // -1 if the image cannot be read
+  final int imageWidth;
+  final int imageHeight;
+
+  // EDT only: whether our own message has gone out; null for everyone else's
+  Outbox.State delivery;
+  // EDT only: percent of our upload the server has, -1 if this is not an upload in progress
+  int progress = -1;
+
+  private ChatEntry(Kind kind, long time, String sender, String text, boolean mine, ChatMessage file, byte[] image) {
+    this.kind = kind;
+    this.stamped = time > 0;
+    this.time = time > 0 ? time : System.currentTimeMillis();
+    this.sender = sender;
+    this.text = text;
+    this.mine = mine;
+    this.file = file;
+    this.image = image;
+    Dimension size = image == null ? null : ImageLoader.readSize(image);
+    this.imageWidth = size == null ? -1 : size.width;
+    this.imageHeight = size == null ? -1 : size.height;
+  }
+
+  static ChatEntry text(String sender, String text, boolean mine, long time) {
+    return new ChatEntry(Kind.TEXT, time, sender, text, mine, null, null);
+  }
+
+  static ChatEntry system(String text) {
+    return new ChatEntry(Kind.SYSTEM, 0, null, text, false, null, null);
+  }
+
+  static ChatEntry image(String sender, byte[] image, boolean mine, ChatMessage file) {
+    return new ChatEntry(Kind.IMAGE, file == null ? 0 : file.getTimestamp(), sender, null, mine, file, image);
+  }
+
+  static ChatEntry file(String sender, ChatMessage file, boolean mine) {
+    return new ChatEntry(Kind.FILE, file.getTimestamp(), sender, file.getFileName(), mine, file, null);
+  }
+
+  // What the clipboard gets
+  String copyText() {
+    switch (kind) {
+      case SYSTEM:
+        return text;
+      case IMAGE:
+        return sender + " sent an image" + (file == null ? "" : ": " + file.getFileName());
+      case FILE:
+        return sender + " sent a file: " + text;
+      default:
+        return sender + ": " + text;
+    }
+  }
+}
@@ -3,29 +3,63 @@ package com.chatapp.ui;
 import com.formdev.flatlaf.extras.FlatSVGIcon;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
 import java.io.*;
-import java.net.Socket;
 import java.nio.file.Files;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
+import javax.swing.border.TitledBorder;
 import javax.swing.event.*;
-import javax.swing.text.*;
+import com.chatapp.client.ChatClient;
+import com.chatapp.client.FileUpload;
+import com.chatapp.client.Outbox;
 import com.chatapp.server.ChatMessage;
 
-public class ChatFrame extends JFrame {
-  private JTextPane chatPane;
-  private StyledDocument doc;
+public final class ChatFrame extends JFrame {
+  private static final long serialVersionUID = 1L;
+
+  private JScrollPane chatScroll;
   private JTextArea inputField;
   private JButton sendBtn, fileBtn;
   private JList<String> userList;
-  private DefaultListModel<String> listModel;
   private JLabel statusLabel;
-  private ObjectOutputStream out;
-  private ObjectInputStream in;
+  private JComboBox<String> roomBox;
+  private JButton leaveBtn;
+  // The connection, kept up and resumed by its own threads
+  private transient ChatClient client;
+  // Only touched by the reader thread
+  private final transient Map<String, FileDownload> downloads = new HashMap<>();
+  // Local copies of stored files by content hash: our own uploads and files fetched earlier
+  private final transient Map<String, Path> files = new ConcurrentHashMap<>();
+  // Where to save files that are still being fetched
+  private final transient Map<String, File> pendingSaves = new ConcurrentHashMap<>();
   private String username;
-  private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm");
+  // Chat history and member list of every joined room, by name; the lobby (everyone) is under ""
+  private final transient Map<String, RoomView> rooms = new ConcurrentHashMap<>();
+  private transient volatile RoomView currentRoom;
+  // Member counts from the last ROOM_LIST, biggest room first; EDT only
+  private final transient Map<String, Integer> roomSizes = new LinkedHashMap<>();
+  private boolean updatingRoomBox;
+  // Entries waiting for the EDT, and whether a pass to render them is already on its way
+  private final transient Queue<PendingEntry> pendingEntries = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean renderScheduled = new AtomicBoolean();
+  private final Timer renderTimer = new Timer(0, e -> renderPending());
+  private long lastRender;
+  // Decodes the images of all rooms off the EDT and caches them
+  private final transient ImageLoader images = new ImageLoader(IMAGE_THREADS, IMAGE_CACHE_BYTES);
 
   // Colors for Dark Mode
   private final Color BG_COLOR = new Color(30, 30, 30);
@@ -35,6 +69,16 @@ public class ChatFrame extends JFrame {
   private final Color OTHER_MSG_COLOR = new Color(66, 135, 245);
   private final Color SYSTEM_MSG_COLOR = new Color(180, 180, 180);
 
+  private static final String LOBBY = "Lobby";
+  // How long closing the window waits for the logout to go out
+  private static final long CLOSE_DRAIN_MILLIS = 1000;
+  // Incoming messages are rendered at most once per FRAME_MILLIS; each room keeps its last MAX_ENTRIES
+  private static final int FRAME_MILLIS = 16;
+  private static final int MAX_ENTRIES = 100_000;
+  // Decoded images are cached up to this many pixel bytes for all rooms together (~170 thumbnails at 300x300)
+  private static final long IMAGE_CACHE_BYTES = 64L * 1024 * 1024;
+  private static final int IMAGE_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
   public ChatFrame(String host, int port) {
     this.username = JOptionPane.showInputDialog(this, "Enter your username:", "Login", JOptionPane.PLAIN_MESSAGE);
     if (username == null || username.trim().isEmpty())
@@ -52,16 +96,15 @@ public class ChatFrame extends JFrame {
     getContentPane().setBackground(BG_COLOR);
 
     // Chat Area
-    chatPane = new JTextPane();
-    chatPane.setEditable(false);
-    chatPane.setBackground(BG_COLOR);
-    chatPane.setForeground(TEXT_COLOR);
-    chatPane.setBorder(new EmptyBorder(10, 10, 10, 10));
-    doc = chatPane.getStyledDocument();
+    renderTimer.setRepeats(false);
+    RoomView lobby = newRoomView(null);
+    chatScroll = new JScrollPane(lobby.historyView);
+    chatScroll.getViewport().setBackground(BG_COLOR);
+    rooms.put("", lobby);
+    currentRoom = lobby;
 
     // Users List
-    listModel = new DefaultListModel<>();
-    userList = new JList<>(listModel);
+    userList = new JList<>(lobby.members);
     userList.setBackground(INPUT_BG);
     userList.setForeground(TEXT_COLOR);
     userList.setSelectionBackground(OTHER_MSG_COLOR);
@@ -110,7 +153,7 @@ public class ChatFrame extends JFrame {
     bottom.add(inputField, BorderLayout.CENTER);
     bottom.add(btns, BorderLayout.EAST);
 
-    add(new JScrollPane(chatPane), BorderLayout.CENTER);
+    add(chatScroll, BorderLayout.CENTER);
     add(new JScrollPane(userList), BorderLayout.EAST);
     add(bottom, BorderLayout.SOUTH);
 
@@ -150,10 +193,10 @@ public class ChatFrame extends JFrame {
     bottomPanel.add(new JScrollPane(inputField), BorderLayout.CENTER);
     bottomPanel.add(buttonPanel, BorderLayout.EAST);
 
-    add(new JScrollPane(chatPane), BorderLayout.CENTER);
+    add(chatScroll, BorderLayout.CENTER);
     add(userList, BorderLayout.EAST);
     add(bottomPanel, BorderLayout.SOUTH);
-    add(statusLabel, BorderLayout.NORTH);
+    add(roomBar(), BorderLayout.NORTH);
 
     sendBtn.addActionListener(e -> sendMessage());
     fileBtn.addActionListener(e -> sendFile());
@@ -176,195 +219,553 @@ public class ChatFrame extends JFrame {
       public void windowOpened(WindowEvent e) {
         inputField.requestFocus();
       }
+
+      // Log out, so the server does not keep the session waiting for a reconnect
+      public void windowClosing(WindowEvent e) {
+        try {
+          client.logout(CLOSE_DRAIN_MILLIS);
+        } catch (InterruptedException ex) {
+          // Exiting anyway
+        }
+      }
     });
 
     setVisible(true);
   }
 
-  private void appendMessage(String sender, String content, Color color, int alignment) {
-    SwingUtilities.invokeLater(() -> {
-      try {
-        String timestamp = "[" + timeFormat.format(new Date()) + "] ";
-        SimpleAttributeSet alignAttr = new SimpleAttributeSet();
-        StyleConstants.setAlignment(alignAttr, alignment);
-        int start = doc.getLength();
-
-        // Timestamp
-        SimpleAttributeSet timeAttr = new SimpleAttributeSet();
-        StyleConstants.setForeground(timeAttr, SYSTEM_MSG_COLOR);
-        StyleConstants.setItalic(timeAttr, true);
-        doc.insertString(doc.getLength(), timestamp, timeAttr);
-
-        // Sender
-        SimpleAttributeSet senderAttr = new SimpleAttributeSet();
-        StyleConstants.setForeground(senderAttr, color);
-        StyleConstants.setBold(senderAttr, true);
-        doc.insertString(doc.getLength(), sender + ": ", senderAttr);
-
-        // Content
-        SimpleAttributeSet contentAttr = new SimpleAttributeSet();
-        StyleConstants.setForeground(contentAttr, TEXT_COLOR);
-        doc.insertString(doc.getLength(), content + "\n", contentAttr);
-
-        doc.setParagraphAttributes(start, doc.getLength() - start, alignAttr, false);
-        chatPane.setCaretPosition(doc.getLength());
-      } catch (BadLocationException e) {
-        e.printStackTrace();
-      }
-    });
+  // time is when the server received the message, 0 for now
+  private void appendMessage(RoomView view, String sender, String content, boolean mine, long time) {
+    render(view, ChatEntry.text(sender, content, mine, time), true);
   }
 
+  // Shown in whichever room is on screen
   private void appendSystemMessage(String content) {
-    SwingUtilities.invokeLater(() -> {
-      try {
-        SimpleAttributeSet alignAttr = new SimpleAttributeSet();
-        StyleConstants.setAlignment(alignAttr, StyleConstants.ALIGN_CENTER);
-        int start = doc.getLength();
+    appendSystemMessage(currentRoom, content);
+  }
 
-        SimpleAttributeSet sysAttr = new SimpleAttributeSet();
-        StyleConstants.setForeground(sysAttr, SYSTEM_MSG_COLOR);
-        StyleConstants.setItalic(sysAttr, true);
-        doc.insertString(doc.getLength(), "— " + content + " —\n", sysAttr);
+  private void appendSystemMessage(RoomView view, String content) {
+    render(view, ChatEntry.system(content), false);
+  }
 
-        doc.setParagraphAttributes(start, doc.getLength() - start, alignAttr, false);
-      } catch (BadLocationException e) {
-        e.printStackTrace();
-      }
-    });
+  // With a stored file, imageData is its thumbnail and a download button fetches the original
+  private void appendImage(RoomView view, byte[] imageData, String sender, boolean mine, ChatMessage file) {
+    render(view, ChatEntry.image(sender, imageData, mine, file), true);
   }
 
-  private void appendImage(byte[] imageData, String sender, int alignment, Color senderColor) {
-    SwingUtilities.invokeLater(() -> {
-      try {
-        String timestamp = "[" + timeFormat.format(new Date()) + "] ";
-        SimpleAttributeSet alignAttr = new SimpleAttributeSet();
-        StyleConstants.setAlignment(alignAttr, alignment);
-        int start = doc.getLength();
-
-        // Timestamp
-        SimpleAttributeSet timeAttr = new SimpleAttributeSet();
-        StyleConstants.setForeground(timeAttr, SYSTEM_MSG_COLOR);
-        StyleConstants.setItalic(timeAttr, true);
-        doc.insertString(doc.getLength(), timestamp, timeAttr);
-
-        // Sender
-        SimpleAttributeSet senderAttr = new SimpleAttributeSet();
-        StyleConstants.setForeground(senderAttr, senderColor);
-        StyleConstants.setBold(senderAttr, true);
-        doc.insertString(doc.getLength(), sender + " sent an image:\n", senderAttr);
-
-        // Image
-        ImageIcon icon = new ImageIcon(imageData);
-        Image img = icon.getImage();
-        int width = img.getWidth(null);
-        int height = img.getHeight(null);
-        if (width > 300) {
-          double ratio = 300.0 / width;
-          img = img.getScaledInstance(300, (int) (height * ratio), Image.SCALE_SMOOTH);
-          icon = new ImageIcon(img);
-        }
+  private void appendFileDownload(RoomView view, ChatMessage msg, String sender, boolean mine) {
+    render(view, ChatEntry.file(sender, msg, mine), true);
+  }
 
-        chatPane.setCaretPosition(doc.getLength());
-        chatPane.insertIcon(icon);
-        doc.insertString(doc.getLength(), "\n", null);
+  /*
+   * Queues an entry for a room's history; any thread may call it. The EDT takes everything queued at
+   * most once per frame and appends it to each room in one batch, so a burst of messages costs one
+   * layout and repaint instead of one each. System lines do not count as unread. While older history
+   * is on its way for the room, the reader thread collects the entries from before it separately.
+   */
+  private void render(RoomView view, ChatEntry entry, boolean unread) {
+    if (view == null) {
+      return;
+    }
+    long before = view.loadingBefore;
+    if (entry.stamped && before > 0 && entry.time <= before) {
+      view.olderPage.add(entry);
+      return;
+    }
+    pendingEntries.add(new PendingEntry(view, entry, unread));
+    if (renderScheduled.compareAndSet(false, true)) {
+      SwingUtilities.invokeLater(this::scheduleRender);
+    }
+  }
 
-        doc.setParagraphAttributes(start, doc.getLength() - start, alignAttr, false);
-        chatPane.setCaretPosition(doc.getLength());
-      } catch (BadLocationException e) {
-        e.printStackTrace();
+  private void scheduleRender() {
+    long wait = FRAME_MILLIS - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastRender);
+    if (wait <= 0) {
+      renderPending();
+    } else {
+      renderTimer.setInitialDelay((int) wait);
+      renderTimer.restart();
+    }
+  }
+
+  private void renderPending() {
+    // Cleared first: whatever is queued from now on schedules another pass
+    renderScheduled.set(false);
+    lastRender = System.nanoTime();
+    Map<RoomView, List<ChatEntry>> batches = new LinkedHashMap<>();
+    Map<RoomView, Integer> unread = new HashMap<>();
+    PendingEntry pending;
+    while ((pending = pendingEntries.poll()) != null) {
+      batches.computeIfAbsent(pending.view, view -> new ArrayList<>()).add(pending.entry);
+      unread.merge(pending.view, pending.unread ? 1 : 0, Integer::sum);
+    }
+    for (Map.Entry<RoomView, List<ChatEntry>> batch : batches.entrySet()) {
+      RoomView view = batch.getKey();
+      view.history.append(batch.getValue());
+      if (view != currentRoom && unread.get(view) > 0) {
+        view.unread += unread.get(view);
+        roomBox.repaint();
       }
-    });
+    }
   }
 
-  private void appendFileDownload(ChatMessage msg, int alignment, Color senderColor) {
+  // Reader thread: the page of older history asked for by loadOlder is complete
+  private void olderArrived(RoomView view) {
+    List<ChatEntry> page = new ArrayList<>(view.olderPage);
+    view.olderPage.clear();
     SwingUtilities.invokeLater(() -> {
-      try {
-        String timestamp = "[" + timeFormat.format(new Date()) + "] ";
-        SimpleAttributeSet alignAttr = new SimpleAttributeSet();
-        StyleConstants.setAlignment(alignAttr, alignment);
-        int start = doc.getLength();
-
-        // Timestamp
-        SimpleAttributeSet timeAttr = new SimpleAttributeSet();
-        StyleConstants.setForeground(timeAttr, SYSTEM_MSG_COLOR);
-        StyleConstants.setItalic(timeAttr, true);
-        doc.insertString(doc.getLength(), timestamp, timeAttr);
-
-        // Sender
-        SimpleAttributeSet senderAttr = new SimpleAttributeSet();
-        StyleConstants.setForeground(senderAttr, senderColor);
-        StyleConstants.setBold(senderAttr, true);
-        doc.insertString(doc.getLength(), msg.getSender() + " sent a file: " + msg.getFileName() + " ", senderAttr);
-
-        // Download Button
-        Icon downloadIcon = new FlatSVGIcon("icons/downloadBtn.svg", 12, 12);
-        JButton downloadBtn = new JButton(downloadIcon);
-        downloadBtn.setCursor(new Cursor(Cursor.HAND_CURSOR));
-        downloadBtn.addActionListener(e -> saveFile(msg));
-
-        chatPane.setCaretPosition(doc.getLength());
-        chatPane.insertComponent(downloadBtn);
-
-        doc.insertString(doc.getLength(), "\n", null);
-        doc.setParagraphAttributes(start, doc.getLength() - start, alignAttr, false);
-        chatPane.setCaretPosition(doc.getLength());
-      } catch (BadLocationException e) {
-        e.printStackTrace();
-      }
+      view.history.prepend(page);
+      view.loadingBefore = 0;
     });
   }
 
-  private void connectToServer(String host, int port) {
-    new Thread(() -> {
-      try {
-        Socket socket = new Socket(host, port);
-        out = new ObjectOutputStream(socket.getOutputStream());
-        in = new ObjectInputStream(socket.getInputStream());
+  // EDT: the history view is scrolled near its oldest entry
+  private void loadOlder(RoomView view) {
+    long before = view.history.oldestStamped();
+    if (view.loadingBefore != 0 || before == 0) {
+      return;
+    }
+    ChatMessage request = new ChatMessage(ChatMessage.MessageType.HISTORY, username, Integer.toString(view.history.countStampedAt(before)));
+    request.setRoom(view.room);
+    request.setOffset(before);
+    view.loadingBefore = before;
+    try {
+      send(request);
+    } catch (IOException e) {
+      // Asked again once connected and scrolled
+      view.loadingBefore = 0;
+    }
+  }
+
+  private RoomView newRoomView(String room) {
+    ChatHistory history = new ChatHistory(MAX_ENTRIES);
+    RoomView[] view = new RoomView[1];
+    HistoryView historyView = new HistoryView(history, images, BG_COLOR, TEXT_COLOR, MY_MSG_COLOR, OTHER_MSG_COLOR, SYSTEM_MSG_COLOR,
+        new HistoryView.Listener() {
+          @Override
+          public void olderNeeded(ChatHistory older) {
+            loadOlder(view[0]);
+          }
+
+          @Override
+          public void save(ChatMessage file) {
+            saveFile(file);
+          }
+        });
+    view[0] = new RoomView(room, history, historyView);
+    return view[0];
+  }
 
-        out.writeObject(new ChatMessage(ChatMessage.MessageType.TEXT, username, "Login"));
+  // Connects on the client's own threads; everything it receives comes back through the listener
+  private void connectToServer(String host, int port) {
+    client = new ChatClient(host, port, username, new ChatClient.Listener() {
+      @Override
+      public void received(ChatMessage msg) {
+        handleIncomingMessage(msg);
+      }
 
+      @Override
+      public void connected() {
         SwingUtilities.invokeLater(() -> {
           statusLabel.setText("Connected as " + username);
           statusLabel.setForeground(MY_MSG_COLOR);
         });
+      }
 
-        while (true) {
-          ChatMessage msg = (ChatMessage) in.readObject();
-          handleIncomingMessage(msg);
-        }
-      } catch (Exception e) {
+      @Override
+      public void sessionStarted(ChatClient.Start start, boolean reconnected) throws IOException {
+        ChatFrame.this.sessionStarted(start, reconnected);
+      }
+
+      @Override
+      public void connectionLost() {
+        appendSystemMessage("Connection lost.");
+      }
+
+      @Override
+      public void reconnecting(long waitMillis) {
+        SwingUtilities.invokeLater(() -> {
+          statusLabel.setText("Disconnected. Reconnecting in " + Math.max(1, waitMillis / 1000) + "s...");
+          statusLabel.setForeground(Color.RED);
+        });
+      }
+
+      @Override
+      public void refused() {
         SwingUtilities.invokeLater(() -> {
           statusLabel.setText("Disconnected from server.");
           statusLabel.setForeground(Color.RED);
         });
-        appendSystemMessage("Connection lost.");
       }
-    }).start();
+
+      // Should the session be gone, lobby history resumes from the last message shown
+      @Override
+      public long historySince() {
+        return ChatFrame.historySince(view(null));
+      }
+    });
+    client.start();
+  }
+
+  private static long historySince(RoomView view) {
+    return view.newest > 0 ? view.newest + 1 : 0;
+  }
+
+  // Reader thread: the session has started, and held chat goes out once this returns
+  private void sessionStarted(ChatClient.Start start, boolean reconnected) throws IOException {
+    if (start != ChatClient.Start.RESUMED) {
+      // A page of older history still on its way may be lost: keep what came, scrolling asks again
+      for (RoomView view : rooms.values()) {
+        if (view.loadingBefore != 0) {
+          olderArrived(view);
+        }
+      }
+    }
+    if (start == ChatClient.Start.GAP) {
+      // More was missed than the server kept: user lists are on their way, chat has to be asked for
+      for (RoomView view : rooms.values()) {
+        ChatMessage history = new ChatMessage(ChatMessage.MessageType.HISTORY, username, null);
+        history.setRoom(view.room);
+        history.setTimestamp(historySince(view));
+        send(history);
+      }
+    } else if (start == ChatClient.Start.EXPIRED) {
+      // The server forgot us, e.g. it restarted: rejoin our rooms, with history from where each left off
+      for (RoomView view : rooms.values()) {
+        if (view.room != null) {
+          ChatMessage join = new ChatMessage(ChatMessage.MessageType.JOIN_ROOM, username, null);
+          join.setRoom(view.room);
+          join.setTimestamp(historySince(view));
+          send(join);
+        }
+      }
+    }
+    if (reconnected) {
+      appendSystemMessage("Reconnected.");
+    }
+    // Downloads pick up from what already arrived; uploads waiting in sendFile() resume themselves
+    for (FileDownload download : downloads.values()) {
+      fetch(download.getAnnounce().getContentHash(), download.getReceived());
+    }
   }
 
   private void handleIncomingMessage(ChatMessage msg) {
+    if (msg.getTimestamp() > 0 && msg.getTargetUser() == null) {
+      RoomView shown = view(msg.getRoom());
+      if (shown != null && msg.getTimestamp() > shown.newest) {
+        shown.newest = msg.getTimestamp();
+      }
+    }
     if (msg.getType() == ChatMessage.MessageType.USER_LIST) {
       SwingUtilities.invokeLater(() -> {
-        listModel.clear();
+        RoomView view = view(msg.getRoom());
+        if (view == null)
+          return;
+        view.members.clear();
         for (String user : msg.getContent().split(",")) {
           if (!user.isEmpty())
-            listModel.addElement(user);
+            addUserSorted(view.members, user);
+        }
+        view.presenceVersion = msg.getVersion();
+      });
+    } else if (msg.getType() == ChatMessage.MessageType.PRESENCE) {
+      SwingUtilities.invokeLater(() -> applyPresenceDelta(msg));
+    } else if (msg.getType() == ChatMessage.MessageType.ROOM_LIST) {
+      SwingUtilities.invokeLater(() -> {
+        roomSizes.clear();
+        for (String entry : msg.getContent().split(",")) {
+          int colon = entry.lastIndexOf(':');
+          if (colon > 0)
+            roomSizes.put(entry.substring(0, colon), Integer.parseInt(entry.substring(colon + 1)));
         }
+        refreshRoomBox();
       });
+    } else if (msg.getType() == ChatMessage.MessageType.FILE && msg.getTransferId() != null) {
+      startDownload(msg);
+    } else if (msg.getType() == ChatMessage.MessageType.FILE_CHUNK) {
+      receiveChunk(msg);
+    } else if (msg.getType() == ChatMessage.MessageType.HISTORY) {
+      // Ends the history the server replays on login and room join, or a page of older history
+      int count = Integer.parseInt(msg.getContent());
+      RoomView view = view(msg.getRoom());
+      if (msg.getOffset() > 0) {
+        if (view != null && view.loadingBefore == msg.getOffset()) {
+          olderArrived(view);
+        }
+      } else if (count > 0) {
+        appendSystemMessage(view, count == 1 ? "1 earlier message" : count + " earlier messages");
+      }
+    } else if (msg.getType() == ChatMessage.MessageType.FILE && msg.getContentHash() != null) {
+      // Reference to a stored file: fetched only if the user saves it
+      boolean mine = isMine(msg);
+      String sender = mine ? "Me" : msg.getSender();
+      if (isImage(msg.getFileName()) && msg.getFileData() != null) {
+        appendImage(viewFor(msg), msg.getFileData(), sender, mine, msg);
+      } else {
+        appendFileDownload(viewFor(msg), msg, sender, mine);
+      }
     } else if (msg.getType() == ChatMessage.MessageType.FILE) {
-      String fileName = msg.getFileName().toLowerCase();
-      if (fileName.endsWith(".jpg") || fileName.endsWith(".png") || fileName.endsWith(".gif")
-          || fileName.endsWith(".jpeg")) {
-        appendImage(msg.getFileData(), msg.getSender(), StyleConstants.ALIGN_LEFT, OTHER_MSG_COLOR);
+      if (isImage(msg.getFileName())) {
+        appendImage(viewFor(msg), msg.getFileData(), msg.getSender(), false, null);
       } else {
-        appendFileDownload(msg, StyleConstants.ALIGN_LEFT, OTHER_MSG_COLOR);
+        appendFileDownload(viewFor(msg), msg, msg.getSender(), false);
       }
     } else {
       if (msg.getSender().equals("Server")) {
         appendSystemMessage(msg.getContent());
+      } else if (isMine(msg)) {
+        appendMessage(viewFor(msg), "Me", msg.getContent(), true, msg.getTimestamp());
+      } else {
+        appendMessage(viewFor(msg), msg.getSender(), msg.getContent(), false, msg.getTimestamp());
+      }
+    }
+  }
+
+  // The server never echoes a live message, so one from this user is history
+  private boolean isMine(ChatMessage msg) {
+    return username.equals(msg.getSender());
+  }
+
+  private void startDownload(ChatMessage announce) {
+    if (downloads.containsKey(announce.getTransferId())) {
+      // Resent after a gap: the chunks continue the download already in progress
+      return;
+    }
+    try {
+      FileDownload download = new FileDownload(announce);
+      if (download.isComplete()) {
+        download.close();
+        downloadFinished(download);
       } else {
-        appendMessage(msg.getSender(), msg.getContent(), OTHER_MSG_COLOR, StyleConstants.ALIGN_LEFT);
+        downloads.put(announce.getTransferId(), download);
       }
+    } catch (IOException e) {
+      appendSystemMessage("Error receiving file: " + e.getMessage());
+    }
+  }
+
+  private void receiveChunk(ChatMessage chunk) {
+    FileDownload download = downloads.get(chunk.getTransferId());
+    if (download == null) {
+      return;
+    }
+    try {
+      switch (download.write(chunk)) {
+        case COMPLETE:
+          downloads.remove(chunk.getTransferId());
+          downloadFinished(download);
+          break;
+        case RESEND:
+          fetch(chunk.getTransferId(), download.getReceived());
+          break;
+        default:
+          break;
+      }
+    } catch (IOException e) {
+      downloads.remove(chunk.getTransferId());
+      appendSystemMessage("Error receiving file: " + e.getMessage());
+    }
+  }
+
+  private void downloadFinished(FileDownload download) throws IOException {
+    String hash = download.getAnnounce().getContentHash();
+    files.put(hash, download.getPath());
+    File target = pendingSaves.remove(hash);
+    if (target != null) {
+      copyFile(hash, target);
+    }
+  }
+
+  // Asks the server for a stored file, from the given offset on
+  private void fetch(String hash, long offset) throws IOException {
+    ChatMessage fetch = new ChatMessage(ChatMessage.MessageType.FILE_FETCH, username, null);
+    fetch.setContentHash(hash);
+    fetch.setOffset(offset);
+    send(fetch);
+  }
+
+  private static boolean isImage(String fileName) {
+    String name = fileName.toLowerCase();
+    return name.endsWith(".jpg") || name.endsWith(".png") || name.endsWith(".gif") || name.endsWith(".jpeg");
+  }
+
+  // Queues a control message for the writer thread; throws if not connected
+  private void send(ChatMessage msg) throws IOException {
+    client.send(msg);
+  }
+
+  // Must run on the EDT, in arrival order
+  private void applyPresenceDelta(ChatMessage msg) {
+    RoomView view = view(msg.getRoom());
+    if (view == null || view.presenceVersion < 0 || msg.getVersion() <= view.presenceVersion) {
+      return;
+    }
+    if (msg.getVersion() != view.presenceVersion + 1) {
+      // Missed an update: ask for a fresh snapshot and ignore deltas until it arrives
+      view.presenceVersion = -1;
+      ChatMessage resync = new ChatMessage(ChatMessage.MessageType.USER_LIST, username, null);
+      resync.setRoom(view.room);
+      try {
+        send(resync);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      return;
+    }
+    for (String change : msg.getContent().split(",")) {
+      if (change.length() < 2)
+        continue;
+      String user = change.substring(1);
+      if (change.charAt(0) == '+') {
+        addUserSorted(view.members, user);
+      } else {
+        view.members.removeElement(user);
+      }
+    }
+    view.presenceVersion = msg.getVersion();
+  }
+
+  // Binary search insert, so the list stays sorted without being rebuilt
+  private static void addUserSorted(DefaultListModel<String> listModel, String user) {
+    int low = 0;
+    int high = listModel.size() - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = listModel.get(mid).compareToIgnoreCase(user);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else if (listModel.get(mid).equals(user)) {
+        return;
+      } else {
+        low = mid + 1;
+      }
+    }
+    listModel.add(low, user);
+  }
+
+  private RoomView view(String room) {
+    return rooms.get(room == null ? "" : room);
+  }
+
+  // Where an incoming message is shown: its room, or the room on screen for a private message
+  private RoomView viewFor(ChatMessage msg) {
+    return msg.getTargetUser() != null ? currentRoom : view(msg.getRoom());
+  }
+
+  // Room switcher: pick a room to show it, or type a new name to join one
+  private JPanel roomBar() {
+    roomBox = new JComboBox<>();
+    roomBox.setEditable(true);
+    roomBox.setRenderer(new RoomRenderer());
+    roomBox.addActionListener(e -> {
+      Object selected = roomBox.getSelectedItem();
+      if (!updatingRoomBox && selected != null && !selected.toString().isBlank()) {
+        switchRoom(selected.toString().trim());
+      }
+    });
+    // The list of open rooms is fetched each time the popup opens
+    roomBox.addPopupMenuListener(new PopupMenuListener() {
+      public void popupMenuWillBecomeVisible(PopupMenuEvent e) {
+        try {
+          send(new ChatMessage(ChatMessage.MessageType.ROOM_LIST, username, null));
+        } catch (IOException ex) {
+          ex.printStackTrace();
+        }
+      }
+
+      public void popupMenuWillBecomeInvisible(PopupMenuEvent e) {
+      }
+
+      public void popupMenuCanceled(PopupMenuEvent e) {
+      }
+    });
+    refreshRoomBox();
+
+    leaveBtn = new JButton("Leave");
+    leaveBtn.setEnabled(false);
+    leaveBtn.addActionListener(e -> leaveRoom());
+
+    JPanel roomPanel = new JPanel(new BorderLayout(5, 0));
+    roomPanel.setBackground(BG_COLOR);
+    roomPanel.setBorder(new EmptyBorder(5, 10, 5, 10));
+    roomPanel.add(roomBox, BorderLayout.CENTER);
+    roomPanel.add(leaveBtn, BorderLayout.EAST);
+
+    JPanel bar = new JPanel(new BorderLayout());
+    bar.setBackground(BG_COLOR);
+    bar.add(statusLabel, BorderLayout.CENTER);
+    bar.add(roomPanel, BorderLayout.EAST);
+    return bar;
+  }
+
+  // Joins the room first if needed; must run on the EDT
+  private void switchRoom(String name) {
+    String room = name.equals(LOBBY) ? null : name;
+    RoomView view = view(room);
+    if (view == null) {
+      if (room.length() > 64 || room.contains(",") || room.contains(":")) {
+        appendSystemMessage("Room names are up to 64 characters, without commas or colons.");
+        refreshRoomBox();
+        return;
+      }
+      view = newRoomView(room);
+      rooms.put(room, view);
+      ChatMessage join = new ChatMessage(ChatMessage.MessageType.JOIN_ROOM, username, null);
+      join.setRoom(room);
+      try {
+        send(join);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    showRoom(view);
+  }
+
+  private void leaveRoom() {
+    RoomView view = currentRoom;
+    if (view.room == null) {
+      return;
+    }
+    ChatMessage leave = new ChatMessage(ChatMessage.MessageType.LEAVE_ROOM, username, null);
+    leave.setRoom(view.room);
+    try {
+      send(leave);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    rooms.remove(view.room);
+    showRoom(view(null));
+  }
+
+  private void showRoom(RoomView view) {
+    currentRoom = view;
+    view.unread = 0;
+    chatScroll.setViewportView(view.historyView);
+    view.historyView.scrollToEnd();
+    userList.setModel(view.members);
+    ((TitledBorder) userList.getBorder()).setTitle(view.room == null ? "Online Users" : "In " + view.room);
+    userList.repaint();
+    leaveBtn.setEnabled(view.room != null);
+    refreshRoomBox();
+  }
+
+  // Lobby, then joined rooms, then other open rooms from the last ROOM_LIST
+  private void refreshRoomBox() {
+    updatingRoomBox = true;
+    try {
+      DefaultComboBoxModel<String> model = new DefaultComboBoxModel<>();
+      model.addElement(LOBBY);
+      rooms.keySet().stream().filter(room -> !room.isEmpty()).sorted().forEach(model::addElement);
+      for (String room : roomSizes.keySet()) {
+        if (!rooms.containsKey(room)) {
+          model.addElement(room);
+        }
+      }
+      model.setSelectedItem(currentRoom.room == null ? LOBBY : currentRoom.room);
+      roomBox.setModel(model);
+    } finally {
+      updatingRoomBox = false;
     }
   }
 
@@ -381,44 +782,86 @@ public class ChatFrame extends JFrame {
         msg.setContent(parts[1]);
       }
     }
-
-    try {
-      out.writeObject(msg);
-      appendMessage("Me", text, MY_MSG_COLOR, StyleConstants.ALIGN_RIGHT);
-      inputField.setText("");
-      inputField.requestFocus();
-    } catch (IOException e) {
-      e.printStackTrace();
+    if (msg.getTargetUser() == null) {
+      msg.setRoom(currentRoom.room);
     }
+
+    // Shown at once, marked until the writer thread has sent it; while disconnected it waits for the connection
+    RoomView view = currentRoom;
+    ChatEntry entry = ChatEntry.text("Me", text, true, 0);
+    entry.delivery = Outbox.State.PENDING;
+    render(view, entry, true);
+    client.post(msg, state -> delivered(view, entry, state));
+    inputField.setText("");
+    inputField.requestFocus();
+  }
+
+  // Any thread: our message or upload went out, or did not
+  private void delivered(RoomView view, ChatEntry entry, Outbox.State state) {
+    SwingUtilities.invokeLater(() -> {
+      entry.delivery = state;
+      view.history.changed(entry);
+    });
   }
 
   private void sendFile() {
     JFileChooser chooser = new JFileChooser();
     if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
       File file = chooser.getSelectedFile();
-      try {
-        byte[] data = Files.readAllBytes(file.toPath());
-        ChatMessage msg = new ChatMessage(ChatMessage.MessageType.FILE, username, "File");
-        msg.setFileData(data);
-        msg.setFileName(file.getName());
-
-        String selected = userList.getSelectedValue();
-        if (selected != null && !selected.equals(username)) {
-          msg.setTargetUser(selected);
+      String selected = userList.getSelectedValue();
+      String targetUser = selected != null && !selected.equals(username) ? selected : null;
+      RoomView view = currentRoom;
+
+      // Streamed in chunks on its own thread so chat messages keep flowing during the upload
+      FileUpload upload = new FileUpload(file.toPath(), file.length(), username, targetUser,
+          targetUser == null ? view.room : null);
+      new Thread(() -> {
+        ChatEntry entry = null;
+        try {
+          byte[] thumbnail = isImage(file.getName()) ? thumbnail(file) : null;
+          upload.setThumbnail(thumbnail);
+          String hash = upload.getContentHash();
+          files.put(hash, file.toPath());
+
+          // Shown at once, with how much the server has until it has all of it
+          ChatMessage msg = new ChatMessage(ChatMessage.MessageType.FILE, username, "File");
+          msg.setFileName(file.getName());
+          msg.setContentHash(hash);
+          ChatEntry shown = thumbnail != null ? ChatEntry.image("Me", thumbnail, true, msg) : ChatEntry.file("Me", msg, true);
+          shown.delivery = Outbox.State.PENDING;
+          shown.progress = 0;
+          entry = shown;
+          render(view, shown, true);
+          upload.setProgress(percent -> SwingUtilities.invokeLater(() -> {
+            shown.progress = percent;
+            view.history.changed(shown);
+          }));
+
+          // Carries on from what the server has after a reconnect
+          client.upload(upload);
+          delivered(view, shown, Outbox.State.SENT);
+        } catch (IOException | InterruptedException e) {
+          if (entry != null) {
+            delivered(view, entry, Outbox.State.FAILED);
+          }
+          appendSystemMessage("Error sending file '" + file.getName() + "': " + e.getMessage());
         }
+      }, "upload-" + file.getName()).start();
+    }
+  }
 
-        out.writeObject(msg);
-
-        String fileName = file.getName().toLowerCase();
-        if (fileName.endsWith(".jpg") || fileName.endsWith(".png") || fileName.endsWith(".gif")
-            || fileName.endsWith(".jpeg")) {
-          appendImage(data, "Me", StyleConstants.ALIGN_RIGHT, MY_MSG_COLOR);
-        } else {
-          appendFileDownload(msg, StyleConstants.ALIGN_RIGHT, MY_MSG_COLOR);
-        }
-      } catch (IOException e) {
-        e.printStackTrace();
+  // Small preview sent with an image, so recipients can see it without fetching the file
+  private static byte[] thumbnail(File file) {
+    try {
+      BufferedImage scaled = ImageLoader.decode(file, 300, Integer.MAX_VALUE);
+      if (scaled == null) {
+        return null;
       }
+      ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      ImageIO.write(scaled, scaled.getColorModel().hasAlpha() ? "png" : "jpg", buf);
+      return buf.toByteArray();
+    } catch (IOException e) {
+      return null;
     }
   }
 
@@ -426,12 +869,90 @@ public class ChatFrame extends JFrame {
     JFileChooser chooser = new JFileChooser();
     chooser.setSelectedFile(new File(msg.getFileName()));
     if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
-      try (FileOutputStream fos = new FileOutputStream(chooser.getSelectedFile())) {
-        fos.write(msg.getFileData());
-        appendSystemMessage("File '" + msg.getFileName() + "' saved successfully.");
-      } catch (IOException e) {
-        appendSystemMessage("Error saving file: " + e.getMessage());
+      File target = chooser.getSelectedFile();
+      if (msg.getContentHash() == null) {
+        try (FileOutputStream fos = new FileOutputStream(target)) {
+          fos.write(msg.getFileData());
+          appendSystemMessage("File '" + msg.getFileName() + "' saved successfully.");
+        } catch (IOException e) {
+          appendSystemMessage("Error saving file: " + e.getMessage());
+        }
+      } else if (files.containsKey(msg.getContentHash())) {
+        copyFile(msg.getContentHash(), target);
+      } else {
+        // Not fetched yet: downloadFinished saves it once it arrives
+        pendingSaves.put(msg.getContentHash(), target);
+        try {
+          fetch(msg.getContentHash(), 0);
+          appendSystemMessage("Downloading '" + msg.getFileName() + "'...");
+        } catch (IOException e) {
+          pendingSaves.remove(msg.getContentHash());
+          appendSystemMessage("Error saving file: " + e.getMessage());
+        }
       }
     }
   }
+
+  private void copyFile(String hash, File target) {
+    try {
+      Files.copy(files.get(hash), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      appendSystemMessage("File '" + target.getName() + "' saved successfully.");
+    } catch (IOException e) {
+      appendSystemMessage("Error saving file: " + e.getMessage());
+    }
+  }
+
+  // Unread counts for joined rooms, member counts for the others
+  private class RoomRenderer extends DefaultListCellRenderer {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected,
+        boolean cellHasFocus) {
+      String label = value == null ? "" : value.toString();
+      RoomView view = view(LOBBY.equals(label) ? null : label);
+      if (view != null && view.unread > 0) {
+        label += " (" + view.unread + " new)";
+      } else if (view == null && roomSizes.containsKey(label)) {
+        label += " (" + roomSizes.get(label) + " online)";
+      }
+      return super.getListCellRendererComponent(list, label, index, isSelected, cellHasFocus);
+    }
+  }
+
+  // What to add to a room's history once the EDT gets to it
+  private static class PendingEntry {
+    final RoomView view;
+    final ChatEntry entry;
+    final boolean unread;
+
+    PendingEntry(RoomView view, ChatEntry entry, boolean unread) {
+      this.view = view;
+      this.entry = entry;
+      this.unread = unread;
+    }
+  }
+
+  // One room's history and members; room is null for the lobby. Changed only on the EDT.
+  private static class RoomView {
+    final String room;
+    final ChatHistory history;
+    final HistoryView historyView;
+    final DefaultListModel<String> members = new DefaultListModel<>();
+    // Version of the last applied presence update; -1 until the first snapshot arrives
+    long presenceVersion = -1;
+    int unread;
+    // Server time of the newest message received, set by the reader thread
+    volatile long newest;
+    // While a page of older history is on its way, the time it ends at; set on the EDT
+    volatile long loadingBefore;
+    // The page so far; only touched by the reader thread
+    final List<ChatEntry> olderPage = new ArrayList<>();
+
+    RoomView(String room, ChatHistory history, HistoryView historyView) {
+      this.room = room;
+      this.history = history;
+      this.historyView = historyView;
+    }
+  }
 }
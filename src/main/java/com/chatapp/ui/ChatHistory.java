@@ -0,0 +1,111 @@
+package com.chatapp.ui;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * The entries of one room's history, oldest first, capped at maxEntries: appending past the cap
+ * drops the oldest, and a page of older history only fills up to it. Dropped entries can be loaded
+ * again from the server by scrolling back. Changed in batches, and only on the EDT.
+ */
+final class ChatHistory {
+  interface Listener {
+    void added(int index, int count);
+
+    void removed(int index, int count);
+
+    void changed(int index);
+  }
+
+  private final int maxEntries;
+  private final ArrayList<ChatEntry> entries = new ArrayList<>();
+  private Listener listener;
+  // Whether the server may have entries older than the first one
+  private boolean hasOlder = true;
+
+  ChatHistory(int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  ChatEntry get(int index) {
+    return entries.get(index);
+  }
+
+  void append(List<ChatEntry> batch) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    int from = entries.size();
+    entries.addAll(batch);
+    if (listener != null) {
+      listener.added(from, batch.size());
+    }
+    int excess = entries.size() - maxEntries;
+    if (excess > 0) {
+      entries.subList(0, excess).clear();
+      hasOlder = true;
+      if (listener != null) {
+        listener.removed(0, excess);
+      }
+    }
+  }
+
+  // Older entries from the server, oldest first; an empty page means there are none left
+  void prepend(List<ChatEntry> page) {
+    if (page.isEmpty()) {
+      hasOlder = false;
+      return;
+    }
+    int room = Math.min(page.size(), maxEntries - entries.size());
+    if (room <= 0) {
+      return;
+    }
+    entries.addAll(0, page.subList(page.size() - room, page.size()));
+    if (listener != null) {
+      listener.added(0, room);
+    }
+  }
+
+  // The delivery state or progress of an entry changed; recent entries are found quickly
+  void changed(ChatEntry entry) {
+    int index = entries.lastIndexOf(entry);
+    if (index >= 0 && listener != null) {
+      listener.changed(index);
+    }
+  }
+
+  boolean hasOlder() {
+    return hasOlder;
+  }
+
+  // Server time of the oldest entry the server stamped, 0 if there is none yet
+  long oldestStamped() {
+    for (ChatEntry entry : entries) {
+      if (entry.stamped) {
+        return entry.time;
+      }
+    }
+    return 0;
+  }
+
+  // How many entries share that oldest server time, as several messages can share a millisecond
+  int countStampedAt(long time) {
+    int count = 0;
+    for (ChatEntry entry : entries) {
+      if (entry.stamped && entry.time == time) {
+        count++;
+      } else if (entry.stamped && entry.time > time) {
+        break;
+      }
+    }
+    return count;
+  }
+}
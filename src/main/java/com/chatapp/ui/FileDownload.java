@@ -0,0 +1,91 @@
+package com.chatapp.ui;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import com.chatapp.server.ChatMessage;
+
+/*
+ * A fetched file, written to a temp file as the chunks arrive so it never has to fit in memory.
+ * Chunks are checked against their CRC32; after a bad or missing chunk the caller fetches again from
+ * getReceived(), once, and everything after the gap is ignored until the resent chunks arrive.
+ */
+class FileDownload {
+  enum Result {
+    ACCEPTED, COMPLETE, IGNORED, RESEND
+  }
+
+  private final ChatMessage announce;
+  private final Path path;
+  private final FileChannel channel;
+  private long received;
+  private boolean resendRequested;
+
+  FileDownload(ChatMessage announce) throws IOException {
+    this.announce = announce;
+    this.path = Files.createTempFile("chat-", ".part");
+    this.path.toFile().deleteOnExit();
+    this.channel = FileChannel.open(path, StandardOpenOption.WRITE);
+  }
+
+  ChatMessage getAnnounce() {
+    return announce;
+  }
+
+  Path getPath() {
+    return path;
+  }
+
+  long getReceived() {
+    return received;
+  }
+
+  boolean isComplete() {
+    return received == announce.getFileSize();
+  }
+
+  Result write(ChatMessage chunk) throws IOException {
+    byte[] data = chunk.getFileData();
+    long offset = chunk.getOffset();
+    // A resent chunk may overlap what is already here; rewriting the same bytes is harmless
+    if (data == null || offset > received || offset + data.length > announce.getFileSize()) {
+      return requestResend();
+    }
+    if (offset + data.length <= received) {
+      return Result.IGNORED;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    if (crc.getValue() != chunk.getChecksum()) {
+      return requestResend();
+    }
+    ByteBuffer buf = ByteBuffer.wrap(data);
+    while (buf.hasRemaining()) {
+      channel.write(buf, offset + buf.position());
+    }
+    received = offset + data.length;
+    resendRequested = false;
+    if (isComplete()) {
+      channel.close();
+      return Result.COMPLETE;
+    }
+    return Result.ACCEPTED;
+  }
+
+  // Called when the announce arrives with nothing to follow
+  void close() throws IOException {
+    channel.close();
+  }
+
+  private Result requestResend() {
+    if (resendRequested) {
+      return Result.IGNORED;
+    }
+    resendRequested = true;
+    return Result.RESEND;
+  }
+}
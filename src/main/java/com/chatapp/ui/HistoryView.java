@@ -0,0 +1,616 @@
+package com.chatapp.ui;
+
+import com.chatapp.client.Outbox;
+import com.chatapp.server.ChatMessage;
+import com.formdev.flatlaf.extras.FlatSVGIcon;
+import java.awt.*;
+import java.awt.datatransfer.StringSelection;
+import java.awt.event.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.LineBreakMeasurer;
+import java.awt.font.TextAttribute;
+import java.awt.font.TextLayout;
+import java.text.AttributedString;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.swing.*;
+
+/*
+ * A room's history as a virtualized list: rows are painted straight from ChatHistory entries, and
+ * only the rows on screen (and a margin around them) have text layouts. Images are decoded off the
+ * EDT by an ImageLoader and drawn from its cache, with a placeholder until they are ready. Row
+ * heights live in RowHeights, estimated until a row is first laid out, so scrolling and painting
+ * cost the same with a hundred thousand entries as with ten.
+ *
+ * When a row turns out taller or shorter than estimated, the first row on screen that was already
+ * measured stays where it is, so content does not jump while scrolling back. The view follows new
+ * messages while it is scrolled to the bottom, and asks for older history when it gets near the top.
+ * Only used on the EDT.
+ */
+final class HistoryView extends JComponent implements Scrollable, ChatHistory.Listener {
+  interface Listener {
+    // The view is near its oldest entry and the server may have older ones
+    void olderNeeded(ChatHistory history);
+
+    void save(ChatMessage file);
+  }
+
+  // Around the list and between rows, as in the text pane it replaces
+  private static final int PAD = 10;
+  private static final int GAP = 4;
+  private static final int MAX_IMAGE_WIDTH = 300;
+  private static final int BUTTON = 20;
+  // Older history is asked for when fewer rows than this are above the viewport
+  private static final int LOAD_MARGIN = 20;
+  // Layouts are kept, and images wanted, for this many rows above and below the viewport
+  private static final int KEEP_MARGIN = 100;
+  private static final Color FAILED_COLOR = new Color(230, 80, 80);
+
+  private static final long serialVersionUID = 1L;
+
+  // Swing components are never serialized here; transient only keeps -Xlint:serial quiet
+  private final transient ChatHistory history;
+  private final transient Listener listener;
+  private final Color textColor;
+  private final Color mineColor;
+  private final Color otherColor;
+  private final Color systemColor;
+  private final Color selectionColor;
+  private final transient Icon downloadIcon = new FlatSVGIcon("icons/downloadBtn.svg", 12, 12);
+  private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm");
+
+  private final transient RowHeights heights = new RowHeights();
+  private final transient Map<ChatEntry, Row> rows = new IdentityHashMap<>();
+  private final transient ImageLoader images;
+  private JViewport viewport;
+  private int layoutWidth;
+  private boolean followBottom = true;
+  // Set while the view moves itself, so the viewport's events are not taken for the user scrolling
+  private boolean adjusting;
+  private transient ChatEntry selected;
+
+  // A laid out row; positions are relative to its top
+  private static final class Row {
+    final int height;
+    final TextLayout[] lines;
+    final int[] xs;
+    final int[] baselines;
+    // Null if the row has none
+    final Rectangle image;
+    final Rectangle button;
+
+    Row(int height, TextLayout[] lines, int[] xs, int[] baselines, Rectangle image, Rectangle button) {
+      this.height = height;
+      this.lines = lines;
+      this.xs = xs;
+      this.baselines = baselines;
+      this.image = image;
+      this.button = button;
+    }
+  }
+
+  HistoryView(ChatHistory history, ImageLoader images, Color background, Color text, Color mine, Color other, Color system,
+      Listener listener) {
+    this.history = history;
+    this.images = images;
+    this.listener = listener;
+    this.textColor = text;
+    this.mineColor = mine;
+    this.otherColor = other;
+    this.systemColor = system;
+    this.selectionColor = background.brighter();
+    setBackground(background);
+    setOpaque(true);
+    setFocusable(true);
+    setFont(UIManager.getFont("TextPane.font"));
+    history.setListener(this);
+    added(0, history.size());
+
+    addMouseListener(new MouseAdapter() {
+      @Override
+      public void mousePressed(MouseEvent e) {
+        requestFocusInWindow();
+        int row = rowAt(e.getY());
+        selected = row < 0 ? null : history.get(row);
+        repaint();
+        if (row >= 0 && SwingUtilities.isLeftMouseButton(e)) {
+          Rectangle button = row(row).button;
+          if (button != null && button.contains(e.getX(), e.getY() - top(row))) {
+            listener.save(selected.file);
+          }
+        } else if (row >= 0 && e.isPopupTrigger()) {
+          showMenu(e);
+        }
+      }
+
+      @Override
+      public void mouseReleased(MouseEvent e) {
+        if (selected != null && e.isPopupTrigger()) {
+          showMenu(e);
+        }
+      }
+    });
+    addMouseMotionListener(new MouseMotionAdapter() {
+      @Override
+      public void mouseMoved(MouseEvent e) {
+        int row = rowAt(e.getY());
+        Rectangle button = row < 0 ? null : row(row).button;
+        boolean over = button != null && button.contains(e.getX(), e.getY() - top(row));
+        setCursor(over ? Cursor.getPredefinedCursor(Cursor.HAND_CURSOR) : null);
+      }
+    });
+    getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_C, Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx()), "copy");
+    getActionMap().put("copy", new AbstractAction() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        copySelected();
+      }
+    });
+  }
+
+  private void showMenu(MouseEvent e) {
+    JPopupMenu menu = new JPopupMenu();
+    JMenuItem copy = new JMenuItem("Copy");
+    copy.addActionListener(a -> copySelected());
+    menu.add(copy);
+    menu.show(this, e.getX(), e.getY());
+  }
+
+  private void copySelected() {
+    if (selected != null) {
+      Toolkit.getDefaultToolkit().getSystemClipboard().setContents(new StringSelection(selected.copyText()), null);
+    }
+  }
+
+  @Override
+  public void addNotify() {
+    super.addNotify();
+    if (getParent() instanceof JViewport) {
+      viewport = (JViewport) getParent();
+      viewport.addChangeListener(e -> {
+        if (!adjusting) {
+          followBottom = atBottom();
+          measureVisible();
+        }
+      });
+    }
+  }
+
+  @Override
+  public void setBounds(int x, int y, int width, int height) {
+    super.setBounds(x, y, width, height);
+    if (width != layoutWidth) {
+      layoutWidth = width;
+      rows.clear();
+      heights.invalidate();
+      SwingUtilities.invokeLater(this::measureVisible);
+    }
+  }
+
+  // Shows the newest entries and follows new ones from now on
+  void scrollToEnd() {
+    followBottom = true;
+    SwingUtilities.invokeLater(() -> {
+      adjusting = true;
+      try {
+        updateSize();
+        scrollToBottom();
+      } finally {
+        adjusting = false;
+      }
+      measureVisible();
+    });
+  }
+
+  @Override
+  public void added(int index, int count) {
+    if (count == 0) {
+      return;
+    }
+    adjusting = true;
+    try {
+      if (index == heights.size()) {
+        for (int i = index; i < index + count; i++) {
+          heights.append(estimate(history.get(i)));
+        }
+        updateSize();
+      } else {
+        // A page of older history: what was on screen stays there
+        int[] estimates = new int[count];
+        for (int i = 0; i < count; i++) {
+          estimates[i] = estimate(history.get(i));
+        }
+        int before = heights.total();
+        heights.insertFirst(estimates);
+        updateSize();
+        if (viewport != null && !followBottom) {
+          viewport.setViewPosition(new Point(0, viewport.getViewPosition().y + heights.total() - before));
+        }
+      }
+      if (followBottom) {
+        scrollToBottom();
+      }
+    } finally {
+      adjusting = false;
+    }
+    measureVisible();
+    repaint();
+  }
+
+  @Override
+  public void removed(int index, int count) {
+    adjusting = true;
+    try {
+      int removedHeight = heights.top(count);
+      heights.removeFirst(count);
+      updateSize();
+      if (viewport != null) {
+        if (followBottom) {
+          scrollToBottom();
+        } else {
+          viewport.setViewPosition(new Point(0, Math.max(0, viewport.getViewPosition().y - removedHeight)));
+        }
+      }
+    } finally {
+      adjusting = false;
+    }
+    measureVisible();
+    repaint();
+  }
+
+  // Laid out again if on screen, e.g. to show that our message was sent
+  @Override
+  public void changed(int index) {
+    rows.remove(history.get(index));
+    heights.invalidate(index);
+    measureVisible();
+  }
+
+  /*
+   * Lays out the rows in the viewport that have only an estimated height, keeping the view steady
+   * as their real heights replace the estimates; then drops layouts of rows far away (and stops
+   * decoding their images) and asks for older history if the top is near.
+   */
+  private void measureVisible() {
+    if (viewport == null || heights.size() == 0) {
+      return;
+    }
+    adjusting = true;
+    try {
+      // Rows coming into view can change the rows in view; a few passes settle it
+      for (int pass = 0; pass < 4; pass++) {
+        Rectangle visible = viewport.getViewRect();
+        int first = rowAt(visible.y);
+        int last = rowAt(visible.y + visible.height);
+        int anchor = -1;
+        for (int i = first; i <= last && anchor < 0; i++) {
+          if (heights.isMeasured(i)) {
+            anchor = i;
+          }
+        }
+        boolean changed = false;
+        int shift = 0;
+        for (int i = first; i <= last; i++) {
+          if (!heights.isMeasured(i)) {
+            int old = heights.get(i);
+            int height = row(i).height;
+            heights.set(i, height);
+            if (height != old) {
+              changed = true;
+              if (i < anchor) {
+                shift += height - old;
+              }
+            }
+          }
+        }
+        if (!changed) {
+          break;
+        }
+        updateSize();
+        if (followBottom) {
+          scrollToBottom();
+        } else if (shift != 0) {
+          viewport.setViewPosition(new Point(0, Math.max(0, visible.y + shift)));
+        }
+      }
+    } finally {
+      adjusting = false;
+    }
+    Rectangle visible = viewport.getViewRect();
+    int first = rowAt(visible.y);
+    int last = rowAt(visible.y + visible.height);
+    prune(first, last);
+    repaint();
+    if (first < LOAD_MARGIN && history.hasOlder()) {
+      listener.olderNeeded(history);
+    }
+  }
+
+  // Forgets layouts of rows far outside [first, last] and stops decoding their images
+  private void prune(int first, int last) {
+    int from = Math.max(0, first - KEEP_MARGIN);
+    int to = Math.min(history.size() - 1, last + KEEP_MARGIN);
+    if (rows.size() <= 2 * (to - from + 1)) {
+      return;
+    }
+    Set<ChatEntry> keep = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (int i = from; i <= to; i++) {
+      keep.add(history.get(i));
+    }
+    for (Iterator<ChatEntry> it = rows.keySet().iterator(); it.hasNext(); ) {
+      ChatEntry entry = it.next();
+      if (!keep.contains(entry)) {
+        images.cancel(entry);
+        it.remove();
+      }
+    }
+  }
+
+  private boolean atBottom() {
+    Rectangle visible = viewport.getViewRect();
+    return visible.y + visible.height >= preferredHeight() - 4;
+  }
+
+  private void scrollToBottom() {
+    if (viewport != null) {
+      viewport.setViewPosition(new Point(0, Math.max(0, preferredHeight() - viewport.getExtentSize().height)));
+    }
+  }
+
+  // Applies a change of total height at once instead of at the next layout
+  private void updateSize() {
+    if (viewport != null) {
+      viewport.setViewSize(new Dimension(viewport.getExtentSize().width, preferredHeight()));
+    }
+    revalidate();
+  }
+
+  private int preferredHeight() {
+    return heights.total() + 2 * PAD;
+  }
+
+  private int rowAt(int y) {
+    return heights.rowAt(y - PAD);
+  }
+
+  private int top(int row) {
+    return PAD + heights.top(row);
+  }
+
+  private int lineHeight() {
+    FontMetrics metrics = getFontMetrics(getFont());
+    return metrics.getHeight();
+  }
+
+  private int estimate(ChatEntry entry) {
+    int lines = 1;
+    if (entry.text != null && layoutWidth > 0) {
+      int perLine = Math.max(10, (layoutWidth - 2 * PAD) / Math.max(1, getFontMetrics(getFont()).charWidth('m')));
+      lines = 1 + (entry.text.length() + 20) / perLine;
+    }
+    int height = lines * lineHeight() + GAP;
+    if (entry.kind == ChatEntry.Kind.IMAGE) {
+      height += 150;
+    }
+    return height;
+  }
+
+  private Row row(int index) {
+    ChatEntry entry = history.get(index);
+    Row row = rows.get(entry);
+    if (row == null) {
+      row = layout(entry, Math.max(100, layoutWidth));
+      rows.put(entry, row);
+    }
+    return row;
+  }
+
+  private Row layout(ChatEntry entry, int width) {
+    Font font = getFont();
+    FontRenderContext frc = getFontMetrics(font).getFontRenderContext();
+    int available = width - 2 * PAD;
+    int alignment = entry.kind == ChatEntry.Kind.SYSTEM ? SwingConstants.CENTER : entry.mine ? SwingConstants.RIGHT : SwingConstants.LEFT;
+    // A file's download button follows its text, so the text wraps short of it
+    int buttonRoom = entry.kind == ChatEntry.Kind.FILE ? BUTTON + 4 : 0;
+
+    List<AttributedString> paragraphs = new ArrayList<>();
+    Color senderColor = entry.mine ? mineColor : otherColor;
+    String time = "[" + timeFormat.format(new Date(entry.time)) + status(entry) + "] ";
+    switch (entry.kind) {
+      case SYSTEM:
+        paragraphs.add(styled(font, "— " + entry.text + " —", systemColor, false, true));
+        break;
+      case IMAGE:
+        paragraphs.add(header(font, entry, time, entry.sender + " sent an image:", senderColor, ""));
+        break;
+      case FILE:
+        paragraphs.add(header(font, entry, time, entry.sender + " sent a file: " + entry.text + " ", senderColor, ""));
+        break;
+      default:
+        String[] parts = entry.text.split("\n", -1);
+        paragraphs.add(header(font, entry, time, entry.sender + ": ", senderColor, parts[0]));
+        for (int i = 1; i < parts.length; i++) {
+          paragraphs.add(parts[i].isEmpty() ? null : styled(font, parts[i], textColor, false, false));
+        }
+    }
+
+    List<TextLayout> lines = new ArrayList<>();
+    List<Integer> tops = new ArrayList<>();
+    int y = 0;
+    for (AttributedString paragraph : paragraphs) {
+      if (paragraph == null) {
+        y += lineHeight();
+        continue;
+      }
+      LineBreakMeasurer measurer = new LineBreakMeasurer(paragraph.getIterator(), frc);
+      int end = paragraph.getIterator().getEndIndex();
+      while (measurer.getPosition() < end) {
+        TextLayout line = measurer.nextLayout(Math.max(20, available - buttonRoom));
+        lines.add(line);
+        tops.add(y);
+        y += (int) Math.ceil(line.getAscent() + line.getDescent() + line.getLeading());
+      }
+    }
+
+    int[] xs = new int[lines.size()];
+    int[] baselines = new int[lines.size()];
+    Rectangle button = null;
+    for (int i = 0; i < lines.size(); i++) {
+      TextLayout line = lines.get(i);
+      int advance = (int) Math.ceil(line.getVisibleAdvance());
+      xs[i] = align(alignment, width, advance + buttonRoom);
+      baselines[i] = tops.get(i) + (int) Math.ceil(line.getAscent());
+      if (buttonRoom > 0 && i == lines.size() - 1) {
+        int lineHeight = (int) Math.ceil(line.getAscent() + line.getDescent());
+        button = new Rectangle(xs[i] + advance + 4, tops.get(i) + (lineHeight - BUTTON) / 2, BUTTON, BUTTON);
+        y = Math.max(y, button.y + BUTTON);
+      }
+    }
+
+    Rectangle image = null;
+    if (entry.kind == ChatEntry.Kind.IMAGE) {
+      if (entry.imageWidth > 0) {
+        int imageButton = entry.file != null ? BUTTON + 4 : 0;
+        int w = Math.min(entry.imageWidth, Math.min(MAX_IMAGE_WIDTH, Math.max(20, available - imageButton)));
+        int h = Math.max(1, (int) ((long) entry.imageHeight * w / entry.imageWidth));
+        image = new Rectangle(align(alignment, width, w + imageButton), y + 2, w, h);
+        if (entry.file != null) {
+          button = new Rectangle(image.x + w + 4, image.y + h - BUTTON, BUTTON, BUTTON);
+        }
+        y = image.y + h + 2;
+      } else if (entry.file != null) {
+        button = new Rectangle(align(alignment, width, BUTTON), y, BUTTON, BUTTON);
+        y += BUTTON;
+      }
+    }
+    return new Row(y + GAP, lines.toArray(new TextLayout[0]), xs, baselines, image, button);
+  }
+
+  private static int align(int alignment, int width, int content) {
+    if (alignment == SwingConstants.RIGHT) {
+      return Math.max(PAD, width - PAD - content);
+    }
+    if (alignment == SwingConstants.CENTER) {
+      return Math.max(PAD, (width - content) / 2);
+    }
+    return PAD;
+  }
+
+  // "[time] " in italics (in red if our message did not go out), then the sender part in bold, then the message itself
+  private AttributedString header(Font font, ChatEntry entry, String time, String sender, Color senderColor, String content) {
+    AttributedString text = new AttributedString(time + sender + content);
+    text.addAttribute(TextAttribute.FONT, font);
+    text.addAttribute(TextAttribute.FOREGROUND, entry.delivery == Outbox.State.FAILED ? FAILED_COLOR : systemColor, 0, time.length());
+    text.addAttribute(TextAttribute.FONT, font.deriveFont(Font.ITALIC), 0, time.length());
+    text.addAttribute(TextAttribute.FOREGROUND, senderColor, time.length(), time.length() + sender.length());
+    text.addAttribute(TextAttribute.FONT, font.deriveFont(Font.BOLD), time.length(), time.length() + sender.length());
+    if (!content.isEmpty()) {
+      text.addAttribute(TextAttribute.FOREGROUND, textColor, time.length() + sender.length(), time.length() + sender.length() + content.length());
+    }
+    return text;
+  }
+
+  // Follows the time on our own messages and uploads until they have gone out
+  private static String status(ChatEntry entry) {
+    if (entry.delivery == Outbox.State.FAILED) {
+      return " · not sent";
+    }
+    if (entry.delivery == Outbox.State.PENDING) {
+      return entry.progress >= 0 ? " · " + entry.progress + "%" : " · sending";
+    }
+    return "";
+  }
+
+  private static AttributedString styled(Font font, String s, Color color, boolean bold, boolean italic) {
+    AttributedString text = new AttributedString(s);
+    text.addAttribute(TextAttribute.FONT, font.deriveFont((bold ? Font.BOLD : 0) | (italic ? Font.ITALIC : 0)));
+    text.addAttribute(TextAttribute.FOREGROUND, color);
+    return text;
+  }
+
+  @Override
+  protected void paintComponent(Graphics g) {
+    Rectangle clip = g.getClipBounds();
+    g.setColor(getBackground());
+    g.fillRect(clip.x, clip.y, clip.width, clip.height);
+    if (heights.size() == 0) {
+      return;
+    }
+    Graphics2D g2 = (Graphics2D) g.create();
+    Object hints = Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+    if (hints instanceof Map<?, ?>) {
+      g2.addRenderingHints((Map<?, ?>) hints);
+    }
+    int last = rowAt(clip.y + clip.height);
+    for (int i = rowAt(clip.y); i <= last; i++) {
+      paintRow(g2, history.get(i), row(i), top(i));
+    }
+    g2.dispose();
+  }
+
+  private void paintRow(Graphics2D g, ChatEntry entry, Row row, int top) {
+    if (entry == selected) {
+      g.setColor(selectionColor);
+      g.fillRect(0, top, getWidth(), row.height - GAP);
+    }
+    for (int i = 0; i < row.lines.length; i++) {
+      row.lines[i].draw(g, row.xs[i], top + row.baselines[i]);
+    }
+    if (row.image != null) {
+      Rectangle place = row.image;
+      Image image = images.get(entry, place.width, place.height, this::repaint);
+      if (image != null) {
+        g.drawImage(image, place.x, top + place.y, place.width, place.height, null);
+      } else {
+        g.setColor(selectionColor);
+        g.fillRect(place.x, top + place.y, place.width, place.height);
+        g.setColor(systemColor);
+        g.drawRect(place.x, top + place.y, place.width - 1, place.height - 1);
+      }
+    }
+    if (row.button != null) {
+      g.setColor(selectionColor);
+      g.fillRoundRect(row.button.x, top + row.button.y, BUTTON, BUTTON, 6, 6);
+      downloadIcon.paintIcon(this, g, row.button.x + (BUTTON - downloadIcon.getIconWidth()) / 2,
+          top + row.button.y + (BUTTON - downloadIcon.getIconHeight()) / 2);
+    }
+  }
+
+  @Override
+  public Dimension getPreferredSize() {
+    return new Dimension(layoutWidth, preferredHeight());
+  }
+
+  @Override
+  public Dimension getPreferredScrollableViewportSize() {
+    return new Dimension(400, 300);
+  }
+
+  @Override
+  public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+    return lineHeight();
+  }
+
+  @Override
+  public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+    return Math.max(lineHeight(), visibleRect.height - lineHeight());
+  }
+
+  @Override
+  public boolean getScrollableTracksViewportWidth() {
+    return true;
+  }
+
+  // A short history still fills the viewport, so the background and clicks cover all of it
+  @Override
+  public boolean getScrollableTracksViewportHeight() {
+    return getParent() instanceof JViewport && getParent().getHeight() > preferredHeight();
+  }
+}
@@ -0,0 +1,174 @@
+package com.chatapp.ui;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.swing.SwingUtilities;
+
+/*
+ * Decodes and scales the images in chat histories on background threads, so a run of large photos
+ * does not stall the EDT; rows show a placeholder until theirs is ready. Finished images go into an
+ * LRU cache shared by all rooms and bounded by their pixel bytes, and one that was evicted is just
+ * decoded again when it comes back on screen.
+ *
+ * Images are read with source subsampling to about the size they are shown at, so a full-resolution
+ * photo is never decoded just to draw its thumbnail; the original is only read whole when the user
+ * saves it. Everything but decode is EDT only.
+ */
+final class ImageLoader {
+  private final ExecutorService workers;
+  private final long maxBytes;
+  private long bytes;
+  // Least recently drawn first
+  private final LinkedHashMap<ChatEntry, BufferedImage> cache = new LinkedHashMap<>(64, 0.75f, true);
+  private final Map<ChatEntry, Future<?>> pending = new HashMap<>();
+  // Images that could not be decoded are not tried again; forgotten with their entries
+  private final Set<ChatEntry> failed = Collections.newSetFromMap(new WeakHashMap<>());
+
+  ImageLoader(int threads, long maxBytes) {
+    this.workers = Executors.newFixedThreadPool(threads, Thread.ofPlatform().name("chat-images-", 0).daemon().factory());
+    this.maxBytes = maxBytes;
+  }
+
+  /*
+   * The entry's image to draw in a width x height box. Returns null while it is being decoded, and
+   * calls ready on the EDT once it is; an image cached at another size, e.g. before the window was
+   * resized, is returned meanwhile to be drawn stretched.
+   */
+  BufferedImage get(ChatEntry entry, int width, int height, Runnable ready) {
+    BufferedImage image = cache.get(entry);
+    // The box and the decoded image can round the aspect ratio differently by a pixel
+    boolean fits = image != null && Math.abs(image.getWidth() - width) <= 1 && Math.abs(image.getHeight() - height) <= 1;
+    if (!fits && !pending.containsKey(entry) && !failed.contains(entry)) {
+      pending.put(entry, workers.submit(() -> {
+        BufferedImage decoded = null;
+        try {
+          decoded = decode(entry.image, width, height);
+        } catch (IOException | RuntimeException e) {
+          // Left as a placeholder
+        }
+        BufferedImage result = decoded;
+        SwingUtilities.invokeLater(() -> loaded(entry, result, ready));
+      }));
+    }
+    return image;
+  }
+
+  private void loaded(ChatEntry entry, BufferedImage image, Runnable ready) {
+    if (pending.remove(entry) == null) {
+      // Cancelled after it had started, or already delivered by an earlier request
+      return;
+    }
+    if (image == null) {
+      failed.add(entry);
+    } else {
+      BufferedImage old = cache.put(entry, image);
+      bytes += size(image) - (old == null ? 0 : size(old));
+      for (Iterator<BufferedImage> it = cache.values().iterator(); bytes > maxBytes && it.hasNext(); ) {
+        bytes -= size(it.next());
+        it.remove();
+      }
+    }
+    ready.run();
+  }
+
+  // The row has scrolled far away: no need to decode its image after all
+  void cancel(ChatEntry entry) {
+    Future<?> task = pending.remove(entry);
+    if (task != null) {
+      task.cancel(false);
+    }
+  }
+
+  private static long size(BufferedImage image) {
+    return 4L * image.getWidth() * image.getHeight();
+  }
+
+  // The dimensions from the image header, without decoding the pixels; null if it cannot be read
+  static Dimension readSize(byte[] data) {
+    try (ImageInputStream in = open(data)) {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+      if (!readers.hasNext()) {
+        return null;
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, true);
+        return new Dimension(reader.getWidth(0), reader.getHeight(0));
+      } finally {
+        reader.dispose();
+      }
+    } catch (IOException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  // Images in memory are read in memory; ImageIO would otherwise buffer the stream in a temporary file
+  private static ImageInputStream open(Object input) throws IOException {
+    if (input instanceof byte[] data) {
+      return new MemoryCacheImageInputStream(new ByteArrayInputStream(data));
+    }
+    ImageInputStream in = ImageIO.createImageInputStream(input);
+    if (in == null) {
+      throw new IOException("Cannot read " + input);
+    }
+    return in;
+  }
+
+  /*
+   * Reads an image (a byte[], File or InputStream) scaled down to fit in maxWidth x maxHeight, never
+   * up. Whole rows and columns are skipped while reading where the image is at least twice too big,
+   * and the rest is scaled smoothly. Returns null if the format is unknown. Any thread may call it.
+   */
+  static BufferedImage decode(Object input, int maxWidth, int maxHeight) throws IOException {
+    try (ImageInputStream in = open(input)) {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+      if (!readers.hasNext()) {
+        return null;
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, true);
+        int sourceWidth = reader.getWidth(0);
+        int sourceHeight = reader.getHeight(0);
+        double scale = Math.min(1, Math.min((double) maxWidth / sourceWidth, (double) maxHeight / sourceHeight));
+        int width = Math.max(1, (int) Math.round(sourceWidth * scale));
+        int height = Math.max(1, (int) Math.round(sourceHeight * scale));
+        ImageReadParam param = reader.getDefaultReadParam();
+        int step = Math.max(1, Math.min(sourceWidth / width, sourceHeight / height));
+        param.setSourceSubsampling(step, step, 0, 0);
+        BufferedImage source = reader.read(0, param);
+        if (source.getWidth() == width && source.getHeight() == height) {
+          return source;
+        }
+        boolean alpha = source.getColorModel().hasAlpha();
+        BufferedImage scaled = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(source, 0, 0, width, height, null);
+        g.dispose();
+        return scaled;
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+}
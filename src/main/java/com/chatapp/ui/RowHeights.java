@@ -0,0 +1,125 @@
+package com.chatapp.ui;
+
+import java.util.Arrays;
+
+/*
+ * Pixel heights of a list's rows in a Fenwick tree, so the offset of a row and the row at an offset
+ * are found in log time however many rows there are. Rows start out with an estimate and are marked
+ * measured once laid out. Appending is log time too; inserting or removing at the front rebuilds the
+ * tree, which only happens once per page of history.
+ */
+final class RowHeights {
+  private int size;
+  private int[] heights = new int[64];
+  private boolean[] measured = new boolean[64];
+  // 1-based; tree[i] sums the heights of rows (i - lowbit(i), i]
+  private int[] tree = new int[65];
+
+  int size() {
+    return size;
+  }
+
+  int get(int row) {
+    return heights[row];
+  }
+
+  boolean isMeasured(int row) {
+    return measured[row];
+  }
+
+  void set(int row, int height) {
+    int delta = height - heights[row];
+    heights[row] = height;
+    measured[row] = true;
+    if (delta != 0) {
+      for (int i = row + 1; i <= size; i += i & -i) {
+        tree[i] += delta;
+      }
+    }
+  }
+
+  // Every row needs measuring again, e.g. at a new width; the old heights stay as estimates
+  void invalidate() {
+    Arrays.fill(measured, 0, size, false);
+  }
+
+  // The row needs measuring again, its height stays as the estimate
+  void invalidate(int row) {
+    measured[row] = false;
+  }
+
+  void append(int estimate) {
+    if (size == heights.length) {
+      heights = Arrays.copyOf(heights, size * 2);
+      measured = Arrays.copyOf(measured, size * 2);
+      tree = Arrays.copyOf(tree, size * 2 + 1);
+    }
+    heights[size] = estimate;
+    measured[size] = false;
+    size++;
+    int lowbit = size & -size;
+    tree[size] = estimate + top(size - 1) - top(size - lowbit);
+  }
+
+  void insertFirst(int[] estimates) {
+    int count = estimates.length;
+    int capacity = Math.max(heights.length, Integer.highestOneBit(size + count) * 2);
+    int[] newHeights = new int[capacity];
+    boolean[] newMeasured = new boolean[capacity];
+    System.arraycopy(estimates, 0, newHeights, 0, count);
+    System.arraycopy(heights, 0, newHeights, count, size);
+    System.arraycopy(measured, 0, newMeasured, count, size);
+    heights = newHeights;
+    measured = newMeasured;
+    size += count;
+    rebuild();
+  }
+
+  void removeFirst(int count) {
+    System.arraycopy(heights, count, heights, 0, size - count);
+    System.arraycopy(measured, count, measured, 0, size - count);
+    size -= count;
+    rebuild();
+  }
+
+  private void rebuild() {
+    tree = new int[heights.length + 1];
+    for (int i = 1; i <= size; i++) {
+      tree[i] += heights[i - 1];
+      int parent = i + (i & -i);
+      if (parent <= size) {
+        tree[parent] += tree[i];
+      }
+    }
+  }
+
+  // Offset of the top of row, i.e. the total height of the rows before it
+  int top(int row) {
+    int sum = 0;
+    for (int i = row; i > 0; i -= i & -i) {
+      sum += tree[i];
+    }
+    return sum;
+  }
+
+  int total() {
+    return top(size);
+  }
+
+  // The row covering offset y, clamped to the rows there are; -1 if there are none
+  int rowAt(int y) {
+    if (size == 0) {
+      return -1;
+    }
+    int row = 0;
+    int remaining = y;
+    for (int step = Integer.highestOneBit(size); step > 0; step >>= 1) {
+      int next = row + step;
+      if (next <= size && tree[next] <= remaining) {
+        row = next;
+        remaining -= tree[next];
+      }
+    }
+    return Math.max(0, Math.min(row, size - 1));
+  }
+}
@@ -0,0 +1,74 @@
+package com.chatapp.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Blobs are named by their content, so a file evicted while a fetch still reads it can be stored
+ * again under the same name before that fetch is done. The evicted blob's last release must only
+ * delete its own files.
+ */
+class BlobStoreTest {
+  private static final int FILE_SIZE = 64 * 1024;
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void releasingAnEvictedBlobKeepsItsReplacement() throws IOException {
+    // Room for one file: storing a second evicts the first
+    BlobStore store = new BlobStore(dir, FILE_SIZE);
+    byte[] first = data(1);
+    byte[] second = data(2);
+
+    String hash = add(store, first);
+    // A fetch in flight
+    Blob fetching = store.get(hash);
+    add(store, second);
+    assertNull(store.get(hash), "first file still stored");
+
+    add(store, first);
+    Blob stored = store.get(hash);
+    assertNotSame(fetching, stored);
+    assertArrayEquals(first, fetching.readAll(), "evicted blob no longer readable by its fetch");
+
+    fetching.release();
+    assertArrayEquals(first, stored.readAll());
+    stored.release();
+    // Only the blob stored again is left, index and all
+    try (Stream<Path> files = Files.list(dir)) {
+      assertEquals(2, files.filter(path -> path.getFileName().toString().startsWith(hash)).count());
+    }
+    assertArrayEquals(first, Blob.load(dir.resolve(hash)).readAll(), "stored file lost on restart");
+  }
+
+  private String add(BlobStore store, byte[] data) throws IOException {
+    ChatMessage announce = new ChatMessage(ChatMessage.MessageType.FILE, "alice", "File");
+    announce.setTransferId("upload");
+    announce.setFileSize(data.length);
+    SpooledFile upload = new SpooledFile(announce, "alice", dir);
+    ChatMessage chunk = new ChatMessage(ChatMessage.MessageType.FILE_CHUNK, "alice", null);
+    chunk.setFileData(data);
+    chunk.setChecksum(SpooledFile.checksum(data));
+    assertEquals(SpooledFile.AppendResult.ACCEPTED, upload.append(chunk));
+    String hash = upload.finish();
+    store.add(upload, hash).release();
+    return hash;
+  }
+
+  private static byte[] data(long seed) {
+    byte[] data = new byte[FILE_SIZE];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
+}
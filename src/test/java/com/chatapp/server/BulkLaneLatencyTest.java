@@ -0,0 +1,161 @@
+package com.chatapp.server;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/*
+ * Chat to a client must not wait behind a file it is downloading. The receiver fetches a large file
+ * and reads it slowly, through a small receive buffer, so the download takes seconds and the server's
+ * writer is backed up behind it the whole time. Meanwhile another user sends it a timestamped private
+ * message every few milliseconds. With the control lane those overtake the remaining chunks, so their
+ * latency stays a small fraction of the transfer time instead of growing with it.
+ */
+class BulkLaneLatencyTest {
+  // Large against the server's socket send buffer, which the control lane cannot overtake
+  private static final int FILE_SIZE = 48 * 1024 * 1024;
+  private static final int RECEIVE_BUFFER = 16 * 1024;
+  // Per 64 KB chunk read: about 12 MB/s, so the download takes around four seconds
+  private static final long CHUNK_PAUSE_MILLIS = 5;
+  private static final long PING_INTERVAL_MILLIS = 10;
+  private static final long TIMEOUT_SECONDS = 60;
+
+  @TempDir
+  Path dir;
+
+  @ParameterizedTest
+  @EnumSource(ServerConfig.Mode.class)
+  void chatOvertakesAFileDownload(ServerConfig.Mode mode) throws Exception {
+    ServerConfig config = TestServer.config(dir);
+    config.setMode(mode);
+    // The pings are not what is being limited here
+    config.setTextMessagesPerSecond(1000);
+    config.setTextBurst(1000);
+    TestServer.start(config);
+
+    try (Socket receiver = connect(config, "receiver", RECEIVE_BUFFER); Socket sender = connect(config, "sender", 0)) {
+      Downloader downloader = new Downloader(receiver);
+      Thread reader = Thread.ofPlatform().name("test-receiver").daemon().start(downloader);
+
+      OutputStream out = new BufferedOutputStream(sender.getOutputStream());
+      ChatMessage file = new ChatMessage(ChatMessage.MessageType.FILE, "sender", "File");
+      byte[] data = new byte[FILE_SIZE];
+      new Random(42).nextBytes(data);
+      file.setFileName("large.bin");
+      file.setFileData(data);
+      file.setTargetUser("receiver");
+      FrameCodec.write(file, out);
+      out.flush();
+      assertTrue(downloader.started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "download did not start");
+
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+      while (downloader.finishedAt == 0 && System.nanoTime() < deadline) {
+        ChatMessage ping = new ChatMessage(ChatMessage.MessageType.TEXT, "sender", Long.toString(System.nanoTime()));
+        ping.setTargetUser("receiver");
+        FrameCodec.write(ping, out);
+        out.flush();
+        Thread.sleep(PING_INTERVAL_MILLIS);
+      }
+      reader.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+
+      assertTrue(downloader.finishedAt != 0, "download did not finish");
+      long transferMillis = TimeUnit.NANOSECONDS.toMillis(downloader.finishedAt - downloader.startedAt);
+      List<Long> latencies = downloader.latenciesDuringTransfer();
+      assertTrue(transferMillis >= 1000, "transfer took only " + transferMillis + " ms, too short to show anything");
+      assertTrue(latencies.size() >= 20, "only " + latencies.size() + " pings arrived during the transfer");
+      Collections.sort(latencies);
+      long p99 = latencies.get((int) Math.ceil(latencies.size() * 0.99) - 1);
+      System.out.println(mode + ": " + latencies.size() + " pings during a " + transferMillis + " ms transfer, p50 "
+          + latencies.get(latencies.size() / 2) + " ms, p99 " + p99 + " ms");
+      // Queued behind the file, a ping would only arrive once the download was done
+      assertTrue(p99 < transferMillis / 2, "p99 ping latency " + p99 + " ms during a " + transferMillis + " ms transfer");
+    }
+  }
+
+  // Logs in with the binary protocol; receiveBuffer 0 keeps the default
+  private static Socket connect(ServerConfig config, String username, int receiveBuffer) throws IOException {
+    Socket socket = new Socket();
+    if (receiveBuffer > 0) {
+      socket.setReceiveBufferSize(receiveBuffer);
+    }
+    socket.connect(new InetSocketAddress("127.0.0.1", config.getPort()));
+    OutputStream out = socket.getOutputStream();
+    FrameCodec.writeHello(out, FrameCodec.VERSION);
+    FrameCodec.write(new ChatMessage(ChatMessage.MessageType.TEXT, username, "Login"), out);
+    out.flush();
+    return socket;
+  }
+
+  // Fetches the file it is offered and reads it slowly, timing every ping that arrives meanwhile
+  private static final class Downloader implements Runnable {
+    private final Socket socket;
+    final CountDownLatch started = new CountDownLatch(1);
+    volatile long startedAt;
+    volatile long finishedAt;
+    // Latency in ms, and when the ping arrived
+    private final List<long[]> pings = Collections.synchronizedList(new ArrayList<>());
+
+    Downloader(Socket socket) {
+      this.socket = socket;
+    }
+
+    @Override
+    public void run() {
+      try {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        FrameCodec.readHello(in);
+        long received = 0;
+        while (received < FILE_SIZE) {
+          ChatMessage msg = FrameCodec.read(in);
+          long now = System.nanoTime();
+          if (msg.getType() == ChatMessage.MessageType.FILE && msg.getTransferId() == null) {
+            ChatMessage fetch = new ChatMessage(ChatMessage.MessageType.FILE_FETCH, "receiver", null);
+            fetch.setContentHash(msg.getContentHash());
+            FrameCodec.write(fetch, out);
+            out.flush();
+          } else if (msg.getType() == ChatMessage.MessageType.FILE) {
+            startedAt = now;
+            started.countDown();
+          } else if (msg.getType() == ChatMessage.MessageType.FILE_CHUNK) {
+            received += msg.getFileData().length;
+            Thread.sleep(CHUNK_PAUSE_MILLIS);
+          } else if (msg.getType() == ChatMessage.MessageType.TEXT && "sender".equals(msg.getSender())) {
+            pings.add(new long[] { TimeUnit.NANOSECONDS.toMillis(now - Long.parseLong(msg.getContent())), now });
+          }
+        }
+        finishedAt = System.nanoTime();
+      } catch (IOException | InterruptedException e) {
+        e.printStackTrace();
+      }
+    }
+
+    List<Long> latenciesDuringTransfer() {
+      List<Long> latencies = new ArrayList<>();
+      synchronized (pings) {
+        for (long[] ping : pings) {
+          if (ping[1] <= finishedAt) {
+            latencies.add(ping[0]);
+          }
+        }
+      }
+      return latencies;
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package com.chatapp.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.chatapp.client.ChatClient;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/*
+ * A client whose connection drops comes back on the same session: the server resends what was sent
+ * meanwhile, and the client must see that as a resume, not a gap, and get every message exactly once.
+ * The client talks to the server through a proxy that the test cuts, and keeps shut while chat goes
+ * on without it.
+ */
+class SessionResumeTest {
+  private static final int MESSAGES = 10;
+  private static final long TIMEOUT_SECONDS = 10;
+
+  @TempDir
+  Path dir;
+
+  @ParameterizedTest
+  @EnumSource(ServerConfig.Mode.class)
+  void resumedClientGetsWhatItMissedOnce(ServerConfig.Mode mode) throws Exception {
+    ServerConfig config = TestServer.config(dir);
+    config.setMode(mode);
+    TestServer.start(config);
+
+    List<ChatClient.Start> starts = new CopyOnWriteArrayList<>();
+    List<String> got = new CopyOnWriteArrayList<>();
+    CountDownLatch bobStarted = new CountDownLatch(1);
+    try (Proxy proxy = new Proxy(config.getPort())) {
+      ChatClient alice = new ChatClient("127.0.0.1", proxy.getPort(), "alice", new ChatClient.Listener() {
+        public void received(ChatMessage msg) {
+          if (msg.getType() == ChatMessage.MessageType.TEXT && "bob".equals(msg.getSender())) {
+            got.add(msg.getContent());
+          }
+        }
+
+        public void sessionStarted(ChatClient.Start start, boolean reconnected) {
+          starts.add(start);
+        }
+      });
+      ChatClient bob = new ChatClient("127.0.0.1", config.getPort(), "bob", new ChatClient.Listener() {
+        public void received(ChatMessage msg) {
+        }
+
+        public void sessionStarted(ChatClient.Start start, boolean reconnected) {
+          bobStarted.countDown();
+        }
+      });
+      try {
+        alice.start();
+        bob.start();
+        await(() -> starts.size() == 1 && bobStarted.getCount() == 0, "logins");
+
+        for (int i = 0; i < MESSAGES / 2; i++) {
+          bob.send(new ChatMessage(ChatMessage.MessageType.TEXT, "bob", "m" + i));
+        }
+        await(() -> got.size() == MESSAGES / 2, "messages before the outage");
+
+        proxy.cut();
+        for (int i = MESSAGES / 2; i < MESSAGES; i++) {
+          bob.send(new ChatMessage(ChatMessage.MessageType.TEXT, "bob", "m" + i));
+        }
+        proxy.reopen();
+        await(() -> starts.size() == 2 && got.size() >= MESSAGES, "resume");
+        // Anything resent twice would arrive right behind the rest
+        Thread.sleep(500);
+      } finally {
+        alice.close();
+        bob.close();
+      }
+    }
+
+    assertEquals(List.of(ChatClient.Start.NEW, ChatClient.Start.RESUMED), starts);
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < MESSAGES; i++) {
+      expected.add("m" + i);
+    }
+    assertEquals(expected, got);
+  }
+
+  private static void await(BooleanSupplier condition, String what) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+    while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue(condition.getAsBoolean(), "timed out waiting for " + what);
+  }
+
+  // Forwards connections to the server; cut() drops them all, and new ones are refused until reopen()
+  private static final class Proxy implements AutoCloseable {
+    private final ServerSocket listener;
+    private final int target;
+    private final List<Socket> open = new CopyOnWriteArrayList<>();
+    private volatile boolean refusing;
+
+    Proxy(int target) throws IOException {
+      this.target = target;
+      this.listener = new ServerSocket();
+      listener.bind(new InetSocketAddress("127.0.0.1", 0));
+      Thread.ofPlatform().name("test-proxy").daemon().start(this::accept);
+    }
+
+    int getPort() {
+      return listener.getLocalPort();
+    }
+
+    private void accept() {
+      while (!listener.isClosed()) {
+        try {
+          Socket client = listener.accept();
+          if (refusing) {
+            client.close();
+            continue;
+          }
+          Socket server = new Socket("127.0.0.1", target);
+          open.add(client);
+          open.add(server);
+          pump(client, server);
+          pump(server, client);
+        } catch (IOException e) {
+          // Closed, or the server went away
+        }
+      }
+    }
+
+    private void pump(Socket from, Socket to) {
+      Thread.ofPlatform().name("test-proxy-pump").daemon().start(() -> {
+        try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+          in.transferTo(out);
+        } catch (IOException e) {
+          // Cut
+        } finally {
+          closeQuietly(from);
+          closeQuietly(to);
+        }
+      });
+    }
+
+    void cut() {
+      refusing = true;
+      for (Socket socket : open) {
+        closeQuietly(socket);
+      }
+      open.clear();
+    }
+
+    void reopen() {
+      refusing = false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      cut();
+      listener.close();
+    }
+
+    private static void closeQuietly(Socket socket) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+}
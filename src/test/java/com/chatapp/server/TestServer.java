@@ -0,0 +1,52 @@
+package com.chatapp.server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// A real server for a test: a free local port, no metrics endpoint, and its files under dir
+final class TestServer {
+  private TestServer() {
+  }
+
+  static ServerConfig config(Path dir) throws IOException {
+    ServerConfig config = new ServerConfig();
+    config.setPort(freePort());
+    config.setMetricsPort(0);
+    config.setHistoryDir(dir.resolve("history"));
+    config.setFilesDir(dir.resolve("files"));
+    return config;
+  }
+
+  // Returns once the server accepts clients, on a daemon thread; the server lives as long as the test JVM
+  static ChatServer start(ServerConfig config) throws IOException, InterruptedException {
+    ChatServer server = new ChatServer(config);
+    Thread.ofPlatform().name("test-server-" + config.getPort()).daemon().start(() -> {
+      try {
+        server.start();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+    // The NIO engine only binds once started
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (true) {
+      try (Socket probe = new Socket("127.0.0.1", config.getPort())) {
+        return server;
+      } catch (IOException e) {
+        if (System.nanoTime() > deadline) {
+          throw e;
+        }
+        Thread.sleep(10);
+      }
+    }
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+}
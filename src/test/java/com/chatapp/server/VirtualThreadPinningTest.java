@@ -0,0 +1,102 @@
+package com.chatapp.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.chatapp.client.ChatClient;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * The blocking engine on virtual threads: every client broadcasts at once, so handlers write to each
+ * other's sockets and contend for the same locks, and JFR must not see a single virtual thread pin its
+ * carrier. A monitor held across a blocking write or a lock wait would show up as jdk.VirtualThreadPinned.
+ */
+class VirtualThreadPinningTest {
+  private static final int CLIENTS = 200;
+  private static final int MESSAGES_PER_CLIENT = 5;
+  private static final long TIMEOUT_SECONDS = 30;
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void broadcastStormDoesNotPinCarriers() throws Exception {
+    ServerConfig config = TestServer.config(dir);
+    config.setThreads(ServerConfig.Threads.VIRTUAL);
+    TestServer.start(config);
+
+    List<RecordedEvent> pinned = new CopyOnWriteArrayList<>();
+    List<ChatClient> clients = new ArrayList<>();
+    CountDownLatch loggedIn = new CountDownLatch(CLIENTS);
+    LongAdder delivered = new LongAdder();
+    long expected = (long) CLIENTS * MESSAGES_PER_CLIENT * (CLIENTS - 1);
+    try (RecordingStream recording = new RecordingStream()) {
+      recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).withStackTrace();
+      recording.onEvent("jdk.VirtualThreadPinned", pinned::add);
+      recording.startAsync();
+
+      // The clients run on platform threads, so any pinning recorded is the server's
+      ThreadFactory threads = Thread.ofPlatform().name("test-client-", 0).daemon().factory();
+      for (int i = 0; i < CLIENTS; i++) {
+        String username = "user" + i;
+        ChatClient client = new ChatClient("127.0.0.1", config.getPort(), username, new ChatClient.Listener() {
+          public void received(ChatMessage msg) {
+            if (msg.getType() == ChatMessage.MessageType.TEXT && !"Server".equals(msg.getSender()) && !username.equals(msg.getSender())) {
+              delivered.increment();
+            }
+          }
+
+          public void sessionStarted(ChatClient.Start start, boolean reconnected) {
+            loggedIn.countDown();
+          }
+        }, threads, null);
+        clients.add(client);
+        client.start();
+      }
+      // Pinned carriers can starve the server outright, so a timeout is only reported after the pinning
+      if (loggedIn.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        for (int m = 0; m < MESSAGES_PER_CLIENT; m++) {
+          for (ChatClient client : clients) {
+            client.send(new ChatMessage(ChatMessage.MessageType.TEXT, client.getUsername(), "message " + m));
+          }
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (delivered.sum() < expected && System.nanoTime() < deadline) {
+          Thread.sleep(50);
+        }
+      }
+      recording.stop();
+    } finally {
+      for (ChatClient client : clients) {
+        client.close();
+      }
+    }
+    assertTrue(pinned.isEmpty(), () -> pinned.size() + " pinned virtual thread(s), first at\n" + stack(pinned.get(0)));
+    assertEquals(0, loggedIn.getCount(), "clients not logged in");
+    assertEquals(expected, delivered.sum(), "broadcasts delivered");
+  }
+
+  private static String stack(RecordedEvent event) {
+    StringBuilder sb = new StringBuilder();
+    if (event.getStackTrace() != null) {
+      for (RecordedFrame frame : event.getStackTrace().getFrames()) {
+        sb.append("  ").append(frame.getMethod().getType().getName()).append('.').append(frame.getMethod().getName())
+            .append(':').append(frame.getLineNumber()).append('\n');
+      }
+    }
+    return sb.toString();
+  }
+}